@@ -0,0 +1,129 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Synthetic AgMIP data for the benchmarks. Each experiment is a multi-year
+ * rotation with a realistic number of management events per season.
+ */
+public class AcmoBenchmarkData {
+
+    public static final int IRRIGATIONS_PER_YEAR = 40;
+    public static final int FERTILIZERS_PER_YEAR = 8;
+    public static final int ORGANIC_MATTERS_PER_YEAR = 2;
+    public static final int TILLAGES_PER_YEAR = 3;
+    private static final String[] CROPS = {"MAZ", "WHT", "SOY", "RIC"};
+    private static final String[] IROPS = {"IR001", "IR003", "IR004", "IR005"};
+    private static final String[] TIIMPS = {"TI003", "TI005", "TI008"};
+
+    private AcmoBenchmarkData() {}
+
+    /**
+     * Create one experiment with {@code years} seasons of events.
+     *
+     * @param index the index of the experiment, used for the IDs
+     * @param years the number of rotation years
+     * @return the experiment
+     */
+    public static HashMap<String, Object> createExperiment(int index, int years) {
+        HashMap<String, Object> exp = new HashMap<String, Object>();
+        exp.put("exname", "KEKA" + (index % 100) + "_" + index + "__" + (index % 10 + 1));
+        exp.put("trt_name", "Treatment \"" + index + "\", rainfed");
+        exp.put("wst_id", "WS" + (index % 20));
+        exp.put("soil_id", "SOIL" + (index % 50));
+        exp.put("fl_lat", "-0.5" + index % 10);
+        exp.put("fl_long", "37.4" + index % 10);
+        exp.put("sdat", "19800101");
+        exp.put("rotation", years > 1 ? "1" : "0");
+        exp.put("eid", "E" + Integer.toHexString(index * 7919));
+        exp.put("field_overlay", "KEN-" + (index % 3) + "-RAP1-MAN2-0-FIELD");
+        exp.put("seasonal_strategy", "KEN-" + (index % 3) + "-RAP1-MAN2-0-SEASONAL");
+        exp.put("field_dome_applied", "Y");
+        exp.put("seasonal_dome_applied", "Y");
+        exp.put("quaduiVer", "1.3.5");
+
+        ArrayList<HashMap<String, String>> events = new ArrayList<HashMap<String, String>>();
+        for (int y = 0; y < years; y++) {
+            String year = Integer.toString(1980 + y);
+            HashMap<String, String> planting = createEvent("planting", year + "0315");
+            planting.put("crid", CROPS[y % CROPS.length]);
+            planting.put("cul_id", "IB00" + (y % 10));
+            planting.put("dssat_cul_id", "GH00" + (y % 10));
+            planting.put("cul_name", "CULTIVAR " + y);
+            events.add(planting);
+            for (int i = 0; i < TILLAGES_PER_YEAR; i++) {
+                HashMap<String, String> tillage = createEvent("tillage", year + "030" + (i + 1));
+                tillage.put("tiimp", TIIMPS[i % TIIMPS.length]);
+                events.add(tillage);
+            }
+            for (int i = 0; i < ORGANIC_MATTERS_PER_YEAR; i++) {
+                HashMap<String, String> om = createEvent("organic_matter", year + "031" + i);
+                om.put("omamt", "1250." + i);
+                events.add(om);
+            }
+            for (int i = 0; i < FERTILIZERS_PER_YEAR; i++) {
+                HashMap<String, String> fertilizer = createEvent("fertilizer", year + "04" + (10 + i));
+                fertilizer.put("feamn", (20 + i) + ".5");
+                fertilizer.put("feamp", "." + (i + 1) + "5");
+                fertilizer.put("feamk", Integer.toString(10 + i));
+                events.add(fertilizer);
+            }
+            for (int i = 0; i < IRRIGATIONS_PER_YEAR; i++) {
+                HashMap<String, String> irrigation = createEvent("irrigation", year + "0" + (5 + i / 28) + (10 + i % 18));
+                irrigation.put("irval", (10 + i % 15) + "." + (i % 10));
+                irrigation.put("irop", IROPS[i % IROPS.length]);
+                events.add(irrigation);
+            }
+            events.add(createEvent("harvest", year + "0915"));
+        }
+        HashMap<String, Object> management = new HashMap<String, Object>();
+        management.put("events", events);
+        exp.put("management", management);
+
+        HashMap<String, Object> observed = new HashMap<String, Object>();
+        observed.put("hwah", Integer.toString(3000 + index % 1000));
+        observed.put("cwah", Integer.toString(7000 + index % 1000));
+        observed.put("hdate", "19800915");
+        exp.put("observed", observed);
+        return exp;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createExperiments(int count, int years) {
+        ArrayList<HashMap<String, Object>> experiments = new ArrayList<HashMap<String, Object>>(count);
+        for (int i = 0; i < count; i++) {
+            experiments.add(createExperiment(i, years));
+        }
+        return experiments;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createWeathers() {
+        ArrayList<HashMap<String, Object>> weathers = new ArrayList<HashMap<String, Object>>();
+        for (int i = 0; i < 20; i++) {
+            HashMap<String, Object> wst = new HashMap<String, Object>();
+            wst.put("wst_id", "WS" + i);
+            wst.put("clim_id", i % 2 == 0 ? "0XXX" : "0XFX");
+            wst.put("wid", "W" + i);
+            weathers.add(wst);
+        }
+        return weathers;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createSoils() {
+        ArrayList<HashMap<String, Object>> soils = new ArrayList<HashMap<String, Object>>();
+        for (int i = 0; i < 50; i++) {
+            HashMap<String, Object> soil = new HashMap<String, Object>();
+            soil.put("soil_id", "SOIL" + i);
+            soil.put("sid", "S" + (i % 40));
+            soils.add(soil);
+        }
+        return soils;
+    }
+
+    private static HashMap<String, String> createEvent(String event, String date) {
+        HashMap<String, String> ret = new HashMap<String, String>();
+        ret.put("event", event);
+        ret.put("date", date);
+        return ret;
+    }
+}
@@ -0,0 +1,128 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the hot paths of {@link AcmoUtil}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcmoUtilBenchmark {
+
+    /**
+     * The number of rotation years for each experiment
+     */
+    @Param({"1", "10"})
+    public int years;
+
+    /**
+     * The number of experiments in the package for writeAcmo
+     */
+    @Param({"200"})
+    public int experimentCount;
+
+    private HashMap<String, Object> experiment;
+    private ArrayList<HashMap<String, Object>> experiments;
+    private ArrayList<HashMap<String, Object>> weathers;
+    private ArrayList<HashMap<String, Object>> soils;
+    private HashMap<String, String> domeIdHashMap;
+    private File workDir;
+    private String metaFilePath;
+    private String acmoLine;
+    private String csvStr = "Treatment \"42\", rainfed";
+    private String exname = "KEKA42_42__3";
+    private String climId = "0XFX";
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        experiment = AcmoBenchmarkData.createExperiment(42, years);
+        experiments = AcmoBenchmarkData.createExperiments(experimentCount, years);
+        weathers = AcmoBenchmarkData.createWeathers();
+        soils = AcmoBenchmarkData.createSoils();
+        domeIdHashMap = new HashMap<String, String>();
+        domeIdHashMap.put("KEN-0-RAP1-MAN2-0-FIELD", "1a2b3c");
+        domeIdHashMap.put("KEN-0-RAP1-MAN2-0-SEASONAL", "4d5e6f");
+        workDir = File.createTempFile("acmo-bench", "");
+        workDir.delete();
+        workDir.mkdirs();
+        File metaDir = new File(workDir, "meta");
+        AcmoUtil.writeAcmo(metaDir.getPath(), experiments.iterator(), weathers.iterator(), soils.iterator(), "dssat", domeIdHashMap);
+        metaFilePath = new File(metaDir, "ACMO_meta.dat").getPath();
+        acmoLine = AcmoUtil.extractAcmoData(experiment, "dssat", domeIdHashMap, "0XFX", "", "W1", "S1", "SOIL1", "1.3.5");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        delete(workDir);
+    }
+
+    @Benchmark
+    public HashMap<String, String> extractEventData() {
+        return AcmoUtil.extractEventData(experiment, "dssat");
+    }
+
+    @Benchmark
+    public String extractAcmoData() {
+        return AcmoUtil.extractAcmoData(experiment, "dssat", domeIdHashMap, "0XFX", "", "W1", "S1", "SOIL1", "1.3.5");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void writeAcmo() {
+        AcmoUtil.writeAcmo(new File(workDir, "out").getPath(), experiments.iterator(), weathers.iterator(), soils.iterator(), "dssat", domeIdHashMap);
+    }
+
+    @Benchmark
+    public String createCsvFile() {
+        File f = AcmoUtil.createCsvFile(workDir.getPath(), "DSSAT", metaFilePath);
+        f.delete();
+        return f.getName();
+    }
+
+    @Benchmark
+    public String escapeCsvStr() {
+        return AcmoUtil.escapeCsvStr(csvStr);
+    }
+
+    @Benchmark
+    public String checkCMSeries() {
+        return AcmoUtil.checkCMSeries(exname, climId, "RAP1", "MAN2");
+    }
+
+    @Benchmark
+    public String addAcmouiVersion() {
+        return AcmoUtil.addAcmouiVersion(acmoLine, "1.2.3");
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,22 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+/**
+ * The non-blocking form of {@link AcmoTranslator}. The ACMO version comes
+ * with each call, so one translator can run many translations at once.
+ */
+public interface AcmoAsyncTranslator {
+
+    /**
+     * Start the translation of a folder and return at once.
+     *
+     * @param sourceFolder the folder with the model outputs
+     * @param destFolder the folder for the ACMO CSV file
+     * @param context the settings of this translation
+     * @param callback notified when the translation is done, can be null
+     * @return the pending file produced by the translator
+     */
+    public Future<File> executeAsync(String sourceFolder, String destFolder, AcmoTranslationContext context, AcmoTranslationCallback callback);
+}
@@ -0,0 +1,358 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a batch of {@link AcmoTranslator} jobs with a bounded number of
+ * concurrent jobs.
+ *
+ * Every job gets its own {@link Result}, so a failing folder does not stop
+ * the others, and the results are returned in the order of the jobs. A
+ * translator instance used by several jobs is called concurrently, so
+ * translators which are not thread-safe should get one instance per job.
+ * A job throwing an {@link Error} fails like any other job, only a
+ * {@link VirtualMachineError} stops the batch.
+ */
+public class AcmoBatchRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoBatchRunner.class);
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    private final int maxConcurrency;
+    private Listener listener = null;
+    private final Object lock = new Object();
+    // The cancellation flag of each running batch
+    private final ArrayList<AtomicBoolean> batches = new ArrayList<AtomicBoolean>();
+    private AtomicBoolean lastBatch = null;
+    private boolean cancelPending = false;
+
+    /**
+     * @param maxConcurrency the maximum number of jobs run at the same time
+     */
+    public AcmoBatchRunner(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Set the listener notified of the progress of the batch, from the
+     * threads running the jobs.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Cancel the running batches: the jobs not started yet are skipped and
+     * reported as {@link Status#CANCELLED}, the running jobs are left to
+     * finish so no output folder is left half written. When no batch is
+     * running, the next one is cancelled instead. Can be called from any
+     * thread, including the listener.
+     */
+    public void cancel() {
+        synchronized (lock) {
+            if (batches.isEmpty()) {
+                cancelPending = true;
+            }
+            for (AtomicBoolean cancelled : batches) {
+                cancelled.set(true);
+            }
+        }
+    }
+
+    /**
+     * @return true if the last batch started was cancelled, or the next one
+     * will be
+     */
+    public boolean isCancelled() {
+        synchronized (lock) {
+            return cancelPending || (lastBatch != null && lastBatch.get());
+        }
+    }
+
+    /**
+     * Run the jobs and wait for all of them.
+     *
+     * @param jobs the jobs to run
+     * @return the result of each job, in the order of the jobs
+     * @throws InterruptedException if the calling thread is interrupted,
+     * the batch is cancelled then, once its running jobs are done
+     */
+    public List<Result> run(List<Job> jobs) throws InterruptedException {
+        final AtomicBoolean cancelled;
+        synchronized (lock) {
+            cancelled = new AtomicBoolean(cancelPending);
+            cancelPending = false;
+            batches.add(cancelled);
+            lastBatch = cancelled;
+        }
+        try {
+            return run(jobs, cancelled);
+        } finally {
+            synchronized (lock) {
+                batches.remove(cancelled);
+            }
+        }
+    }
+
+    private List<Result> run(List<Job> jobs, final AtomicBoolean cancelled) throws InterruptedException {
+        final int total = jobs.size();
+        ArrayList<Result> results = new ArrayList<Result>(total);
+        if (total == 0) {
+            return results;
+        }
+        final AtomicInteger completed = new AtomicInteger();
+        final int poolId = poolCount.incrementAndGet();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxConcurrency, total), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "acmo-batch-" + poolId + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>(total);
+            for (int i = 0; i < total; i++) {
+                final Job job = jobs.get(i);
+                final int index = i;
+                futures.add(pool.submit(new Callable<Result>() {
+                    public Result call() {
+                        Result result = runJob(job, index, cancelled);
+                        notifyFinished(result, completed.incrementAndGet(), total);
+                        return result;
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    // Only VM and listener errors escape from the jobs
+                    cancelled.set(true);
+                    throw (Error) ex.getCause();
+                }
+            }
+            return results;
+        } catch (InterruptedException ex) {
+            cancelled.set(true);
+            throw ex;
+        } finally {
+            pool.shutdown();
+            awaitTermination(pool);
+        }
+    }
+
+    /**
+     * Wait for the running jobs, so none is left writing once the batch
+     * returns, keeping the interrupt of the calling thread.
+     */
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param results the results of a batch
+     * @return the produced files, in the order of the jobs, skipping the
+     * jobs which did not produce one
+     */
+    public static List<File> getFiles(List<Result> results) {
+        ArrayList<File> files = new ArrayList<File>();
+        for (Result result : results) {
+            if (result.getFile() != null) {
+                files.add(result.getFile());
+            }
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    private Result runJob(Job job, int index, AtomicBoolean cancelled) {
+        if (cancelled.get()) {
+            return new Result(job, index, Status.CANCELLED, null, null);
+        }
+        if (listener != null) {
+            try {
+                listener.jobStarted(job, index);
+            } catch (RuntimeException ex) {
+                log.warn("ACMO batch listener failed: {}", ex.getMessage());
+            }
+        }
+        try {
+            File file = job.getTranslator().execute(job.getSourceFolder(), job.getDestFolder());
+            return new Result(job, index, file == null ? Status.FAILED : Status.SUCCEEDED, file, null);
+        } catch (VirtualMachineError ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            log.error("ACMO translation of {} failed: {}", job.getSourceFolder(), ex.toString());
+            return new Result(job, index, Status.FAILED, null, ex);
+        }
+    }
+
+    private void notifyFinished(Result result, int completed, int total) {
+        if (listener != null) {
+            try {
+                listener.jobFinished(result, completed, total);
+            } catch (RuntimeException ex) {
+                log.warn("ACMO batch listener failed: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A translator to run on a source folder.
+     */
+    public static class Job {
+
+        private final AcmoTranslator translator;
+        private final String sourceFolder;
+        private final String destFolder;
+
+        public Job(AcmoTranslator translator, String sourceFolder, String destFolder) {
+            if (translator == null) {
+                throw new IllegalArgumentException("A translator is required");
+            }
+            this.translator = translator;
+            this.sourceFolder = sourceFolder;
+            this.destFolder = destFolder;
+        }
+
+        public AcmoTranslator getTranslator() {
+            return translator;
+        }
+
+        public String getSourceFolder() {
+            return sourceFolder;
+        }
+
+        public String getDestFolder() {
+            return destFolder;
+        }
+    }
+
+    public enum Status {
+
+        /**
+         * The translator returned a file
+         */
+        SUCCEEDED,
+        /**
+         * The translator returned null or threw an exception
+         */
+        FAILED,
+        /**
+         * The batch was cancelled before the job started
+         */
+        CANCELLED
+    }
+
+    /**
+     * The outcome of a job.
+     */
+    public static class Result {
+
+        private final Job job;
+        private final int index;
+        private final Status status;
+        private final File file;
+        private final Throwable error;
+
+        private Result(Job job, int index, Status status, File file, Throwable error) {
+            this.job = job;
+            this.index = index;
+            this.status = status;
+            this.file = file;
+            this.error = error;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * @return the position of the job in the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isSucceeded() {
+            return status == Status.SUCCEEDED;
+        }
+
+        /**
+         * @return the file produced by the translator, or null
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the exception or error thrown by the translator, or null
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Receives the progress of a batch.
+     */
+    public interface Listener {
+
+        /**
+         * Called before a job is run.
+         *
+         * @param job the job
+         * @param index the position of the job in the batch
+         */
+        public void jobStarted(Job job, int index);
+
+        /**
+         * Called once a job is done, failed or cancelled.
+         *
+         * @param result the result of the job
+         * @param completed the number of jobs done so far
+         * @param total the number of jobs in the batch
+         */
+        public void jobFinished(Result result, int completed, int total);
+    }
+}
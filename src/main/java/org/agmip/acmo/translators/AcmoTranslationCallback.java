@@ -0,0 +1,23 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+
+/**
+ * Receives the outcome of an asynchronous translation, on the thread which
+ * ran it, or on the thread cancelling it when the translation is cancelled.
+ */
+public interface AcmoTranslationCallback {
+
+    /**
+     * @param file the file produced by the translator, null when the
+     * translator did not produce one
+     */
+    public void completed(File file);
+
+    /**
+     * @param error the exception thrown by the translator, or a
+     * {@link java.util.concurrent.CancellationException} when the
+     * translation was cancelled
+     */
+    public void failed(Throwable error);
+}
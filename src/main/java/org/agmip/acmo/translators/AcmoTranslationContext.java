@@ -0,0 +1,22 @@
+package org.agmip.acmo.translators;
+
+/**
+ * The settings of a single translation, passed along with the call instead
+ * of being stored in the translator.
+ */
+public class AcmoTranslationContext {
+
+    private final String acmoVersion;
+
+    /**
+     * @param acmoVersion the version of the ACMO tool recorded in the
+     * output, or null to leave it unset
+     */
+    public AcmoTranslationContext(String acmoVersion) {
+        this.acmoVersion = acmoVersion;
+    }
+
+    public String getAcmoVersion() {
+        return acmoVersion;
+    }
+}
@@ -0,0 +1,139 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs synchronous {@link AcmoTranslator}s as an
+ * {@link AcmoAsyncTranslator} on a given executor.
+ *
+ * With a factory, every call gets a fresh translator and the calls run
+ * fully in parallel. With a single translator that is
+ * {@link AcmoVersionRecordable}, recording the version and translating is
+ * done under a lock on the translator, so a call never runs with the
+ * version of another one, and a call without a version records null;
+ * such calls run one at a time, whatever the number of threads of the
+ * executor, and a warning is logged when the executor has several. Other
+ * translators are called concurrently and must be thread-safe.
+ *
+ * The callback is notified on the thread which ran the translation, or on
+ * the thread calling {@link Future#cancel(boolean)} when the translation
+ * is cancelled.
+ */
+public class AcmoTranslatorAdapter implements AcmoAsyncTranslator {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoTranslatorAdapter.class);
+    private final AcmoTranslator translator;
+    private final AcmoTranslatorFactory factory;
+    private final Executor executor;
+
+    /**
+     * @param translator the translator shared by all the calls
+     * @param executor the executor running the translations
+     */
+    public AcmoTranslatorAdapter(AcmoTranslator translator, Executor executor) {
+        this(translator, null, executor);
+        if (translator == null) {
+            throw new IllegalArgumentException("A translator is required");
+        }
+        if (translator instanceof AcmoVersionRecordable && getMaxThreads(executor) > 1) {
+            log.warn("The shared {} records the ACMO version, its translations run one at a time on the {} threads of the executor; use a translator factory to run them in parallel",
+                    translator.getClass().getSimpleName(), getMaxThreads(executor));
+        }
+    }
+
+    /**
+     * @param factory the factory creating a translator for each call
+     * @param executor the executor running the translations
+     */
+    public AcmoTranslatorAdapter(AcmoTranslatorFactory factory, Executor executor) {
+        this(null, factory, executor);
+        if (factory == null) {
+            throw new IllegalArgumentException("A translator factory is required");
+        }
+    }
+
+    private AcmoTranslatorAdapter(AcmoTranslator translator, AcmoTranslatorFactory factory, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("An executor is required");
+        }
+        this.translator = translator;
+        this.factory = factory;
+        this.executor = executor;
+    }
+
+    public Future<File> executeAsync(final String sourceFolder, final String destFolder, final AcmoTranslationContext context, final AcmoTranslationCallback callback) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            public File call() {
+                if (factory != null) {
+                    return execute(factory.newTranslator(), sourceFolder, destFolder, context);
+                } else if (translator instanceof AcmoVersionRecordable) {
+                    synchronized (translator) {
+                        return execute(translator, sourceFolder, destFolder, context);
+                    }
+                } else {
+                    return execute(translator, sourceFolder, destFolder, context);
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                // On the thread calling cancel() for a cancelled task
+                if (callback != null) {
+                    notifyCallback(this, callback);
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return the maximum number of threads of the executor, 0 if unknown
+     */
+    static int getMaxThreads(Executor executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        }
+        return 0;
+    }
+
+    private static File execute(AcmoTranslator translator, String sourceFolder, String destFolder, AcmoTranslationContext context) {
+        if (translator instanceof AcmoVersionRecordable) {
+            ((AcmoVersionRecordable) translator).recordAcmoVersion(context == null ? null : context.getAcmoVersion());
+        }
+        return translator.execute(sourceFolder, destFolder);
+    }
+
+    private static void notifyCallback(Future<File> task, AcmoTranslationCallback callback) {
+        try {
+            File file;
+            try {
+                file = task.get();
+            } catch (CancellationException ex) {
+                callback.failed(ex);
+                return;
+            } catch (ExecutionException ex) {
+                callback.failed(ex.getCause());
+                return;
+            } catch (InterruptedException ex) {
+                // The task is done, get() does not wait
+                Thread.currentThread().interrupt();
+                callback.failed(ex);
+                return;
+            }
+            callback.completed(file);
+        } catch (RuntimeException ex) {
+            log.warn("ACMO translation callback failed: {}", ex.getMessage());
+        }
+    }
+}
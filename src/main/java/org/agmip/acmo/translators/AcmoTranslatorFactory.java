@@ -0,0 +1,10 @@
+package org.agmip.acmo.translators;
+
+/**
+ * Creates translator instances, for translators which keep some state for
+ * the duration of a call.
+ */
+public interface AcmoTranslatorFactory {
+
+    public AcmoTranslator newTranslator();
+}
@@ -0,0 +1,213 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link Writer} encoding its characters as UTF-8 straight into a
+ * {@link WritableByteChannel}.
+ *
+ * The characters are collected in a buffer of the given size and encoded
+ * into a byte buffer of the same size, which is only written to the
+ * channel when full. For plain files the byte buffer is direct, so the
+ * {@link FileChannel} writes it without an extra copy.
+ *
+ * A writer is not thread-safe.
+ */
+public class AcmoChannelWriter extends Writer {
+
+    /**
+     * The default buffer size, 64K
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private final WritableByteChannel channel;
+    private final OutputStream stream;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private long bytesWritten = 0;
+    private boolean closed = false;
+
+    /**
+     * @param channel the channel to write to
+     * @param bufferSize the size of the character and byte buffers
+     */
+    public AcmoChannelWriter(WritableByteChannel channel, int bufferSize) {
+        this(channel, null, bufferSize, true);
+    }
+
+    private AcmoChannelWriter(WritableByteChannel channel, OutputStream stream, int bufferSize, boolean direct) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        this.channel = channel;
+        this.stream = stream;
+        // Same handling of bad characters as the java.io writers
+        this.encoder = UTF8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.bytes = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Open a writer on the given file, replacing its content.
+     *
+     * @param file the file to write
+     * @param bufferSize the size of the character and byte buffers
+     * @param compressed true for writing the file gzip-compressed
+     * @return the writer
+     * @throws IOException if the file could not be opened
+     */
+    public static AcmoChannelWriter open(File file, int bufferSize, boolean compressed) throws IOException {
+        return open(file, bufferSize, compressed, false);
+    }
+
+    /**
+     * Open a writer on the given file. A compressed file is appended as a
+     * new gzip member, which gzip readers read as one stream.
+     *
+     * @param file the file to write
+     * @param bufferSize the size of the character and byte buffers
+     * @param compressed true for writing the file gzip-compressed
+     * @param append true for writing after the content of the file
+     * @return the writer
+     * @throws IOException if the file could not be opened
+     */
+    static AcmoChannelWriter open(File file, int bufferSize, boolean compressed, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        if (!compressed) {
+            return new AcmoChannelWriter(out.getChannel(), null, bufferSize, true);
+        }
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(out.getChannel()), bufferSize);
+            return new AcmoChannelWriter(Channels.newChannel(gzip), gzip, bufferSize, false);
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int n = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        int end = off + len;
+        while (off < end) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int n = Math.min(end - off, chars.remaining());
+            chars.put(str, off, off + n);
+            off += n;
+        }
+    }
+
+    /**
+     * @return the number of bytes written so far, before compression and
+     * including the buffered ones
+     * @throws IOException if the buffered characters could not be encoded
+     */
+    public long getBytesWritten() throws IOException {
+        if (!closed) {
+            encode(false);
+        }
+        return bytesWritten + bytes.position();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        encode(false);
+        drain();
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Encode the buffered characters, an unpaired high surrogate at the
+     * end is kept for the next call unless it is the end of input.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        chars.compact();
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            bytesWritten += channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
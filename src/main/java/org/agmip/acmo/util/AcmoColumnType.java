@@ -0,0 +1,47 @@
+package org.agmip.acmo.util;
+
+/**
+ * The value type of an ACMO column, from the units and type row of the
+ * header generated by {@link AcmoUtil#generateAcmoHeader()}.
+ */
+public enum AcmoColumnType {
+
+    /**
+     * Free text, {@code text}
+     */
+    TEXT,
+    /**
+     * A code from a code list, {@code code}
+     */
+    CODE,
+    /**
+     * A number, {@code number} or any unit like {@code kg/ha}
+     */
+    NUMBER,
+    /**
+     * A date, {@code yyyy-mm-dd}
+     */
+    DATE;
+
+    /**
+     * Get the column type for the unit or type declared in the header.
+     *
+     * @param unit the unit or type from the header
+     * @return the column type, {@code TEXT} for an unknown or missing unit
+     */
+    public static AcmoColumnType fromUnit(String unit) {
+        if (unit == null) {
+            return TEXT;
+        }
+        unit = unit.trim();
+        if (unit.isEmpty() || unit.equals("!") || unit.equalsIgnoreCase("text")) {
+            return TEXT;
+        } else if (unit.equalsIgnoreCase("code")) {
+            return CODE;
+        } else if (unit.equalsIgnoreCase("yyyy-mm-dd")) {
+            return DATE;
+        } else {
+            return NUMBER;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.agmip.acmo.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * The layout of the columnar ACMO file, shared by
+ * {@link AcmoColumnarWriter} and {@link AcmoColumnarReader}.
+ *
+ * <pre>
+ * file      = MAGIC VERSION header columns group* 0
+ * header    = string, the header rows of the CSV form
+ * columns   = count, (string name, byte type)*
+ * group     = rows, cell count*, chunk* (one per column)
+ * chunk     = ENC_DICT size (byte kind, string value)* index*
+ *           | ENC_NUMBER (byte 0 | byte 1+scale, zigzag unscaled)*
+ *           | ENC_DATE (0 | yyyymmdd + 1)*
+ * </pre>
+ *
+ * The counts and indexes are unsigned varints and the strings are
+ * UTF-8 prefixed by their byte length. A chunk only holds the rows that
+ * have a cell in its column.
+ */
+final class AcmoColumnarFormat {
+
+    static final int MAGIC = 0x41434d43;
+    static final int VERSION = 1;
+    static final int ENC_DICT = 0;
+    static final int ENC_NUMBER = 1;
+    static final int ENC_DATE = 2;
+    /**
+     * Dictionary entry written as it is
+     */
+    static final int KIND_PLAIN = 0;
+    /**
+     * Dictionary entry written wrapped in quotes and escaped
+     */
+    static final int KIND_QUOTED = 1;
+    /**
+     * Dictionary entry holding a raw cell that does not round trip
+     * through the escaping
+     */
+    static final int KIND_RAW = 2;
+    static final int MAX_DIGITS = 18;
+
+    /**
+     * Do not instantiate
+     */
+    private AcmoColumnarFormat() {}
+
+    /**
+     * Get the columns from the header rows: the names from the {@code #}
+     * row and the types from the {@code !} row just before it.
+     *
+     * @param header the header rows
+     * @param names the list for the column names
+     * @param types the list for the column types
+     */
+    static void parseSchema(String header, ArrayList<String> names, ArrayList<AcmoColumnType> types) {
+        names.clear();
+        types.clear();
+        ArrayList<String> units = new ArrayList<String>();
+        ArrayList<String> cells = new ArrayList<String>();
+        for (String line : header.split("\n")) {
+            AcmoCsv.split(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line, cells);
+            if ("!".equals(cells.get(0))) {
+                units.clear();
+                units.addAll(cells);
+            } else if ("#".equals(cells.get(0)) && names.isEmpty()) {
+                for (int i = 0; i < cells.size(); i++) {
+                    names.add(AcmoCsv.unquote(cells.get(i)));
+                    types.add(AcmoColumnType.fromUnit(i < units.size() ? AcmoCsv.unquote(units.get(i)) : null));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param unscaled the unscaled value
+     * @param scale the number of decimals
+     * @return the number as plain text
+     */
+    static String formatNumber(long unscaled, int scale) {
+        String digits = Long.toString(Math.abs(unscaled));
+        if (scale == 0) {
+            return unscaled < 0 ? "-" + digits : digits;
+        }
+        StringBuilder sb = new StringBuilder(digits.length() + 3);
+        if (unscaled < 0) {
+            sb.append('-');
+        }
+        int intDigits = digits.length() - scale;
+        if (intDigits > 0) {
+            sb.append(digits, 0, intDigits);
+        } else {
+            sb.append('0');
+        }
+        sb.append('.');
+        for (int i = intDigits; i < 0; i++) {
+            sb.append('0');
+        }
+        sb.append(digits, Math.max(intDigits, 0), digits.length());
+        return sb.toString();
+    }
+
+    /**
+     * @param yyyymmdd the date as a number
+     * @return the date as yyyy-mm-dd
+     */
+    static String formatDate(int yyyymmdd) {
+        char[] c = new char[10];
+        int v = yyyymmdd;
+        for (int i = 9; i >= 0; i--) {
+            if (i == 4 || i == 7) {
+                c[i] = '-';
+            } else {
+                c[i] = (char) ('0' + v % 10);
+                v /= 10;
+            }
+        }
+        return new String(c);
+    }
+
+    /**
+     * @param text the date text
+     * @return the date as yyyymmdd, or -1 if the text is not yyyy-mm-dd
+     */
+    static int parseDate(String text) {
+        if (text.length() != 10) {
+            return -1;
+        }
+        int v = 0;
+        for (int i = 0; i < 10; i++) {
+            char c = text.charAt(i);
+            if (i == 4 || i == 7) {
+                if (c != '-') {
+                    return -1;
+                }
+            } else if (c >= '0' && c <= '9') {
+                v = v * 10 + (c - '0');
+            } else {
+                return -1;
+            }
+        }
+        return v;
+    }
+
+    static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeVarInt(OutputStream out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        long v = readVarLong(in);
+        if (v > Integer.MAX_VALUE) {
+            throw new IOException("Value out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    static void writeZigZag(OutputStream out, long v) throws IOException {
+        writeVarLong(out, (v << 1) ^ (v >> 63));
+    }
+
+    static long readZigZag(InputStream in) throws IOException {
+        long v = readVarLong(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static void writeString(OutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(AcmoChannelWriter.UTF8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        readFully(in, bytes);
+        return new String(bytes, AcmoChannelWriter.UTF8);
+    }
+
+    static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of columnar ACMO file");
+        }
+        return b;
+    }
+
+    static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            int n = in.read(bytes, off, bytes.length - off);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of columnar ACMO file");
+            }
+            off += n;
+        }
+    }
+}
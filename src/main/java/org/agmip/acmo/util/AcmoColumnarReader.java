@@ -0,0 +1,430 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+
+import static org.agmip.acmo.util.AcmoColumnarFormat.*;
+
+/**
+ * Reads the columnar ACMO files written by {@link AcmoColumnarWriter}.
+ *
+ * The rows are read one group at a time and visited with
+ * {@link #nextRow()}. The cells are available as text, the way they read
+ * in the CSV form, or typed as numbers and dates without parsing any
+ * text when their column chunk was stored with the primitive encoding.
+ *
+ * A reader is not thread-safe.
+ */
+public class AcmoColumnarReader implements Closeable {
+
+    private final InputStream in;
+    private final String header;
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<AcmoColumnType> types = new ArrayList<AcmoColumnType>();
+    private final Column[] columns;
+    private int[] cellCounts = new int[0];
+    private int groupRows = 0;
+    private int row = -1;
+    private boolean finished = false;
+
+    /**
+     * @param in the stream to read from
+     * @throws IOException if the stream is not a columnar ACMO file
+     */
+    public AcmoColumnarReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 64 * 1024);
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | readByte(this.in);
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a columnar ACMO file");
+        }
+        int version = readByte(this.in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported columnar ACMO version: " + version);
+        }
+        header = readString(this.in);
+        int count = readVarInt(this.in);
+        AcmoColumnType[] allTypes = AcmoColumnType.values();
+        for (int i = 0; i < count; i++) {
+            names.add(readString(this.in));
+            int type = readByte(this.in);
+            if (type >= allTypes.length) {
+                throw new IOException("Unknown column type: " + type);
+            }
+            types.add(allTypes[type]);
+        }
+        columns = new Column[count];
+    }
+
+    /**
+     * @param file the columnar ACMO file
+     * @throws IOException if the file could not be opened or is not a
+     * columnar ACMO file
+     */
+    public AcmoColumnarReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Convert a columnar ACMO file back to the CSV form.
+     *
+     * @param file the columnar ACMO file
+     * @param csvFile the ACMO CSV file to write
+     * @return the number of rows written
+     * @throws IOException if the conversion failed
+     */
+    public static long convert(File file, File csvFile) throws IOException {
+        AcmoColumnarReader reader = new AcmoColumnarReader(file);
+        try {
+            AcmoChannelWriter out = AcmoChannelWriter.open(csvFile, AcmoChannelWriter.DEFAULT_BUFFER_SIZE, false);
+            try {
+                return reader.writeCsv(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the header rows of the CSV form
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    public String getColumnName(int col) {
+        return names.get(col);
+    }
+
+    public AcmoColumnType getColumnType(int col) {
+        return types.get(col);
+    }
+
+    /**
+     * @param name the variable name, like {@code EXNAME}
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return false when there are no more rows
+     * @throws IOException if the file could not be read
+     */
+    public boolean nextRow() throws IOException {
+        if (row + 1 < groupRows) {
+            row++;
+            return true;
+        }
+        while (!finished) {
+            readGroup();
+            if (groupRows > 0) {
+                row = 0;
+                return true;
+            }
+        }
+        row = -1;
+        return false;
+    }
+
+    /**
+     * @return the number of cells in the current row, the columns after
+     * them are absent
+     */
+    public int getCellCount() {
+        checkRow();
+        return cellCounts[row];
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell value, or null if the row has no such cell
+     */
+    public String getString(int col) {
+        if (!hasCell(col)) {
+            return null;
+        }
+        return columns[col].value(row);
+    }
+
+    /**
+     * @param col the column index
+     * @return true if the cell is absent or empty
+     */
+    public boolean isEmpty(int col) {
+        return !hasCell(col) || columns[col].isEmpty(row);
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell as a number, or null if it is absent or empty
+     * @throws NumberFormatException if the cell is not a number
+     */
+    public BigDecimal getDecimal(int col) {
+        if (isEmpty(col)) {
+            return null;
+        }
+        return columns[col].decimal(row);
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell as a {@code yyyymmdd} number, or 0 if it is absent
+     * or empty
+     * @throws NumberFormatException if the cell is not a yyyy-mm-dd date
+     */
+    public int getDate(int col) {
+        if (isEmpty(col)) {
+            return 0;
+        }
+        return columns[col].date(row);
+    }
+
+    /**
+     * @return the current row in the CSV form, without the line break
+     */
+    public String getRow() {
+        checkRow();
+        StringBuilder sb = new StringBuilder(256);
+        appendRow(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Write the header and the remaining rows in the CSV form.
+     *
+     * @param out the writer
+     * @return the number of rows written
+     * @throws IOException if the file could not be read or the writer fails
+     */
+    public long writeCsv(Writer out) throws IOException {
+        out.write(header);
+        long count = 0;
+        StringBuilder sb = new StringBuilder(512);
+        while (nextRow()) {
+            sb.setLength(0);
+            appendRow(sb);
+            sb.append('\n');
+            out.write(sb.toString());
+            count++;
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void appendRow(StringBuilder sb) {
+        int n = cellCounts[row];
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(columns[i].raw(row));
+        }
+    }
+
+    private boolean hasCell(int col) {
+        checkRow();
+        return col < cellCounts[row];
+    }
+
+    private void checkRow() {
+        if (row < 0) {
+            throw new IllegalStateException("No current row");
+        }
+    }
+
+    private void readGroup() throws IOException {
+        groupRows = readVarInt(in);
+        if (groupRows == 0) {
+            finished = true;
+            return;
+        }
+        if (cellCounts.length < groupRows) {
+            cellCounts = new int[groupRows];
+        }
+        for (int i = 0; i < groupRows; i++) {
+            cellCounts[i] = readVarInt(in);
+        }
+        for (int c = 0; c < columns.length; c++) {
+            int encoding = readByte(in);
+            switch (encoding) {
+                case ENC_DICT:
+                    columns[c] = new DictColumn();
+                    break;
+                case ENC_NUMBER:
+                    columns[c] = new NumberColumn();
+                    break;
+                case ENC_DATE:
+                    columns[c] = new DateColumn();
+                    break;
+                default:
+                    throw new IOException("Unknown column encoding: " + encoding);
+            }
+            columns[c].read(in, cellCounts, groupRows, c);
+        }
+    }
+
+    private static abstract class Column {
+
+        /**
+         * Read the chunk, the rows without a cell in the column are
+         * skipped.
+         */
+        abstract void read(InputStream in, int[] cellCounts, int rows, int col) throws IOException;
+
+        abstract String value(int row);
+
+        abstract String raw(int row);
+
+        boolean isEmpty(int row) {
+            return value(row).isEmpty();
+        }
+
+        BigDecimal decimal(int row) {
+            return new BigDecimal(value(row));
+        }
+
+        int date(int row) {
+            String value = value(row);
+            int date = parseDate(value);
+            if (date < 0) {
+                throw new NumberFormatException("Not a yyyy-mm-dd date: " + value);
+            }
+            return date;
+        }
+    }
+
+    private static class DictColumn extends Column {
+
+        private String[] values;
+        private int[] kinds;
+        private int[] index;
+
+        void read(InputStream in, int[] cellCounts, int rows, int col) throws IOException {
+            int size = readVarInt(in);
+            values = new String[size];
+            kinds = new int[size];
+            for (int i = 0; i < size; i++) {
+                kinds[i] = readByte(in);
+                values[i] = readString(in);
+            }
+            index = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                if (col < cellCounts[r]) {
+                    int i = readVarInt(in);
+                    if (i >= size) {
+                        throw new IOException("Dictionary index out of range: " + i);
+                    }
+                    index[r] = i;
+                }
+            }
+        }
+
+        String value(int row) {
+            int i = index[row];
+            return kinds[i] == KIND_RAW ? AcmoCsv.unquote(values[i]) : values[i];
+        }
+
+        String raw(int row) {
+            int i = index[row];
+            return kinds[i] == KIND_QUOTED ? AcmoCsv.quote(values[i]) : values[i];
+        }
+    }
+
+    private static class NumberColumn extends Column {
+
+        // 0 for an empty cell, otherwise the scale + 1
+        private byte[] tags;
+        private long[] unscaled;
+
+        void read(InputStream in, int[] cellCounts, int rows, int col) throws IOException {
+            tags = new byte[rows];
+            unscaled = new long[rows];
+            for (int r = 0; r < rows; r++) {
+                if (col < cellCounts[r]) {
+                    tags[r] = (byte) readByte(in);
+                    if (tags[r] != 0) {
+                        unscaled[r] = readZigZag(in);
+                    }
+                }
+            }
+        }
+
+        @Override
+        boolean isEmpty(int row) {
+            return tags[row] == 0;
+        }
+
+        String value(int row) {
+            return tags[row] == 0 ? "" : formatNumber(unscaled[row], tags[row] - 1);
+        }
+
+        String raw(int row) {
+            return value(row);
+        }
+
+        @Override
+        BigDecimal decimal(int row) {
+            return BigDecimal.valueOf(unscaled[row], tags[row] - 1);
+        }
+    }
+
+    private static class DateColumn extends Column {
+
+        // 0 for an empty cell, otherwise yyyymmdd + 1
+        private int[] dates;
+
+        void read(InputStream in, int[] cellCounts, int rows, int col) throws IOException {
+            dates = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                if (col < cellCounts[r]) {
+                    dates[r] = readVarInt(in);
+                }
+            }
+        }
+
+        @Override
+        boolean isEmpty(int row) {
+            return dates[row] == 0;
+        }
+
+        String value(int row) {
+            return dates[row] == 0 ? "" : formatDate(dates[row] - 1);
+        }
+
+        String raw(int row) {
+            return value(row);
+        }
+
+        @Override
+        int date(int row) {
+            return dates[row] - 1;
+        }
+    }
+}
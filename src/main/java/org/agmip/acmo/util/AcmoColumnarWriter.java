@@ -0,0 +1,333 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.agmip.acmo.util.AcmoColumnarFormat.*;
+
+/**
+ * Writes ACMO rows in a compact columnar binary form, the companion of the
+ * ACMO_meta.dat CSV file.
+ *
+ * The column schema is taken from the header rows, like the ones from
+ * {@link AcmoUtil#generateAcmoHeader()}. The rows are stored in groups and
+ * each column of a group is encoded by its type: number columns as scaled
+ * {@code long}s, date columns as {@code yyyymmdd} integers, and everything
+ * else with a dictionary of the distinct cells of the group. A number or
+ * date chunk holding a cell that does not convert back to the same text
+ * falls back to the dictionary, so {@link AcmoColumnarReader} can always
+ * rebuild the CSV form exactly.
+ *
+ * A writer is not thread-safe.
+ */
+public class AcmoColumnarWriter implements Closeable {
+
+    /**
+     * The default number of rows in a group, 8192
+     */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 8192;
+    private final OutputStream out;
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<AcmoColumnType> types = new ArrayList<AcmoColumnType>();
+    private final ArrayList<ArrayList<String>> chunks = new ArrayList<ArrayList<String>>();
+    private final int[] cellCounts;
+    private final ArrayList<String> cells = new ArrayList<String>();
+    private int groupRows = 0;
+    private long rowCount = 0;
+    private boolean closed = false;
+    // The last number parsed by parseNumber()
+    private long parsedUnscaled;
+    private int parsedScale;
+
+    /**
+     * @param out the stream to write to
+     * @param header the header rows of the ACMO file
+     * @throws IOException if the header has no {@code #} row or could not
+     * be written
+     */
+    public AcmoColumnarWriter(OutputStream out, String header) throws IOException {
+        this(out, header, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param header the header rows of the ACMO file
+     * @param rowGroupSize the number of rows in a group
+     * @throws IOException if the header has no {@code #} row or could not
+     * be written
+     */
+    public AcmoColumnarWriter(OutputStream out, String header, int rowGroupSize) throws IOException {
+        if (rowGroupSize < 1) {
+            throw new IllegalArgumentException("Row group size must be positive: " + rowGroupSize);
+        }
+        parseSchema(header, names, types);
+        if (names.isEmpty()) {
+            throw new IOException("No variable name row (#) in the ACMO header");
+        }
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.cellCounts = new int[rowGroupSize];
+        for (int i = 0; i < names.size(); i++) {
+            chunks.add(new ArrayList<String>());
+        }
+        this.out.write(MAGIC >>> 24);
+        this.out.write(MAGIC >>> 16);
+        this.out.write(MAGIC >>> 8);
+        this.out.write(MAGIC);
+        this.out.write(VERSION);
+        writeString(this.out, header);
+        writeVarInt(this.out, names.size());
+        for (int i = 0; i < names.size(); i++) {
+            writeString(this.out, names.get(i));
+            this.out.write(types.get(i).ordinal());
+        }
+    }
+
+    /**
+     * Convert an ACMO CSV file to the columnar form. The rows before the
+     * first data row ({@code *}) are the header.
+     *
+     * @param csvFile the ACMO CSV file, may be gzip-compressed
+     * @param outputFile the columnar file to write
+     * @return the number of rows written
+     * @throws IOException if the CSV file could not be read or converted
+     */
+    public static long convert(File csvFile, File outputFile) throws IOException {
+        Reader reader = AcmoUtil.openMetaReader(csvFile.getPath());
+        try {
+            FileOutputStream out = new FileOutputStream(outputFile);
+            try {
+                return convert(reader, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Convert ACMO CSV data to the columnar form. The rows before the first
+     * data row ({@code *}) are the header.
+     *
+     * @param csv the ACMO CSV data
+     * @param out the stream to write to, closed at the end
+     * @return the number of rows written
+     * @throws IOException if the CSV data could not be read or converted
+     */
+    public static long convert(Reader csv, OutputStream out) throws IOException {
+        BufferedReader in = new BufferedReader(csv);
+        StringBuilder header = new StringBuilder();
+        StringBuilder record = new StringBuilder();
+        boolean hasRow;
+        while ((hasRow = AcmoCsv.readRecord(in, record)) && !isDataRow(record)) {
+            header.append(record).append('\n');
+        }
+        AcmoColumnarWriter writer = new AcmoColumnarWriter(out, header.toString());
+        try {
+            while (hasRow) {
+                writer.writeRow(record);
+                hasRow = AcmoCsv.readRecord(in, record);
+            }
+        } finally {
+            writer.close();
+        }
+        return writer.getRowCount();
+    }
+
+    private static boolean isDataRow(CharSequence record) {
+        return record.length() > 0 && record.charAt(0) == '*'
+                && (record.length() == 1 || record.charAt(1) == ',');
+    }
+
+    /**
+     * Add a data row.
+     *
+     * @param row the row in the CSV form, like a line from
+     * {@link AcmoRowEncoder}, without the line break
+     * @throws IOException if the row is not a data row or could not be
+     * written
+     */
+    public void writeRow(CharSequence row) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (!isDataRow(row)) {
+            throw new IOException("Not an ACMO data row: " + row);
+        }
+        int n = AcmoCsv.split(row, cells);
+        if (n > names.size()) {
+            throw new IOException("ACMO row has " + n + " cells for " + names.size() + " columns");
+        }
+        for (int i = 0; i < n; i++) {
+            chunks.get(i).add(cells.get(i));
+        }
+        cellCounts[groupRows++] = n;
+        rowCount++;
+        if (groupRows == cellCounts.length) {
+            writeGroup();
+        }
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Write the pending rows and close the stream.
+     *
+     * @throws IOException if the rows could not be written
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (groupRows > 0) {
+                writeGroup();
+            }
+            writeVarInt(out, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeGroup() throws IOException {
+        writeVarInt(out, groupRows);
+        for (int i = 0; i < groupRows; i++) {
+            writeVarInt(out, cellCounts[i]);
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            ArrayList<String> chunk = chunks.get(i);
+            AcmoColumnType type = types.get(i);
+            if (type == AcmoColumnType.NUMBER && isNumberChunk(chunk)) {
+                writeNumberChunk(chunk);
+            } else if (type == AcmoColumnType.DATE && isDateChunk(chunk)) {
+                writeDateChunk(chunk);
+            } else {
+                writeDictChunk(chunk);
+            }
+            chunk.clear();
+        }
+        groupRows = 0;
+    }
+
+    private boolean isNumberChunk(ArrayList<String> chunk) {
+        for (String cell : chunk) {
+            if (!cell.isEmpty() && !parseNumber(cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeNumberChunk(ArrayList<String> chunk) throws IOException {
+        out.write(ENC_NUMBER);
+        for (String cell : chunk) {
+            if (cell.isEmpty()) {
+                out.write(0);
+            } else {
+                parseNumber(cell);
+                out.write(parsedScale + 1);
+                writeZigZag(out, parsedUnscaled);
+            }
+        }
+    }
+
+    private static boolean isDateChunk(ArrayList<String> chunk) {
+        for (String cell : chunk) {
+            if (!cell.isEmpty() && parseDate(cell) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeDateChunk(ArrayList<String> chunk) throws IOException {
+        out.write(ENC_DATE);
+        for (String cell : chunk) {
+            writeVarInt(out, cell.isEmpty() ? 0 : parseDate(cell) + 1);
+        }
+    }
+
+    private void writeDictChunk(ArrayList<String> chunk) throws IOException {
+        LinkedHashMap<String, Integer> dict = new LinkedHashMap<String, Integer>();
+        for (String cell : chunk) {
+            if (!dict.containsKey(cell)) {
+                dict.put(cell, dict.size());
+            }
+        }
+        out.write(ENC_DICT);
+        writeVarInt(out, dict.size());
+        for (Map.Entry<String, Integer> entry : dict.entrySet()) {
+            String raw = entry.getKey();
+            if (!AcmoCsv.isQuoted(raw)) {
+                out.write(KIND_PLAIN);
+                writeString(out, raw);
+            } else {
+                String value = AcmoCsv.unquote(raw);
+                if (AcmoCsv.quote(value).equals(raw)) {
+                    out.write(KIND_QUOTED);
+                    writeString(out, value);
+                } else {
+                    out.write(KIND_RAW);
+                    writeString(out, raw);
+                }
+            }
+        }
+        for (String cell : chunk) {
+            writeVarInt(out, dict.get(cell));
+        }
+    }
+
+    /**
+     * Parse a plain decimal ({@code [-]digits[.digits]}) with at most 18
+     * digits, which prints back to the same text, into
+     * {@code parsedUnscaled} and {@code parsedScale}.
+     *
+     * @return false if the cell can not be stored as a number
+     */
+    private boolean parseNumber(String cell) {
+        int len = cell.length();
+        int i = cell.charAt(0) == '-' ? 1 : 0;
+        long u = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < len; i++) {
+            char c = cell.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return false;
+                }
+                u = u * 10 + (c - '0');
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        parsedUnscaled = cell.charAt(0) == '-' ? -u : u;
+        parsedScale = scale;
+        // Leading zeros, "-0" or a trailing point would not print back
+        return formatNumber(parsedUnscaled, parsedScale).equals(cell);
+    }
+}
@@ -0,0 +1,120 @@
+package org.agmip.acmo.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Splitting and unquoting of ACMO CSV records.
+ *
+ * ACMO cells are either plain or wrapped in quotes with {@code "} and
+ * {@code \} doubled, as written by {@link AcmoRowEncoder}. The raw cells
+ * keep their quotes, so a record can be rebuilt exactly as it was read.
+ */
+final class AcmoCsv {
+
+    /**
+     * Do not instantiate
+     */
+    private AcmoCsv() {}
+
+    /**
+     * Read the next record, a quoted cell may hold line breaks. The line
+     * break ending the record is not kept.
+     *
+     * @param in the reader, should be buffered
+     * @param record the buffer for the record, cleared first
+     * @return false at the end of input
+     * @throws IOException if the reader fails
+     */
+    static boolean readRecord(Reader in, StringBuilder record) throws IOException {
+        record.setLength(0);
+        boolean inQuotes = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n' && !inQuotes) {
+                trimCarriageReturn(record);
+                return true;
+            }
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            }
+            record.append((char) c);
+        }
+        trimCarriageReturn(record);
+        return record.length() > 0;
+    }
+
+    private static void trimCarriageReturn(StringBuilder record) {
+        int len = record.length();
+        if (len > 0 && record.charAt(len - 1) == '\r') {
+            record.setLength(len - 1);
+        }
+    }
+
+    /**
+     * Split a record into its raw cells, quotes included.
+     *
+     * @param record the record
+     * @param cells the list for the cells, cleared first
+     * @return the number of cells
+     */
+    static int split(CharSequence record, ArrayList<String> cells) {
+        cells.clear();
+        String line = record.toString();
+        boolean inQuotes = false;
+        int start = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (c == ',' && !inQuotes) {
+                cells.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        cells.add(line.substring(start));
+        return cells.size();
+    }
+
+    /**
+     * @param raw the raw cell
+     * @return true if the cell is wrapped in quotes
+     */
+    static boolean isQuoted(String raw) {
+        return raw.length() > 1 && raw.charAt(0) == '"' && raw.charAt(raw.length() - 1) == '"';
+    }
+
+    /**
+     * @param raw the raw cell
+     * @return the cell value, with the quotes removed and the doubled
+     * {@code "} and {@code \} restored
+     */
+    static String unquote(String raw) {
+        if (!isQuoted(raw)) {
+            return raw;
+        }
+        int end = raw.length() - 1;
+        StringBuilder sb = new StringBuilder(end);
+        for (int i = 1; i < end; i++) {
+            char c = raw.charAt(i);
+            if ((c == '"' || c == '\\') && i + 1 < end && raw.charAt(i + 1) == c) {
+                i++;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param value the cell value
+     * @return the value wrapped in quotes, with {@code "} and {@code \}
+     * doubled
+     */
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        AcmoRowEncoder.appendEscaped(sb, value);
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,251 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+import org.agmip.util.MapUtil;
+
+/**
+ * The event aggregators for the ACMO columns.
+ */
+public class AcmoEventAggregators {
+
+    /**
+     * PDATE, CUL_ID, CUL_NAME and CRID (as full text) of the last planting
+     */
+    public static final EventAggregatorFactory PLANTING = new EventAggregatorFactory() {
+        public EventAggregator newAggregator(EventContext context) {
+            return new PlantingAggregator(context);
+        }
+    };
+    /**
+     * IR#C, IR_TOT and IROP_text
+     */
+    public static final EventAggregatorFactory IRRIGATION = new EventAggregatorFactory() {
+        public EventAggregator newAggregator(EventContext context) {
+            return new IrrigationAggregator(context);
+        }
+    };
+    /**
+     * FE_#, FEN_TOT, FEP_TOT and FEK_TOT
+     */
+    public static final EventAggregatorFactory FERTILIZER = new EventAggregatorFactory() {
+        public EventAggregator newAggregator(EventContext context) {
+            return new FertilizerAggregator(context);
+        }
+    };
+    /**
+     * OM_TOT
+     */
+    public static final EventAggregatorFactory ORGANIC_MATTER = new EventAggregatorFactory() {
+        public EventAggregator newAggregator(EventContext context) {
+            return new OrganicMatterAggregator(context);
+        }
+    };
+    /**
+     * TI_# and TIIMP_text
+     */
+    public static final EventAggregatorFactory TILLAGE = new EventAggregatorFactory() {
+        public EventAggregator newAggregator(EventContext context) {
+            return new TillageAggregator();
+        }
+    };
+
+    /**
+     * Do not instantiate
+     */
+    private AcmoEventAggregators() {}
+
+    private static class PlantingAggregator implements EventAggregator {
+
+        private static final String PDATE = AcePathfinderUtil.setEventDateVar("pdate", true);
+        private static final String CUL_NAME = AcePathfinderUtil.setEventDateVar("cul_name", true);
+        private static final String CUL_ID = AcePathfinderUtil.setEventDateVar("cul_id", true);
+        private final String modelCulId;
+        private HashMap<String, String> planting = null;
+
+        private PlantingAggregator(EventContext context) {
+            modelCulId = AcePathfinderUtil.setEventDateVar(context.getDestModel() + "_cul_id", true);
+        }
+
+        public void add(HashMap<String, String> event) {
+            // The last planting wins
+            planting = event;
+        }
+
+        public void complete(HashMap<String, String> results) {
+            if (planting == null) {
+                return;
+            }
+            results.put("pdate", MapUtil.getValueOr(planting, PDATE, ""));
+            results.put("cul_name", MapUtil.getValueOr(planting, CUL_NAME, ""));
+            results.put("cul_id", getCulId(planting, modelCulId));
+            results.put("crid", LookupCodeCache.getDefault().lookupCode("crid", MapUtil.getValueOr(planting, "crid", ""), "cn"));
+        }
+
+        private static String getCulId(HashMap<String, String> planting, String modelCulId) {
+            if (planting.containsKey(modelCulId)) {
+                return MapUtil.getValueOr(planting, modelCulId, "");
+            } else {
+                return MapUtil.getValueOr(planting, CUL_ID, "");
+            }
+        }
+    }
+
+    private static class IrrigationAggregator implements EventAggregator {
+
+        private final EventContext context;
+        private int irrCount = 0;
+        private boolean isAutoIrrigation = false;
+        private final FixedPointSum irrAmount = new FixedPointSum();
+        private final ArrayList<String> irop = new ArrayList<String>();
+
+        private IrrigationAggregator(EventContext context) {
+            this.context = context;
+        }
+
+        public void add(HashMap<String, String> event) {
+            String irval = MapUtil.getValueOr(event, "irval", "");
+            String sIrIpCode = MapUtil.getValueOr(event, "irop", "");
+            String sIrOp = LookupCodeCache.getDefault().lookupCode("irop", sIrIpCode, "cn");
+            boolean isPaddy = false;
+            if (sIrIpCode.equals("IR008") || sIrIpCode.equals("IR009") || sIrIpCode.equals("IR010")) {
+                isPaddy = true;
+            } else if (sIrIpCode.equals("IR011")) {
+                isAutoIrrigation = true;
+                isPaddy = true;
+            }
+            if (!isPaddy) {
+                irrCount++;
+                try {
+                    if (!irval.isEmpty()) {
+                        irrAmount.add(irval);
+                    }
+                } catch (Exception ex) {
+                    context.invalidValue("irval", irval);
+                    return;
+                }
+            }
+
+            if (! irop.contains(sIrOp)) {
+                irop.add(sIrOp);
+            }
+        }
+
+        public void complete(HashMap<String, String> results) {
+            if (isAutoIrrigation) {
+                results.put("ir_count", "auto");
+                results.put("ir_tot", "auto");
+                results.put("irop", joinList(irop, "|"));
+            } else if (irrCount > 0) {
+                results.put("ir_count", Integer.toString(irrCount));
+                results.put("ir_tot", irrAmount.toString());
+                results.put("irop", joinList(irop, "|"));
+            }
+        }
+    }
+
+    private static class FertilizerAggregator implements EventAggregator {
+
+        private final EventContext context;
+        private int feCount = 0;
+        private final FixedPointSum fenAmount = new FixedPointSum();
+        private final FixedPointSum fekAmount = new FixedPointSum();
+        private final FixedPointSum fepAmount = new FixedPointSum();
+
+        private FertilizerAggregator(EventContext context) {
+            this.context = context;
+        }
+
+        public void add(HashMap<String, String> event) {
+            feCount++;
+            // A bad amount skips the remaining amounts of the same event
+            if (add(fenAmount, event, "feamn") && add(fekAmount, event, "feamk")) {
+                add(fepAmount, event, "feamp");
+            }
+        }
+
+        private boolean add(FixedPointSum sum, HashMap<String, String> event, String var) {
+            String value = MapUtil.getValueOr(event, var, "");
+            try {
+                if (!value.isEmpty()) {
+                    sum.add(value);
+                }
+                return true;
+            } catch (Exception ex) {
+                context.invalidValue(var, value);
+                return false;
+            }
+        }
+
+        public void complete(HashMap<String, String> results) {
+            if (feCount > 0) {
+                results.put("fe_count", Integer.toString(feCount));
+                results.put("fen_tot", fenAmount.toString());
+                results.put("fek_tot", fekAmount.toString());
+                results.put("fep_tot", fepAmount.toString());
+            }
+        }
+    }
+
+    private static class OrganicMatterAggregator implements EventAggregator {
+
+        private final EventContext context;
+        private final FixedPointSum omAmount = new FixedPointSum();
+
+        private OrganicMatterAggregator(EventContext context) {
+            this.context = context;
+        }
+
+        public void add(HashMap<String, String> event) {
+            String omamt = MapUtil.getValueOr(event, "omamt", "");
+            if (! omamt.isEmpty()) {
+                try {
+                    omAmount.add(omamt);
+                } catch (Exception ex) {
+                    context.invalidValue("omamt", omamt);
+                }
+            }
+        }
+
+        public void complete(HashMap<String, String> results) {
+            String om_tot = omAmount.toString();
+            if (! om_tot.equals("0")) {
+                results.put("omamt", om_tot);
+            }
+        }
+    }
+
+    private static class TillageAggregator implements EventAggregator {
+
+        private int tilCount = 0;
+        private final ArrayList<String> timp = new ArrayList<String>();
+
+        public void add(HashMap<String, String> event) {
+            tilCount++;
+            String tiimp = LookupCodeCache.getDefault().lookupCode("tiimp", MapUtil.getValueOr(event, "tiimp", ""), "ca");
+            if (! timp.contains(tiimp)) {
+                timp.add(tiimp);
+            }
+        }
+
+        public void complete(HashMap<String, String> results) {
+            if (tilCount > 0) {
+                results.put("ti_count", Integer.toString(tilCount));
+                results.put("tiimp", joinList(timp, "|"));
+            }
+        }
+    }
+
+    private static String joinList(ArrayList<String> list, String joint) {
+        StringBuilder joinedList = new StringBuilder();
+        for (String item : list) {
+            joinedList.append(item);
+            joinedList.append(joint);
+        }
+        if (joinedList.length() > 0)
+            joinedList.setLength(joinedList.length()-1);
+        return joinedList.toString();
+    }
+}
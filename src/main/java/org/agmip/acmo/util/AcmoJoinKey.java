@@ -0,0 +1,25 @@
+package org.agmip.acmo.util;
+
+/**
+ * The ACMO columns that can match the model outputs to the meta rows in
+ * {@link AcmoOutputJoin}, and find the rows in an {@link AcmoRowIndex}.
+ */
+public enum AcmoJoinKey {
+
+    EXNAME("EXNAME"),
+    RUN_NUMBER("RUN#"),
+    EID("EID");
+
+    private final String column;
+
+    private AcmoJoinKey(String column) {
+        this.column = column;
+    }
+
+    /**
+     * @return the variable name of the column in the ACMO header
+     */
+    public String getColumn() {
+        return column;
+    }
+}
@@ -0,0 +1,266 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The sidecar manifest of an ACMO_meta.dat file, used by the incremental
+ * mode of {@link AcmoWriter}.
+ *
+ * The manifest maps the content hash of each experiment to the byte range
+ * of its row in the meta file. The hash covers everything the row is built
+ * from: the experiment, the destination model, the weather and soil values
+ * resolved for it and the hashes of its DOMEs. A manifest is only trusted
+ * when the format version, the model, the ACMO header and the size of the
+ * meta file all match.
+ */
+class AcmoManifest {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoManifest.class);
+    /**
+     * The manifest format, to be increased whenever the rows are extracted
+     * differently
+     */
+    static final String VERSION = "ACMO manifest 1";
+    private static final String[] DOME_TYPES = {"field_overlay", "seasonal_strategy", "rotational_analysis", "batch_dome"};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final String destModel;
+    private final String headerHash;
+    private final HashMap<String, long[]> rows = new HashMap<String, long[]>();
+    private final ArrayList<String> order = new ArrayList<String>();
+    private RandomAccessFile meta = null;
+
+    AcmoManifest(String destModel) {
+        this.destModel = destModel.toLowerCase();
+        this.headerHash = hash(AcmoUtil.generateAcmoHeader());
+    }
+
+    /**
+     * Load the manifest of a previous meta file.
+     *
+     * @param manifestFile the manifest file
+     * @param metaFile the meta file described by the manifest
+     * @param destModel the destination model name
+     * @return the manifest, with the meta file open for reading the rows,
+     * or null if there is no valid manifest for the meta file
+     */
+    static AcmoManifest load(File manifestFile, File metaFile, String destModel) {
+        if (!manifestFile.isFile() || !metaFile.isFile()) {
+            return null;
+        }
+        AcmoManifest manifest = new AcmoManifest(destModel);
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), AcmoChannelWriter.UTF8));
+            try {
+                if (!VERSION.equals(br.readLine())
+                        || !("model=" + manifest.destModel).equals(br.readLine())
+                        || !("header=" + manifest.headerHash).equals(br.readLine())
+                        || !("length=" + metaFile.length()).equals(br.readLine())) {
+                    log.info("Outdated manifest {}, rebuilding the ACMO file", manifestFile.getPath());
+                    return null;
+                }
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    manifest.add(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                }
+            } finally {
+                br.close();
+            }
+            manifest.meta = new RandomAccessFile(metaFile, "r");
+            return manifest;
+        } catch (Exception ex) {
+            log.warn("Unable to read the manifest {}: {}", manifestFile.getPath(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record the row of an experiment.
+     *
+     * @param hash the content hash of the experiment
+     * @param offset the offset of the row in the meta file
+     * @param length the length of the row in bytes, without the line break
+     */
+    void add(String hash, long offset, long length) {
+        if (!rows.containsKey(hash)) {
+            rows.put(hash, new long[]{offset, length});
+        }
+        order.add(hash);
+    }
+
+    /**
+     * @return the number of recorded rows
+     */
+    int size() {
+        return order.size();
+    }
+
+    /**
+     * Read the row of an experiment from the meta file, can be called by
+     * several threads.
+     *
+     * @param hash the content hash of the experiment
+     * @return the row, or null if there is no row for the hash
+     * @throws IOException if the meta file could not be read
+     */
+    String readRow(String hash) throws IOException {
+        long[] range = rows.get(hash);
+        if (range == null || meta == null) {
+            return null;
+        }
+        FileChannel channel = meta.getChannel();
+        ByteBuffer buf = ByteBuffer.allocate((int) range[1]);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, range[0] + buf.position()) < 0) {
+                return null;
+            }
+        }
+        return new String(buf.array(), AcmoChannelWriter.UTF8);
+    }
+
+    /**
+     * Write the manifest.
+     *
+     * @param out the writer, not closed
+     * @param metaLength the size of the described meta file
+     * @throws IOException if the writer fails
+     */
+    void write(Writer out, long metaLength) throws IOException {
+        out.write(VERSION + "\n");
+        out.write("model=" + destModel + "\n");
+        out.write("header=" + headerHash + "\n");
+        out.write("length=" + metaLength + "\n");
+        for (String hash : order) {
+            long[] range = rows.get(hash);
+            out.write(hash + " " + range[0] + " " + range[1] + "\n");
+        }
+    }
+
+    /**
+     * Close the previous meta file.
+     */
+    void close() {
+        if (meta != null) {
+            try {
+                meta.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close {}", ex.getMessage());
+            }
+            meta = null;
+        }
+    }
+
+    /**
+     * Get the content hash of an experiment.
+     *
+     * @param experiment the experiment
+     * @param siteValues the weather and soil values resolved for the
+     * experiment
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     * @return the SHA-1 hash in hexadecimal
+     */
+    String hashExperiment(HashMap<String, Object> experiment, String[] siteValues, HashMap<String, String> domeIdHashMap) {
+        MessageDigest md = newDigest();
+        update(md, destModel);
+        update(md, experiment);
+        for (String value : siteValues) {
+            update(md, value);
+        }
+        for (String type : DOME_TYPES) {
+            Object ids = experiment.get(type);
+            if (ids != null) {
+                for (String id : ids.toString().toUpperCase().split("\\|")) {
+                    update(md, domeIdHashMap.get(id));
+                }
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    private static String hash(String str) {
+        MessageDigest md = newDigest();
+        update(md, str);
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform provides SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Add a value to the hash in a canonical form: the map entries are
+     * sorted by key and every value is tagged with its kind and length.
+     */
+    private static void update(MessageDigest md, Object value) {
+        if (value == null) {
+            md.update((byte) 'n');
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            ArrayList<String> keys = new ArrayList<String>(map.size());
+            HashMap<String, Object> entries = new HashMap<String, Object>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                keys.add(key);
+                entries.put(key, entry.getValue());
+            }
+            Collections.sort(keys);
+            md.update((byte) 'm');
+            updateLength(md, keys.size());
+            for (String key : keys) {
+                update(md, key);
+                update(md, entries.get(key));
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            md.update((byte) 'l');
+            updateLength(md, list.size());
+            for (Object item : list) {
+                update(md, item);
+            }
+        } else {
+            byte[] bytes = value.toString().getBytes(AcmoChannelWriter.UTF8);
+            md.update((byte) 's');
+            updateLength(md, bytes.length);
+            md.update(bytes);
+        }
+    }
+
+    private static void updateLength(MessageDigest md, int length) {
+        md.update((byte) (length >>> 24));
+        md.update((byte) (length >>> 16));
+        md.update((byte) (length >>> 8));
+        md.update((byte) length);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] c = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            c[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            c[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(c);
+    }
+}
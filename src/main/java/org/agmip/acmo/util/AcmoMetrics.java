@@ -0,0 +1,208 @@
+package org.agmip.acmo.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Running totals of the ACMO generation, for one or several
+ * {@link AcmoWriter}s, which can be published through JMX.
+ *
+ * The stage times are summed over all the threads, so with a parallel
+ * writer they can exceed the elapsed time.
+ */
+public class AcmoMetrics implements AcmoMetricsListener, AcmoMetricsMBean {
+
+    private final AtomicLong experiments = new AtomicLong();
+    private final AtomicLong reusedExperiments = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong[] stageNanos = new AtomicLong[AcmoStage.values().length];
+    private final ConcurrentHashMap<String, AtomicLong> parseErrorsByVar = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile String lastWriteFailure = null;
+    private ObjectName objectName = null;
+
+    public AcmoMetrics() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new AtomicLong();
+        }
+    }
+
+    public void stageCompleted(AcmoStage stage, long nanos) {
+        stageNanos[stage.ordinal()].addAndGet(nanos);
+    }
+
+    public void experimentProcessed(boolean reused) {
+        experiments.incrementAndGet();
+        if (reused) {
+            reusedExperiments.incrementAndGet();
+        }
+    }
+
+    public void rowWritten(long bytes) {
+        rows.incrementAndGet();
+        this.bytes.addAndGet(bytes);
+    }
+
+    public void parseError(String var, String value) {
+        parseErrors.incrementAndGet();
+        AtomicLong count = parseErrorsByVar.get(var);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = parseErrorsByVar.putIfAbsent(var, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public void writeFailed(Throwable error) {
+        writeFailures.incrementAndGet();
+        lastWriteFailure = error.toString();
+    }
+
+    public long getExperimentCount() {
+        return experiments.get();
+    }
+
+    public long getReusedExperimentCount() {
+        return reusedExperiments.get();
+    }
+
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    public long getBytesWritten() {
+        return bytes.get();
+    }
+
+    public long getParseErrorCount() {
+        return parseErrors.get();
+    }
+
+    /**
+     * @return the number of parse errors of each variable, sorted by name
+     */
+    public Map<String, Long> getParseErrorCounts() {
+        TreeMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : parseErrorsByVar.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getWriteFailureCount() {
+        return writeFailures.get();
+    }
+
+    /**
+     * @return the last exception which stopped a write, or null
+     */
+    public String getLastWriteFailure() {
+        return lastWriteFailure;
+    }
+
+    /**
+     * @param stage the stage
+     * @return the total time spent in the stage, in nanoseconds
+     */
+    public long getStageNanos(AcmoStage stage) {
+        return stageNanos[stage.ordinal()].get();
+    }
+
+    public long getIndexingMillis() {
+        return toMillis(AcmoStage.INDEXING);
+    }
+
+    public long getEventExtractionMillis() {
+        return toMillis(AcmoStage.EVENT_EXTRACTION);
+    }
+
+    public long getDomeResolutionMillis() {
+        return toMillis(AcmoStage.DOME_RESOLUTION);
+    }
+
+    public long getEncodingMillis() {
+        return toMillis(AcmoStage.ENCODING);
+    }
+
+    public long getIoMillis() {
+        return toMillis(AcmoStage.IO);
+    }
+
+    private long toMillis(AcmoStage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(getStageNanos(stage));
+    }
+
+    /**
+     * @return the hit rate of {@link DomeMetaCache#getDefault()}
+     */
+    public double getDomeCacheHitRate() {
+        return DomeMetaCache.getDefault().getHitRate();
+    }
+
+    /**
+     * @return the hit rate of {@link LookupCodeCache#getDefault()}
+     */
+    public double getLookupCodeCacheHitRate() {
+        return LookupCodeCache.getDefault().getHitRate();
+    }
+
+    /**
+     * Set all the counters back to zero, the caches keep their own.
+     */
+    public void reset() {
+        experiments.set(0);
+        reusedExperiments.set(0);
+        rows.set(0);
+        bytes.set(0);
+        parseErrors.set(0);
+        writeFailures.set(0);
+        for (AtomicLong nanos : stageNanos) {
+            nanos.set(0);
+        }
+        parseErrorsByVar.clear();
+        lastWriteFailure = null;
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server as
+     * {@code org.agmip.acmo:type=AcmoMetrics,name=<name>}.
+     *
+     * @param name the name telling the metrics apart
+     * @return the name of the registered MBean
+     * @throws JMException if the MBean could not be registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName on = new ObjectName("org.agmip.acmo:type=AcmoMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if registered.
+     *
+     * @throws JMException if the MBean could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+}
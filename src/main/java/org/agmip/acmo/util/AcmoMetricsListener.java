@@ -0,0 +1,41 @@
+package org.agmip.acmo.util;
+
+/**
+ * Receives the measurements of the ACMO generation.
+ *
+ * The methods are called from the threads extracting and writing the rows,
+ * so implementations must be thread-safe and quick. Nothing is measured
+ * when no listener is set. {@link AcmoMetrics} keeps running totals.
+ */
+public interface AcmoMetricsListener {
+
+    /**
+     * @param stage the stage
+     * @param nanos the time spent in the stage for one experiment, or for
+     * the whole write for {@link AcmoStage#INDEXING}
+     */
+    public void stageCompleted(AcmoStage stage, long nanos);
+
+    /**
+     * @param reused true when the row was copied from the previous file in
+     * the incremental mode
+     */
+    public void experimentProcessed(boolean reused);
+
+    /**
+     * @param bytes the size of the row in the output, line break included
+     * and before compression
+     */
+    public void rowWritten(long bytes);
+
+    /**
+     * @param var the variable name
+     * @param value the value which could not be converted
+     */
+    public void parseError(String var, String value);
+
+    /**
+     * @param error the exception which stopped a write
+     */
+    public void writeFailed(Throwable error);
+}
@@ -0,0 +1,41 @@
+package org.agmip.acmo.util;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link AcmoMetrics}.
+ */
+public interface AcmoMetricsMBean {
+
+    public long getExperimentCount();
+
+    public long getReusedExperimentCount();
+
+    public long getRowCount();
+
+    public long getBytesWritten();
+
+    public long getParseErrorCount();
+
+    public Map<String, Long> getParseErrorCounts();
+
+    public long getWriteFailureCount();
+
+    public String getLastWriteFailure();
+
+    public long getIndexingMillis();
+
+    public long getEventExtractionMillis();
+
+    public long getDomeResolutionMillis();
+
+    public long getEncodingMillis();
+
+    public long getIoMillis();
+
+    public double getDomeCacheHitRate();
+
+    public double getLookupCodeCacheHitRate();
+
+    public void reset();
+}
@@ -0,0 +1,339 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins the outputs of a model onto the rows of an ACMO_meta.dat file,
+ * filling the simulated columns from {@code MODEL_VER} to the last
+ * {@code _S} column.
+ *
+ * The model outputs are the build side of a hash join: they are added
+ * first and kept as their simulated cells only, keyed by the
+ * {@link AcmoJoinKey} columns. The meta file is then streamed one row at a
+ * time, so the memory used does not grow with the meta file. The acmoui
+ * version can be stamped in the {@code TOOL_VERSION} cell in the same
+ * pass, like {@link AcmoUtil#addAcmouiVersion(String, String)} does.
+ */
+public class AcmoOutputJoin {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoOutputJoin.class);
+    private static final String FIRST_SIMULATED_COLUMN = "MODEL_VER";
+    private static final String ACMOUI = "acmoui=";
+    private final List<AcmoJoinKey> keys;
+    // The simulated columns of the standard header
+    private final String[] simNames;
+    private final AcmoColumnType[] simTypes;
+    private final HashMap<String, Integer> simIndex = new HashMap<String, Integer>();
+    private final LinkedHashMap<List<String>, Output> outputs = new LinkedHashMap<List<String>, Output>();
+    private String acmouiVersion = null;
+    private long matchedRows = 0;
+    private long unmatchedRows = 0;
+
+    /**
+     * @param keys the columns matching the outputs to the meta rows
+     */
+    public AcmoOutputJoin(AcmoJoinKey... keys) {
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("At least one join key is required");
+        }
+        this.keys = Collections.unmodifiableList(new ArrayList<AcmoJoinKey>(Arrays.asList(keys)));
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<AcmoColumnType> types = new ArrayList<AcmoColumnType>();
+        AcmoColumnarFormat.parseSchema(AcmoUtil.generateAcmoHeader(), names, types);
+        int first = names.indexOf(FIRST_SIMULATED_COLUMN);
+        simNames = names.subList(first, names.size()).toArray(new String[0]);
+        simTypes = types.subList(first, types.size()).toArray(new AcmoColumnType[0]);
+        for (int i = 0; i < simNames.length; i++) {
+            simIndex.put(simNames[i], i);
+        }
+    }
+
+    public List<AcmoJoinKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param acmouiVersion the version stamped after {@code acmoui=} in
+     * every row, or null to leave the rows unstamped
+     */
+    public void setAcmouiVersion(String acmouiVersion) {
+        this.acmouiVersion = acmouiVersion;
+    }
+
+    public String getAcmouiVersion() {
+        return acmouiVersion;
+    }
+
+    /**
+     * Add the outputs of one simulation. The record holds the key columns,
+     * like {@code exname} or {@code run#}, and the simulated values by
+     * their ACMO variable names, like {@code hwah_s}, in any case. Other
+     * entries are ignored, and the dates should already be in the
+     * yyyy-mm-dd format.
+     *
+     * @param record the outputs of a simulation
+     */
+    public void addOutput(Map<String, ?> record) {
+        String[] keyValues = new String[keys.size()];
+        String[] cells = new String[simNames.length];
+        for (Map.Entry<String, ?> entry : record.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            String name = entry.getKey().toUpperCase();
+            String value = entry.getValue().toString();
+            Integer sim = simIndex.get(name);
+            if (sim != null) {
+                cells[sim] = encode(value, simTypes[sim]);
+            }
+            for (int i = 0; i < keyValues.length; i++) {
+                if (keys.get(i).getColumn().equals(name)) {
+                    keyValues[i] = value.trim();
+                }
+            }
+        }
+        for (int i = 0; i < keyValues.length; i++) {
+            if (keyValues[i] == null) {
+                throw new IllegalArgumentException("The model output has no " + keys.get(i).getColumn() + " value");
+            }
+        }
+        List<String> key = Arrays.asList(keyValues);
+        if (outputs.containsKey(key)) {
+            log.warn("Duplicated model output for {}, the first one is used", key);
+        } else {
+            outputs.put(key, new Output(cells));
+        }
+    }
+
+    /**
+     * @param records the outputs of the simulations
+     */
+    public void addOutputs(Iterator<? extends Map<String, ?>> records) {
+        while (records.hasNext()) {
+            addOutput(records.next());
+        }
+    }
+
+    /**
+     * @return the number of model outputs added
+     */
+    public int getOutputCount() {
+        return outputs.size();
+    }
+
+    /**
+     * Join the outputs onto an ACMO meta file, which may be gzip-compressed.
+     *
+     * @param metaFile the ACMO meta file
+     * @param outputFile the joined ACMO CSV file
+     * @throws IOException if a file could not be read or written
+     */
+    public void join(File metaFile, File outputFile) throws IOException {
+        Reader in = new BufferedReader(AcmoUtil.openMetaReader(metaFile.getPath()));
+        try {
+            AcmoChannelWriter out = AcmoChannelWriter.open(outputFile, AcmoChannelWriter.DEFAULT_BUFFER_SIZE, false);
+            try {
+                join(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Join the outputs onto the rows of an ACMO meta file. The header and
+     * any other non-data rows are copied as they are, the rows without a
+     * model output only get the acmoui version.
+     *
+     * @param in the ACMO meta file, should be buffered
+     * @param out the joined ACMO CSV file, not closed
+     * @throws IOException if the reader or the writer fails, or the header
+     * has no key column
+     */
+    public void join(Reader in, Writer out) throws IOException {
+        matchedRows = 0;
+        unmatchedRows = 0;
+        for (Output output : outputs.values()) {
+            output.used = false;
+        }
+        StringBuilder record = new StringBuilder(1024);
+        StringBuilder header = new StringBuilder(4096);
+        ArrayList<String> cells = new ArrayList<String>();
+        Columns columns = null;
+        while (AcmoCsv.readRecord(in, record)) {
+            if (record.length() > 0 && record.charAt(0) == '*') {
+                if (columns == null) {
+                    columns = new Columns(header.toString());
+                }
+                joinRow(record, cells, columns, out);
+            } else {
+                if (columns == null) {
+                    header.append(record).append('\n');
+                }
+                out.append(record).append('\n');
+            }
+        }
+        if (!outputs.isEmpty() && matchedRows < outputs.size()) {
+            log.warn("{} of {} model outputs have no ACMO row", getUnmatchedOutputs().size(), outputs.size());
+        }
+    }
+
+    private void joinRow(StringBuilder record, ArrayList<String> cells, Columns columns, Writer out) throws IOException {
+        AcmoCsv.split(record, cells);
+        String[] keyValues = new String[columns.keyCols.length];
+        for (int i = 0; i < keyValues.length; i++) {
+            int col = columns.keyCols[i];
+            keyValues[i] = col < cells.size() ? AcmoCsv.unquote(cells.get(col)).trim() : "";
+        }
+        Output output = outputs.get(Arrays.asList(keyValues));
+        boolean changed = stamp(cells, columns.toolCol);
+        if (output != null) {
+            output.used = true;
+            matchedRows++;
+            for (int i = 0; i < simNames.length; i++) {
+                int col = columns.simCols[i];
+                if (col >= 0 && output.cells[i] != null) {
+                    while (cells.size() <= col) {
+                        cells.add("");
+                    }
+                    cells.set(col, output.cells[i]);
+                    changed = true;
+                }
+            }
+        } else {
+            unmatchedRows++;
+        }
+        if (!changed) {
+            out.append(record).append('\n');
+            return;
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(cells.get(i));
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Put the acmoui version in the raw TOOL_VERSION cell.
+     */
+    private boolean stamp(ArrayList<String> cells, int toolCol) {
+        if (acmouiVersion == null || toolCol < 0 || toolCol >= cells.size()) {
+            return false;
+        }
+        String raw = cells.get(toolCol);
+        int pos = raw.indexOf(ACMOUI);
+        if (pos < 0) {
+            return false;
+        }
+        pos += ACMOUI.length();
+        StringBuilder sb = new StringBuilder(raw.length() + acmouiVersion.length() + 2);
+        sb.append(raw, 0, pos);
+        if (AcmoCsv.isQuoted(raw)) {
+            AcmoRowEncoder.appendEscaped(sb, acmouiVersion);
+        } else {
+            sb.append(acmouiVersion);
+        }
+        sb.append(raw, pos, raw.length());
+        cells.set(toolCol, sb.toString());
+        return true;
+    }
+
+    private static String encode(String value, AcmoColumnType type) {
+        if (type == AcmoColumnType.TEXT || value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+            return AcmoCsv.quote(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of meta rows joined with a model output by the
+     * last join
+     */
+    public long getMatchedRowCount() {
+        return matchedRows;
+    }
+
+    /**
+     * @return the number of meta rows without a model output in the last
+     * join
+     */
+    public long getUnmatchedRowCount() {
+        return unmatchedRows;
+    }
+
+    /**
+     * @return the keys of the model outputs which matched no meta row in
+     * the last join, in the order they were added
+     */
+    public List<List<String>> getUnmatchedOutputs() {
+        ArrayList<List<String>> unmatched = new ArrayList<List<String>>();
+        for (Map.Entry<List<String>, Output> entry : outputs.entrySet()) {
+            if (!entry.getValue().used) {
+                unmatched.add(entry.getKey());
+            }
+        }
+        return unmatched;
+    }
+
+    private static class Output {
+
+        // The encoded simulated cells, null when not given
+        private final String[] cells;
+        private boolean used = false;
+
+        private Output(String[] cells) {
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * The positions of the key, simulated and tool version columns in the
+     * header of the meta file.
+     */
+    private class Columns {
+
+        private final int[] keyCols;
+        private final int[] simCols;
+        private final int toolCol;
+
+        private Columns(String header) throws IOException {
+            ArrayList<String> names = new ArrayList<String>();
+            AcmoColumnarFormat.parseSchema(header, names, new ArrayList<AcmoColumnType>());
+            for (int i = 0; i < names.size(); i++) {
+                names.set(i, names.get(i).toUpperCase());
+            }
+            keyCols = new int[keys.size()];
+            for (int i = 0; i < keyCols.length; i++) {
+                keyCols[i] = names.indexOf(keys.get(i).getColumn());
+                if (keyCols[i] < 0) {
+                    throw new IOException("The ACMO header has no " + keys.get(i).getColumn() + " column");
+                }
+            }
+            simCols = new int[simNames.length];
+            for (int i = 0; i < simCols.length; i++) {
+                simCols[i] = names.indexOf(simNames[i]);
+            }
+            toolCol = names.indexOf("TOOL_VERSION");
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package org.agmip.acmo.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Reads an ACMO CSV file through memory-mapped buffers.
+ *
+ * The header rows ({@code !} and {@code #}) are read when the file is
+ * opened: the columns are named by the {@code #} row and typed by the
+ * units row just before it, see {@link AcmoColumnType}. The data rows
+ * ({@code *}) are then visited with {@link #next()}. A row is only split
+ * into cells when one of its cells is accessed, and a cell is only decoded
+ * by the getter asking for it, straight from the mapped bytes, so the
+ * file is never loaded into the heap.
+ *
+ * The file is mapped in chunks, so files larger than 2GB can be read.
+ * Compressed files can not be mapped. A reader is not thread-safe; open a
+ * reader per thread to read a file concurrently.
+ */
+public class AcmoReader implements Closeable {
+
+    /**
+     * The default size of the mapped chunks, 1GB
+     */
+    static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+    private static final double[] POW10 = new double[AcmoColumnarFormat.MAX_DIGITS + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final long length;
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<String> units = new ArrayList<String>();
+    private final ArrayList<AcmoColumnType> types = new ArrayList<AcmoColumnType>();
+    private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+    private final long dataStart;
+    // The start of the next row to visit, and the end of the row starts
+    // to visit
+    private long position;
+    private long rangeEnd;
+    private long rowStart = -1;
+    private long rowEnd = -1;
+    private long rowNumber = 0;
+    // The cell bounds of the current row, -1 until they are needed
+    private int cellCount = -1;
+    private long[] cellStarts = new long[80];
+    private long[] cellEnds = new long[80];
+    private byte[] buf = new byte[256];
+    // The last number parsed by parseNumber()
+    private long parsedUnscaled;
+    private int parsedScale;
+
+    /**
+     * @param file the ACMO CSV file
+     * @throws IOException if the file could not be opened or is compressed
+     */
+    public AcmoReader(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param file the ACMO CSV file
+     * @param chunkSize the size of the mapped chunks, a power of two
+     * @throws IOException if the file could not be opened or is compressed
+     */
+    AcmoReader(File file, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size must be a power of two: " + chunkSize);
+        }
+        this.file = file;
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+        this.raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            int count = (int) ((length + chunkSize - 1) >>> chunkShift);
+            chunks = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << chunkShift;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+            }
+            if (length >= 2 && (get(0) & 0xFF) == 0x1f && (get(1) & 0xFF) == 0x8b) {
+                throw new IOException("Can not map the compressed ACMO file " + file.getPath());
+            }
+            dataStart = readHeader();
+            position = dataStart;
+            rangeEnd = length;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Read the header rows up to the first data row.
+     *
+     * @return the offset of the first data row
+     */
+    private long readHeader() {
+        ArrayList<String> lastUnits = new ArrayList<String>();
+        long pos = 0;
+        while (pos < length) {
+            long end = findRowEnd(pos);
+            setRow(pos, trimRowEnd(pos, end));
+            byte first = rowStart < rowEnd ? get(rowStart) : 0;
+            if (first == '*') {
+                break;
+            } else if (first == '!') {
+                lastUnits.clear();
+                for (int i = 0; i < getCellCount(); i++) {
+                    lastUnits.add(getString(i));
+                }
+            } else if (first == '#' && names.isEmpty()) {
+                for (int i = 0; i < getCellCount(); i++) {
+                    String name = getString(i);
+                    String unit = i < lastUnits.size() ? lastUnits.get(i) : "";
+                    names.add(name);
+                    units.add(unit);
+                    types.add(AcmoColumnType.fromUnit(unit));
+                    String key = name.toUpperCase();
+                    if (!indexes.containsKey(key)) {
+                        indexes.put(key, i);
+                    }
+                }
+            }
+            pos = end + 1;
+        }
+        rowStart = rowEnd = -1;
+        cellCount = -1;
+        return Math.min(pos, length);
+    }
+
+    /**
+     * @return the ACMO file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the header rows, as they are in the file
+     */
+    public String getHeader() {
+        return decode(0, dataStart);
+    }
+
+    /**
+     * @return the offset of the first data row
+     */
+    public long getDataOffset() {
+        return dataStart;
+    }
+
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    public String getColumnName(int col) {
+        return names.get(col);
+    }
+
+    /**
+     * @param col the column index
+     * @return the unit or type declared in the header
+     */
+    public String getColumnUnit(int col) {
+        return units.get(col);
+    }
+
+    public AcmoColumnType getColumnType(int col) {
+        return types.get(col);
+    }
+
+    /**
+     * @param name the variable name, like {@code EXNAME}, not case
+     * sensitive
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int getColumnIndex(String name) {
+        Integer index = indexes.get(name.toUpperCase());
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Move to the next data row.
+     *
+     * @return false when there are no more rows
+     */
+    public boolean next() {
+        while (position < rangeEnd) {
+            long start = position;
+            long end = findRowEnd(start);
+            position = end + 1;
+            long trimmed = trimRowEnd(start, end);
+            if (trimmed > start && get(start) == '*') {
+                setRow(start, trimmed);
+                rowNumber++;
+                return true;
+            }
+        }
+        rowStart = rowEnd = -1;
+        cellCount = -1;
+        return false;
+    }
+
+    /**
+     * @return the number of data rows visited so far, the current row
+     * number starting at 1
+     */
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    /**
+     * @return the byte offset of the current row in the file
+     */
+    public long getRowOffset() {
+        checkRow();
+        return rowStart;
+    }
+
+    /**
+     * @return the size of the current row in bytes, without the line break
+     */
+    long getRowLength() {
+        checkRow();
+        return rowEnd - rowStart;
+    }
+
+    /**
+     * @return the current row as it is in the file, without the line break
+     */
+    public String getRow() {
+        checkRow();
+        return decode(rowStart, rowEnd);
+    }
+
+    /**
+     * @return the number of cells in the current row
+     */
+    public int getCellCount() {
+        if (cellCount < 0) {
+            checkRow();
+            splitRow();
+        }
+        return cellCount;
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell value, or null if the row has no such cell
+     */
+    public String getString(int col) {
+        if (col >= getCellCount()) {
+            return null;
+        }
+        long start = cellStarts[col];
+        long end = cellEnds[col];
+        if (!isQuoted(start, end)) {
+            return decode(start, end);
+        }
+        // Drop the quotes and the doubled " and \
+        int n = 0;
+        ensureBuffer(end - start);
+        for (long p = start + 1; p < end - 1; p++) {
+            byte b = get(p);
+            if ((b == '"' || b == '\\') && p + 1 < end - 1 && get(p + 1) == b) {
+                p++;
+            }
+            buf[n++] = b;
+        }
+        return new String(buf, 0, n, AcmoChannelWriter.UTF8);
+    }
+
+    /**
+     * @param col the column index
+     * @return true if the cell is absent or empty
+     */
+    public boolean isEmpty(int col) {
+        if (col >= getCellCount()) {
+            return true;
+        }
+        long start = cellStarts[col];
+        long end = cellEnds[col];
+        return end == start || (end - start == 2 && isQuoted(start, end));
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell as a number, or null if it is absent or empty
+     * @throws NumberFormatException if the cell is not a number
+     */
+    public BigDecimal getDecimal(int col) {
+        if (isEmpty(col)) {
+            return null;
+        } else if (parseNumber(col)) {
+            return BigDecimal.valueOf(parsedUnscaled, parsedScale);
+        } else {
+            return new BigDecimal(getString(col).trim());
+        }
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell as a number, or {@code NaN} if it is absent or empty
+     * @throws NumberFormatException if the cell is not a number
+     */
+    public double getDouble(int col) {
+        if (isEmpty(col)) {
+            return Double.NaN;
+        } else if (parseNumber(col) && parsedUnscaled != 0 && Math.abs(parsedUnscaled) < (1L << 53)) {
+            // Both operands are exact, so the quotient is correctly rounded
+            return parsedUnscaled / POW10[parsedScale];
+        } else {
+            return Double.parseDouble(getString(col));
+        }
+    }
+
+    /**
+     * @param col the column index
+     * @return the cell as a {@code yyyymmdd} number, or 0 if it is absent
+     * or empty
+     * @throws NumberFormatException if the cell is not a yyyy-mm-dd date
+     */
+    public int getDate(int col) {
+        if (isEmpty(col)) {
+            return 0;
+        }
+        long start = cellStarts[col];
+        long end = cellEnds[col];
+        if (isQuoted(start, end)) {
+            start++;
+            end--;
+        }
+        int v = 0;
+        boolean valid = end - start == 10;
+        for (long p = start; valid && p < end; p++) {
+            byte b = get(p);
+            if (p - start == 4 || p - start == 7) {
+                valid = b == '-';
+            } else if (b >= '0' && b <= '9') {
+                v = v * 10 + (b - '0');
+            } else {
+                valid = false;
+            }
+        }
+        if (!valid) {
+            throw new NumberFormatException("Not a yyyy-mm-dd date: " + getString(col));
+        }
+        return v;
+    }
+
+    /**
+     * Move back before the first data row.
+     */
+    public void rewind() {
+        position = dataStart;
+        rangeEnd = length;
+        rowNumber = 0;
+        rowStart = rowEnd = -1;
+        cellCount = -1;
+    }
+
+    /**
+     * Only visit the data rows starting in the given range, and move
+     * before the first of them. The row numbers then start from the
+     * range.
+     *
+     * @param start the offset of a row start
+     * @param end the offset after the last row start to visit
+     */
+    void setRange(long start, long end) {
+        position = Math.max(start, dataStart);
+        rangeEnd = Math.min(end, length);
+        rowNumber = 0;
+        rowStart = rowEnd = -1;
+        cellCount = -1;
+    }
+
+    /**
+     * Release the file. The mapped buffers are released once they are
+     * garbage collected.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    byte get(long pos) {
+        return chunks[(int) (pos >>> chunkShift)].get((int) (pos & chunkMask));
+    }
+
+    /**
+     * @return the offset of the line break ending the row started at the
+     * given offset, or the file length
+     */
+    long findRowEnd(long pos) {
+        boolean inQuotes = false;
+        for (; pos < length; pos++) {
+            byte b = get(pos);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                return pos;
+            }
+        }
+        return length;
+    }
+
+    private long trimRowEnd(long start, long end) {
+        if (end > start && get(end - 1) == '\r') {
+            return end - 1;
+        }
+        return end;
+    }
+
+    private void setRow(long start, long end) {
+        rowStart = start;
+        rowEnd = end;
+        cellCount = -1;
+    }
+
+    private void checkRow() {
+        if (rowStart < 0) {
+            throw new IllegalStateException("No current row");
+        }
+    }
+
+    private void splitRow() {
+        int n = 0;
+        boolean inQuotes = false;
+        long start = rowStart;
+        for (long p = rowStart; p < rowEnd; p++) {
+            byte b = get(p);
+            if (b == '"') {
+                inQuotes = !inQuotes;
+            } else if (b == ',' && !inQuotes) {
+                n = addCell(n, start, p);
+                start = p + 1;
+            }
+        }
+        cellCount = addCell(n, start, rowEnd);
+    }
+
+    private int addCell(int n, long start, long end) {
+        if (n == cellStarts.length) {
+            long[] starts = new long[n * 2];
+            long[] ends = new long[n * 2];
+            System.arraycopy(cellStarts, 0, starts, 0, n);
+            System.arraycopy(cellEnds, 0, ends, 0, n);
+            cellStarts = starts;
+            cellEnds = ends;
+        }
+        cellStarts[n] = start;
+        cellEnds[n] = end;
+        return n + 1;
+    }
+
+    private boolean isQuoted(long start, long end) {
+        return end - start > 1 && get(start) == '"' && get(end - 1) == '"';
+    }
+
+    private void ensureBuffer(long size) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("ACMO row too long");
+        }
+        if (buf.length < size) {
+            buf = new byte[(int) Math.max(size, buf.length * 2L)];
+        }
+    }
+
+    private String decode(long start, long end) {
+        ensureBuffer(end - start);
+        int n = (int) (end - start);
+        for (int i = 0; i < n; i++) {
+            buf[i] = get(start + i);
+        }
+        return new String(buf, 0, n, AcmoChannelWriter.UTF8);
+    }
+
+    /**
+     * Parse a plain decimal ({@code [-]digits[.digits]}, optionally quoted)
+     * with at most 18 digits into {@code parsedUnscaled} and
+     * {@code parsedScale}.
+     *
+     * @return false if the cell has to be parsed as text
+     */
+    private boolean parseNumber(int col) {
+        long start = cellStarts[col];
+        long end = cellEnds[col];
+        if (isQuoted(start, end)) {
+            start++;
+            end--;
+        }
+        boolean negative = start < end && get(start) == '-';
+        if (negative) {
+            start++;
+        }
+        long u = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (long p = start; p < end; p++) {
+            byte b = get(p);
+            if (b >= '0' && b <= '9') {
+                if (++digits > AcmoColumnarFormat.MAX_DIGITS) {
+                    return false;
+                }
+                u = u * 10 + (b - '0');
+                if (point) {
+                    scale++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        parsedUnscaled = negative ? -u : u;
+        parsedScale = scale;
+        return true;
+    }
+}
@@ -0,0 +1,197 @@
+package org.agmip.acmo.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Encodes the cells of an ACMO line into a reusable buffer.
+ *
+ * The cells are appended one by one, separated by commas. Quoted cells are
+ * escaped with a single scan over their characters: {@code "} becomes
+ * {@code ""} and {@code \} becomes {@code \\}. The encoded line can then be
+ * written straight to a {@link Writer} without building a {@code String}.
+ *
+ * An encoder is not thread-safe; use one encoder per thread and call
+ * {@link #reset()} before each line.
+ */
+public class AcmoRowEncoder implements CharSequence {
+
+    private final StringBuilder row;
+    private char[] buf;
+    private boolean first = true;
+    private int mark = -1;
+
+    public AcmoRowEncoder() {
+        this(512);
+    }
+
+    /**
+     * @param capacity the initial capacity of the line buffer
+     */
+    public AcmoRowEncoder(int capacity) {
+        row = new StringBuilder(capacity);
+        buf = new char[capacity];
+    }
+
+    /**
+     * Clear the buffer for a new line.
+     *
+     * @return this encoder
+     */
+    public AcmoRowEncoder reset() {
+        row.setLength(0);
+        first = true;
+        mark = -1;
+        return this;
+    }
+
+    /**
+     * Remember where the next cell starts, for editing the encoded line.
+     *
+     * @return this encoder
+     */
+    AcmoRowEncoder markNextCell() {
+        mark = first ? row.length() : row.length() + 1;
+        return this;
+    }
+
+    /**
+     * @return the start of the cell marked by {@link #markNextCell()}, or
+     * -1 if none
+     */
+    int getMark() {
+        return mark;
+    }
+
+    /**
+     * Append a cell as it is.
+     *
+     * @param cell the cell value
+     * @return this encoder
+     */
+    public AcmoRowEncoder plain(String cell) {
+        separate();
+        row.append(cell);
+        return this;
+    }
+
+    /**
+     * Append a cell wrapped in quotes with its content escaped.
+     *
+     * @param cell the cell value
+     * @return this encoder
+     */
+    public AcmoRowEncoder quoted(String cell) {
+        beginQuoted();
+        escaped(cell);
+        return endQuoted();
+    }
+
+    /**
+     * Start a quoted cell, the content is then added by
+     * {@link #escaped(String)} and the cell closed by {@link #endQuoted()}.
+     *
+     * @return this encoder
+     */
+    public AcmoRowEncoder beginQuoted() {
+        separate();
+        row.append('"');
+        return this;
+    }
+
+    /**
+     * Append escaped content to the current quoted cell.
+     *
+     * @param str the content to escape
+     * @return this encoder
+     */
+    public AcmoRowEncoder escaped(String str) {
+        appendEscaped(row, str);
+        return this;
+    }
+
+    /**
+     * Append a single escaped character to the current quoted cell.
+     *
+     * @param c the character to escape
+     * @return this encoder
+     */
+    public AcmoRowEncoder escaped(char c) {
+        if (c == '"' || c == '\\') {
+            row.append(c);
+        }
+        row.append(c);
+        return this;
+    }
+
+    /**
+     * Close the current quoted cell.
+     *
+     * @return this encoder
+     */
+    public AcmoRowEncoder endQuoted() {
+        row.append('"');
+        return this;
+    }
+
+    /**
+     * Write the encoded line to the given writer, without the line break.
+     *
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer out) throws IOException {
+        int len = row.length();
+        if (buf.length < len) {
+            buf = new char[Math.max(len, buf.length * 2)];
+        }
+        row.getChars(0, len, buf, 0);
+        out.write(buf, 0, len);
+    }
+
+    public int length() {
+        return row.length();
+    }
+
+    public char charAt(int index) {
+        return row.charAt(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return row.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return row.toString();
+    }
+
+    private void separate() {
+        if (first) {
+            first = false;
+        } else {
+            row.append(',');
+        }
+    }
+
+    /**
+     * Append the string with {@code "} and {@code \} doubled.
+     *
+     * @param sb the buffer to append to
+     * @param str the string to escape
+     */
+    static void appendEscaped(StringBuilder sb, String str) {
+        int start = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                // Copy the pending run including c, then c once more
+                sb.append(str, start, i + 1);
+                sb.append(c);
+                start = i + 1;
+            }
+        }
+        sb.append(str, start, len);
+    }
+}
@@ -0,0 +1,562 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The row index of an uncompressed ACMO file, read straight from the file
+ * by its EXNAME, EID or RUN# instead of scanning it.
+ *
+ * The index is kept in the [meta file].idx sidecar file, written by
+ * {@link AcmoWriter} in its indexed mode, or by {@link #build(File)} for an
+ * existing file. It holds a record for every data row, with its byte range
+ * and key values, in file order, followed by an open addressing hash table
+ * for each key. The lookups read the index file in place, so an open
+ * index holds no row in memory. The index is only trusted when the size,
+ * the modification time and the checksum of the start of the meta file
+ * match. The files are read with positional reads, so an open index can
+ * be used by several threads.
+ */
+public class AcmoRowIndex implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoRowIndex.class);
+    /**
+     * The index format, to be increased whenever it changes
+     */
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x41434d49;
+    private static final String SUFFIX = ".idx";
+    private static final AcmoJoinKey[] KEYS = AcmoJoinKey.values();
+    private static final int HEADER_SIZE = 64;
+    // A table slot: the position of the record plus one, 0 when empty,
+    // and the hash of its value
+    private static final int SLOT_SIZE = 12;
+    private static final int SLOTS_PER_READ = 64;
+    private static final int RECORD_READ_SIZE = 256;
+    private static final int CHECKSUM_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final File metaFile;
+    private final RandomAccessFile meta;
+    private final RandomAccessFile index;
+    private final int rows;
+    private final int capacity;
+    private final long tableOffset;
+
+    private AcmoRowIndex(File metaFile, RandomAccessFile index, int rows, int capacity, long tableOffset) throws IOException {
+        this.metaFile = metaFile;
+        this.index = index;
+        this.rows = rows;
+        this.capacity = capacity;
+        this.tableOffset = tableOffset;
+        this.meta = new RandomAccessFile(metaFile, "r");
+    }
+
+    /**
+     * @param metaFile the ACMO file
+     * @return the sidecar index file of the ACMO file
+     */
+    public static File getIndexFile(File metaFile) {
+        return new File(metaFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Open the index of an ACMO file.
+     *
+     * @param metaFile the ACMO file
+     * @return the index, with the ACMO file open for reading the rows
+     * @throws IOException if the index is missing, could not be read, or
+     * describes another version of the file
+     */
+    public static AcmoRowIndex open(File metaFile) throws IOException {
+        File indexFile = getIndexFile(metaFile);
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            read(index.getChannel(), header, 0);
+            if (header.remaining() > 0 || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Invalid row index " + indexFile.getPath());
+            }
+            if (header.getLong(8) != metaFile.length() || header.getLong(16) != metaFile.lastModified()
+                    || header.getLong(24) != checksum(metaFile)) {
+                throw new IOException("Outdated row index " + indexFile.getPath());
+            }
+            int rows = header.getInt(32);
+            int capacity = header.getInt(36);
+            long tableOffset = header.getLong(40);
+            if (rows < 0 || capacity < 1 || (capacity & (capacity - 1)) != 0
+                    || tableOffset + (long) capacity * SLOT_SIZE * KEYS.length != index.length()) {
+                throw new IOException("Invalid row index " + indexFile.getPath());
+            }
+            AcmoRowIndex opened = new AcmoRowIndex(metaFile, index, rows, capacity, tableOffset);
+            index = null;
+            return opened;
+        } finally {
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Index an existing ACMO file, writing its sidecar index file.
+     *
+     * @param metaFile the uncompressed ACMO file
+     * @return the index, with the ACMO file open for reading the rows
+     * @throws IOException if the ACMO file could not be read, or the index
+     * could not be written
+     */
+    public static AcmoRowIndex build(File metaFile) throws IOException {
+        File indexFile = getIndexFile(metaFile);
+        File indexTmp = new File(indexFile.getPath() + ".tmp");
+        Builder builder = new Builder(indexTmp);
+        boolean done = false;
+        try {
+            AcmoReader reader = new AcmoReader(metaFile);
+            try {
+                int[] cols = new int[KEYS.length];
+                for (int k = 0; k < KEYS.length; k++) {
+                    cols[k] = reader.getColumnIndex(KEYS[k].getColumn());
+                }
+                String[] values = new String[KEYS.length];
+                while (reader.next()) {
+                    for (int k = 0; k < KEYS.length; k++) {
+                        values[k] = cols[k] < 0 ? null : reader.getString(cols[k]);
+                    }
+                    builder.add(values, reader.getRowOffset(), reader.getRowLength());
+                }
+            } finally {
+                reader.close();
+            }
+            builder.finish(metaFile);
+            AcmoWriter.replaceFile(indexTmp, indexFile);
+            done = true;
+        } finally {
+            if (!done) {
+                builder.abort();
+            }
+        }
+        log.debug("Indexed {} ACMO rows of {}", builder.size(), metaFile.getPath());
+        return open(metaFile);
+    }
+
+    /**
+     * Open the index of an ACMO file, building it first when it is missing
+     * or outdated.
+     *
+     * @param metaFile the uncompressed ACMO file
+     * @return the index, with the ACMO file open for reading the rows
+     * @throws IOException if the ACMO file could not be read, or the index
+     * could not be written
+     */
+    public static AcmoRowIndex openOrBuild(File metaFile) throws IOException {
+        if (getIndexFile(metaFile).isFile()) {
+            try {
+                return open(metaFile);
+            } catch (IOException ex) {
+                log.info("{}, rebuilding it", ex.getMessage());
+            }
+        }
+        return build(metaFile);
+    }
+
+    public File getMetaFile() {
+        return metaFile;
+    }
+
+    /**
+     * @return the number of indexed rows
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @param key the column of the value
+     * @param value the value, like an experiment name for
+     * {@link AcmoJoinKey#EXNAME}
+     * @return the byte offsets of the rows with the value, in file order
+     * @throws IOException if the index could not be read
+     */
+    public List<Long> getOffsets(AcmoJoinKey key, String value) throws IOException {
+        ArrayList<Long> found = new ArrayList<Long>();
+        for (Record record : find(key, value)) {
+            found.add(record.offset);
+        }
+        return found;
+    }
+
+    /**
+     * Read the rows with a value.
+     *
+     * @param key the column of the value
+     * @param value the value, like an experiment name for
+     * {@link AcmoJoinKey#EXNAME}
+     * @return the rows, without their line breaks, in file order
+     * @throws IOException if the index or the ACMO file could not be read
+     */
+    public List<String> readRows(AcmoJoinKey key, String value) throws IOException {
+        List<Record> records = find(key, value);
+        if (records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ArrayList<String> found = new ArrayList<String>(records.size());
+        for (Record record : records) {
+            found.add(readRow(record));
+        }
+        return found;
+    }
+
+    /**
+     * Read the row of a run of an experiment.
+     *
+     * @param exname the experiment name
+     * @param runNumber the RUN# value
+     * @return the first row with both values, or null if there is none
+     * @throws IOException if the index or the ACMO file could not be read
+     */
+    public String readRow(String exname, String runNumber) throws IOException {
+        if (runNumber == null) {
+            return null;
+        }
+        for (Record record : find(AcmoJoinKey.EXNAME, exname)) {
+            if (record.values[AcmoJoinKey.RUN_NUMBER.ordinal()].equals(runNumber.trim())) {
+                return readRow(record);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Release the ACMO and index files.
+     *
+     * @throws IOException if a file could not be closed
+     */
+    public void close() throws IOException {
+        try {
+            meta.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * @return the records with the value, in file order
+     */
+    private List<Record> find(AcmoJoinKey key, String value) throws IOException {
+        if (value == null || rows == 0) {
+            return Collections.emptyList();
+        }
+        String wanted = value.trim();
+        int hash = hash(wanted);
+        int k = key.ordinal();
+        long table = tableOffset + (long) k * capacity * SLOT_SIZE;
+        ArrayList<Record> found = new ArrayList<Record>();
+        ByteBuffer slots = ByteBuffer.allocate(SLOTS_PER_READ * SLOT_SIZE);
+        // The values are inserted in file order by linear probing, so the
+        // probe sequence lists them in file order up to the first empty slot
+        int slot = hash & (capacity - 1);
+        for (int probed = 0; probed < capacity;) {
+            int count = Math.min(SLOTS_PER_READ, capacity - slot);
+            slots.clear();
+            slots.limit(count * SLOT_SIZE);
+            read(index.getChannel(), slots, table + (long) slot * SLOT_SIZE);
+            slots.flip();
+            for (int i = 0; i < count; i++, probed++) {
+                long position = slots.getLong();
+                int slotHash = slots.getInt();
+                if (position == 0) {
+                    return found;
+                }
+                if (slotHash == hash) {
+                    Record record = readRecord(position - 1);
+                    if (record.values[k].equals(wanted)) {
+                        found.add(record);
+                    }
+                }
+            }
+            slot = (slot + count) & (capacity - 1);
+        }
+        return found;
+    }
+
+    private Record readRecord(long position) throws IOException {
+        FileChannel channel = index.getChannel();
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_READ_SIZE);
+        read(channel, buf, position);
+        int size = buf.getInt(0);
+        if (size > buf.capacity()) {
+            buf = ByteBuffer.allocate(size);
+            read(channel, buf, position);
+        }
+        if (buf.position() < size || size < 16) {
+            throw new IOException("Truncated row index of " + metaFile.getPath());
+        }
+        buf.flip();
+        buf.getInt();
+        Record record = new Record();
+        record.offset = buf.getLong();
+        record.length = buf.getInt();
+        record.values = new String[KEYS.length];
+        for (int k = 0; k < KEYS.length; k++) {
+            buf.getInt();
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            record.values[k] = new String(bytes, AcmoChannelWriter.UTF8);
+        }
+        return record;
+    }
+
+    private String readRow(Record record) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(record.length);
+        read(meta.getChannel(), buf, record.offset);
+        if (buf.hasRemaining()) {
+            throw new IOException("The ACMO file " + metaFile.getPath() + " is shorter than its row index");
+        }
+        return new String(buf.array(), AcmoChannelWriter.UTF8);
+    }
+
+    /**
+     * Fill the buffer from a position of the channel, up to the end of the
+     * channel.
+     */
+    private static void read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    private static int hash(String value) {
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the CRC32 of the start of the file, header row included
+     */
+    private static long checksum(File metaFile) throws IOException {
+        byte[] start = new byte[(int) Math.min(CHECKSUM_SIZE, metaFile.length())];
+        DataInputStream in = new DataInputStream(new FileInputStream(metaFile));
+        try {
+            in.readFully(start);
+        } finally {
+            in.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(start);
+        return crc.getValue();
+    }
+
+    /**
+     * An indexed row.
+     */
+    private static class Record {
+
+        private long offset;
+        private int length;
+        private String[] values;
+    }
+
+    /**
+     * Writes the index of an ACMO file as its rows are written: the records
+     * are streamed to the index file, and the hash tables appended once all
+     * the rows are known.
+     */
+    static class Builder {
+
+        private final File file;
+        private final int[] cols = new int[KEYS.length];
+        private final ArrayList<String> cells = new ArrayList<String>();
+        private final String[] values = new String[KEYS.length];
+        private final String[] trimmed = new String[KEYS.length];
+        private final byte[][] encoded = new byte[KEYS.length][];
+        private DataOutputStream out;
+        private long position = HEADER_SIZE;
+        private int size = 0;
+
+        /**
+         * @param file the index file to write, usually a temporary file
+         * @throws IOException if the file could not be created
+         */
+        Builder(File file) throws IOException {
+            this.file = file;
+            ArrayList<String> names = new ArrayList<String>();
+            AcmoColumnarFormat.parseSchema(AcmoUtil.generateAcmoHeader(), names, new ArrayList<AcmoColumnType>());
+            for (int k = 0; k < KEYS.length; k++) {
+                cols[k] = names.indexOf(KEYS[k].getColumn());
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            // The header is written last
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Record a row written with the standard ACMO header.
+         *
+         * @param row the row
+         * @param offset the offset of the row in the ACMO file
+         * @param length the length of the row in bytes, without the line
+         * break
+         * @throws IOException if the record could not be written
+         */
+        void add(CharSequence row, long offset, long length) throws IOException {
+            AcmoCsv.split(row, cells);
+            for (int k = 0; k < KEYS.length; k++) {
+                values[k] = cols[k] < cells.size() ? AcmoCsv.unquote(cells.get(cols[k])) : null;
+            }
+            add(values, offset, length);
+        }
+
+        void add(String[] keyValues, long offset, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("ACMO row too long to be indexed");
+            }
+            if (size == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many ACMO rows to be indexed");
+            }
+            int recordSize = 16;
+            for (int k = 0; k < KEYS.length; k++) {
+                trimmed[k] = keyValues[k] == null ? "" : keyValues[k].trim();
+                encoded[k] = trimmed[k].getBytes(AcmoChannelWriter.UTF8);
+                recordSize += 8 + encoded[k].length;
+            }
+            out.writeInt(recordSize);
+            out.writeLong(offset);
+            out.writeInt((int) length);
+            for (int k = 0; k < KEYS.length; k++) {
+                out.writeInt(hash(trimmed[k]));
+                out.writeInt(encoded[k].length);
+                out.write(encoded[k]);
+            }
+            position += recordSize;
+            size++;
+        }
+
+        /**
+         * @return the number of recorded rows
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Append the hash tables and write the header, the ACMO file being
+         * complete.
+         *
+         * @param metaFile the indexed ACMO file
+         * @throws IOException if the index could not be written
+         */
+        void finish(File metaFile) throws IOException {
+            out.close();
+            out = null;
+            long recordsEnd = position;
+            // At most three quarters of the slots are used
+            int capacity = Integer.highestOneBit(Math.max(1, size + size / 3)) << 1;
+            if ((long) capacity * SLOT_SIZE > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many ACMO rows to be indexed");
+            }
+            DataOutputStream tables = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+            try {
+                for (int k = 0; k < KEYS.length; k++) {
+                    long[] positions = new long[capacity];
+                    int[] hashes = new int[capacity];
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+                    try {
+                        skipFully(in, HEADER_SIZE);
+                        for (long p = HEADER_SIZE; p < recordsEnd;) {
+                            int recordSize = in.readInt();
+                            skipFully(in, 12);
+                            int hash = 0;
+                            int skipped = 0;
+                            for (int j = 0; j < KEYS.length; j++) {
+                                int h = in.readInt();
+                                int length = in.readInt();
+                                if (j == k) {
+                                    hash = h;
+                                }
+                                skipFully(in, length);
+                                skipped += 8 + length;
+                            }
+                            if (recordSize != 16 + skipped) {
+                                throw new IOException("Corrupted row index " + file.getPath());
+                            }
+                            int slot = hash & (capacity - 1);
+                            while (positions[slot] != 0) {
+                                slot = (slot + 1) & (capacity - 1);
+                            }
+                            positions[slot] = p + 1;
+                            hashes[slot] = hash;
+                            p += recordSize;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    for (int slot = 0; slot < capacity; slot++) {
+                        tables.writeLong(positions[slot]);
+                        tables.writeInt(hashes[slot]);
+                    }
+                }
+            } finally {
+                tables.close();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putLong(metaFile.length()).putLong(metaFile.lastModified()).putLong(checksum(metaFile));
+            header.putInt(size).putInt(capacity).putLong(recordsEnd);
+            header.clear();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Close and delete the index file, after a failed write.
+         */
+        void abort() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    log.debug("Unable to close {}: {}", file.getPath(), ex.getMessage());
+                }
+                out = null;
+            }
+            file.delete();
+        }
+
+        private static void skipFully(DataInputStream in, int n) throws IOException {
+            while (n > 0) {
+                int skipped = in.skipBytes(n);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                n -= skipped;
+            }
+        }
+    }
+}
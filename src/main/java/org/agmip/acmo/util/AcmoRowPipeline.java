@@ -0,0 +1,175 @@
+package org.agmip.acmo.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the extracted rows of an {@link AcmoWriter} to a dedicated I/O
+ * thread, so the extraction goes on while the output is blocked on the
+ * disk and the other way round.
+ *
+ * The rows are passed in batches through a bounded queue: a producer
+ * faster than the disk waits for a free slot, so the memory used stays
+ * bounded. A failure of the I/O thread is reported to the producer on its
+ * next row, and a failed producer cancels the rows not written yet.
+ */
+class AcmoRowPipeline {
+
+    /**
+     * Writes the rows on the I/O thread, in the order they were put.
+     */
+    interface RowSink {
+
+        public void write(String[] row) throws IOException;
+    }
+
+    private static final AtomicInteger pipelineCount = new AtomicInteger();
+    // Ends the queue
+    private static final ArrayList<String[]> END = new ArrayList<String[]>(0);
+    private final RowSink sink;
+    private final int batchSize;
+    private final ArrayBlockingQueue<ArrayList<String[]>> queue;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final Thread thread;
+    private ArrayList<String[]> batch;
+    private volatile boolean cancelled = false;
+    private boolean ended = false;
+
+    /**
+     * Start the I/O thread.
+     *
+     * @param sink the writer of the rows
+     * @param batchSize the number of rows in a batch
+     * @param maxBatches the number of batches allowed in the queue
+     */
+    AcmoRowPipeline(RowSink sink, int batchSize, int maxBatches) {
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<ArrayList<String[]>>(maxBatches);
+        this.batch = new ArrayList<String[]>(batchSize);
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "acmo-io-" + pipelineCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a row, waiting while the queue is full.
+     *
+     * @param row the row
+     * @throws IOException if the I/O thread failed, or the wait was
+     * interrupted
+     */
+    void put(String[] row) throws IOException {
+        checkFailure();
+        batch.add(row);
+        if (batch.size() >= batchSize) {
+            enqueue(batch);
+            batch = new ArrayList<String[]>(batchSize);
+        }
+    }
+
+    /**
+     * Queue the last rows and wait until the I/O thread has written all
+     * of them.
+     *
+     * @throws IOException if a row could not be written
+     */
+    void finish() throws IOException {
+        if (!batch.isEmpty()) {
+            enqueue(batch);
+            batch = new ArrayList<String[]>(0);
+        }
+        end();
+        checkFailure();
+    }
+
+    /**
+     * Drop the rows not written yet and stop the I/O thread, after a
+     * failure of the producer.
+     */
+    void cancel() {
+        // The I/O thread skips the queued batches; the queue is never
+        // cleared, which could drop the END marker
+        cancelled = true;
+        try {
+            end();
+        } catch (IOException ex) {
+            // Interrupted, the I/O thread stops on its own
+        }
+    }
+
+    private void enqueue(ArrayList<String[]> rows) throws IOException {
+        try {
+            queue.put(rows);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new IOException("Interrupted while writing the ACMO rows");
+        }
+        checkFailure();
+    }
+
+    private void end() throws IOException {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+            thread.interrupt();
+            throw new IOException("Interrupted while writing the ACMO rows");
+        }
+    }
+
+    private void drain() {
+        try {
+            ArrayList<String[]> rows;
+            while ((rows = queue.take()) != END) {
+                // After a failure, keep taking the batches so the producer
+                // never waits on a full queue
+                if (cancelled || failure.get() != null) {
+                    continue;
+                }
+                try {
+                    for (String[] row : rows) {
+                        if (cancelled) {
+                            break;
+                        }
+                        sink.write(row);
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            failure.compareAndSet(null, ex);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable ex = failure.get();
+        if (ex == null) {
+            return;
+        } else if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        IOException ioe = new IOException("Error writing the ACMO rows: " + ex.getMessage());
+        ioe.initCause(ex);
+        throw ioe;
+    }
+}
@@ -0,0 +1,363 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts the rows of an {@link AcmoWriter} by REG_ID, CLIM_ID, CRID and
+ * EXNAME within a memory budget.
+ *
+ * The rows are buffered until the budget is reached, then sorted and
+ * spilled to a temporary run file. At the end the runs and the last
+ * buffer are merged with a k-way merge. Rows with the same key keep their
+ * input order. Each row travels with its content hash and the lines of
+ * the other models, as produced by the writer.
+ */
+class AcmoRowSorter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoRowSorter.class);
+    /**
+     * The sort columns, in order
+     */
+    static final String[] SORT_COLUMNS = {"REG_ID", "CLIM_ID", "CRID_text", "EXNAME"};
+    /**
+     * The number of runs merged at once
+     */
+    private static final int MERGE_WIDTH = 64;
+    private static final int RUN_BUFFER_SIZE = 16 * 1024;
+    // The estimated heap used by a buffered row besides its characters
+    private static final int ROW_OVERHEAD = 160;
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return compareKeys(a.key, b.key);
+        }
+    };
+    private final File tmpDir;
+    private final long memoryBudget;
+    private final int[] keyColumns;
+    private final ArrayList<String> cells = new ArrayList<String>();
+    private ArrayList<Entry> buffer = new ArrayList<Entry>();
+    private long bufferBytes = 0;
+    private final ArrayList<File> runs = new ArrayList<File>();
+
+    /**
+     * @param tmpDir the directory for the run files
+     * @param memoryBudget the estimated heap allowed for the buffered rows,
+     * in bytes
+     */
+    AcmoRowSorter(File tmpDir, long memoryBudget) {
+        this.tmpDir = tmpDir;
+        this.memoryBudget = memoryBudget;
+        ArrayList<String> names = new ArrayList<String>();
+        AcmoColumnarFormat.parseSchema(AcmoUtil.generateAcmoHeader(), names, new ArrayList<AcmoColumnType>());
+        keyColumns = new int[SORT_COLUMNS.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = names.indexOf(SORT_COLUMNS[i]);
+        }
+    }
+
+    /**
+     * @return the number of runs spilled so far
+     */
+    int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param result the content hash, can be null, followed by the lines
+     * of the row, the first one holding the sort key
+     * @throws IOException if a run could not be spilled
+     */
+    void add(String[] result) throws IOException {
+        Entry entry = new Entry(key(result[1]), result);
+        buffer.add(entry);
+        bufferBytes += entry.size();
+        if (bufferBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Merge all the rows in order into the sink, then delete the runs.
+     *
+     * @param sink the receiver of the sorted rows
+     * @throws IOException if a run could not be read, or the sink fails
+     */
+    void merge(AcmoRowPipeline.RowSink sink) throws IOException {
+        try {
+            Collections.sort(buffer, ORDER);
+            if (runs.isEmpty()) {
+                for (Entry entry : buffer) {
+                    sink.write(entry.result);
+                }
+                buffer.clear();
+                return;
+            }
+            // Keep the number of open runs bounded, the merged run taking
+            // the place of the oldest ones
+            while (runs.size() >= MERGE_WIDTH) {
+                File merged = newRun();
+                runs.add(0, merged);
+                final DataOutputStream out = openRun(merged);
+                try {
+                    mergeRuns(new ArrayList<File>(runs.subList(1, MERGE_WIDTH + 1)), null, new AcmoRowPipeline.RowSink() {
+                        public void write(String[] result) throws IOException {
+                            writeResult(out, result);
+                        }
+                    });
+                } finally {
+                    out.close();
+                }
+                for (File run : runs.subList(1, MERGE_WIDTH + 1)) {
+                    delete(run);
+                }
+                runs.subList(1, MERGE_WIDTH + 1).clear();
+            }
+            mergeRuns(runs, buffer, sink);
+            buffer.clear();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Delete the remaining run files.
+     */
+    public void close() {
+        for (File run : runs) {
+            delete(run);
+        }
+        runs.clear();
+        buffer.clear();
+        bufferBytes = 0;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, ORDER);
+        File run = newRun();
+        runs.add(run);
+        DataOutputStream out = openRun(run);
+        try {
+            for (Entry entry : buffer) {
+                writeResult(out, entry.result);
+            }
+        } finally {
+            out.close();
+        }
+        log.debug("Spilled {} ACMO rows to {}", buffer.size(), run.getPath());
+        buffer = new ArrayList<Entry>();
+        bufferBytes = 0;
+    }
+
+    /**
+     * Merge the runs and the sorted buffer, the buffer coming last in the
+     * input order.
+     */
+    private void mergeRuns(ArrayList<File> files, ArrayList<Entry> last, AcmoRowPipeline.RowSink sink) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(files.size() + 1);
+        ArrayList<Cursor> cursors = new ArrayList<Cursor>(files.size() + 1);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Cursor cursor = new RunCursor(files.get(i), i);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            if (last != null) {
+                Cursor cursor = new BufferCursor(last, files.size());
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            Cursor cursor;
+            while ((cursor = queue.poll()) != null) {
+                sink.write(cursor.current.result);
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            for (Cursor c : cursors) {
+                c.close();
+            }
+        }
+    }
+
+    private String[] key(String line) {
+        AcmoCsv.split(line, cells);
+        String[] key = new String[keyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            int col = keyColumns[i];
+            key[i] = col < cells.size() ? AcmoCsv.unquote(cells.get(col)) : "";
+        }
+        return key;
+    }
+
+    private static int compareKeys(String[] a, String[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = a[i].compareTo(b[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private File newRun() throws IOException {
+        return File.createTempFile("acmo-sort-", ".run", tmpDir);
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+    }
+
+    /**
+     * Write a row as its number of fields, then each field as its UTF-8
+     * length, -1 for null, and bytes.
+     */
+    private static void writeResult(DataOutputStream out, String[] result) throws IOException {
+        out.writeInt(result.length);
+        for (String field : result) {
+            if (field == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = field.getBytes(AcmoChannelWriter.UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String[] readResult(DataInputStream in) throws IOException {
+        int count;
+        try {
+            count = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            int len = in.readInt();
+            if (len >= 0) {
+                byte[] bytes = new byte[len];
+                in.readFully(bytes);
+                result[i] = new String(bytes, AcmoChannelWriter.UTF8);
+            }
+        }
+        return result;
+    }
+
+    private static void delete(File run) {
+        if (run.exists() && !run.delete()) {
+            log.warn("Unable to delete {}", run.getPath());
+        }
+    }
+
+    private static class Entry {
+
+        private final String[] key;
+        private final String[] result;
+
+        private Entry(String[] key, String[] result) {
+            this.key = key;
+            this.result = result;
+        }
+
+        private long size() {
+            long size = ROW_OVERHEAD;
+            for (String field : result) {
+                if (field != null) {
+                    size += 2L * field.length() + 48;
+                }
+            }
+            for (String k : key) {
+                size += 2L * k.length() + 48;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The next row of a sorted run, ordered by its key then by the order of
+     * the runs.
+     */
+    private abstract static class Cursor implements Comparable<Cursor> {
+
+        private final int order;
+        protected Entry current = null;
+
+        private Cursor(int order) {
+            this.order = order;
+        }
+
+        abstract boolean next() throws IOException;
+
+        void close() {
+        }
+
+        public int compareTo(Cursor o) {
+            int c = compareKeys(current.key, o.current.key);
+            return c != 0 ? c : (order < o.order ? -1 : (order == o.order ? 0 : 1));
+        }
+    }
+
+    private class RunCursor extends Cursor {
+
+        private final DataInputStream in;
+
+        private RunCursor(File run, int order) throws IOException {
+            super(order);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            String[] result = readResult(in);
+            current = result == null ? null : new Entry(key(result[1]), result);
+            return current != null;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close an ACMO sort run: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private static class BufferCursor extends Cursor {
+
+        private final ArrayList<Entry> entries;
+        private int pos = 0;
+
+        private BufferCursor(ArrayList<Entry> entries, int order) {
+            super(order);
+            this.entries = entries;
+        }
+
+        boolean next() {
+            current = pos < entries.size() ? entries.get(pos++) : null;
+            return current != null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.agmip.acmo.util;
+
+/**
+ * The ACMO columns that can partition the output of {@link AcmoWriter}
+ * into shards, following the naming rule of the ACMO CSV files.
+ */
+public enum AcmoShardKey {
+
+    REG_ID("REG_ID"),
+    CRID("CRID_text"),
+    CLIM_ID("CLIM_ID"),
+    RAP_ID("RAP_ID"),
+    MAN_ID("MAN_ID");
+
+    private final String column;
+
+    private AcmoShardKey(String column) {
+        this.column = column;
+    }
+
+    /**
+     * @return the variable name of the column in the ACMO header
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Normalize a cell value for the shard name, like
+     * {@link AcmoUtil#createCsvFile(String, String, String)} does: the crop
+     * name without spaces in upper case and {@code 0} for empty values.
+     *
+     * @param value the cell value
+     * @return the key value
+     */
+    String normalize(String value) {
+        if (this == CRID) {
+            value = value.replaceAll(" ", "").toUpperCase();
+        }
+        return value.isEmpty() ? "0" : value;
+    }
+}
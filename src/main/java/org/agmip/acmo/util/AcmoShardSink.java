@@ -0,0 +1,371 @@
+package org.agmip.acmo.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes ACMO rows to shard files keyed by some of their cells.
+ *
+ * Each shard is bound to one writer lane, a single thread, so the rows of
+ * a shard keep their input order while different shards are written in
+ * parallel. The number of rows waiting for the lanes is bounded, and so
+ * is the number of shard files open at once: past the limit, the least
+ * recently written shard of the lane is closed, and reopened in append
+ * mode when it gets a new row. The size of each row is reported to the
+ * metrics listener from the thread writing it. When closed, the sink
+ * writes a manifest listing the shards and their row counts as an
+ * ACMO-style CSV file.
+ */
+class AcmoShardSink implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoShardSink.class);
+    private static final AtomicInteger sinkCount = new AtomicInteger();
+    /**
+     * The number of pending rows allowed for each lane
+     */
+    private static final int ROWS_PER_LANE = 256;
+    /**
+     * The default number of shard files open at once
+     */
+    static final int DEFAULT_MAX_OPEN_SHARDS = 64;
+    private final File dir;
+    private final String baseName;
+    private final List<AcmoShardKey> keys;
+    private final int[] keyColumns;
+    private final int bufferSize;
+    private final boolean compressed;
+    private final ExecutorService[] lanes;
+    private final Semaphore pending;
+    private final LinkedHashMap<List<String>, Shard> shards = new LinkedHashMap<List<String>, Shard>();
+    private final HashSet<String> fileNames = new HashSet<String>();
+    private final ArrayList<String> cells = new ArrayList<String>();
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    // The open shards of each lane, least recently written first
+    private final List<LinkedHashMap<Shard, Boolean>> openShards;
+    private final int maxOpenPerLane;
+    private AcmoMetricsListener metrics = null;
+    private boolean closed = false;
+
+    /**
+     * @param dir the output directory
+     * @param baseName the base name of the shard files, like ACMO_meta
+     * @param keys the columns keying the shards
+     * @param lanes the number of writer threads, 1 for writing on the
+     * calling thread
+     * @param bufferSize the size of the output buffers of each shard
+     * @param compressed true for gzip-compressed shards
+     */
+    AcmoShardSink(File dir, String baseName, List<AcmoShardKey> keys, int lanes, int bufferSize, boolean compressed) {
+        this(dir, baseName, keys, lanes, bufferSize, compressed, DEFAULT_MAX_OPEN_SHARDS);
+    }
+
+    /**
+     * @param dir the output directory
+     * @param baseName the base name of the shard files, like ACMO_meta
+     * @param keys the columns keying the shards
+     * @param lanes the number of writer threads, 1 for writing on the
+     * calling thread
+     * @param bufferSize the size of the output buffers of each shard
+     * @param compressed true for gzip-compressed shards
+     * @param maxOpenShards the number of shard files open at once, at
+     * least one for each lane
+     */
+    AcmoShardSink(File dir, String baseName, List<AcmoShardKey> keys, int lanes, int bufferSize, boolean compressed, int maxOpenShards) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.keys = keys;
+        this.bufferSize = bufferSize;
+        this.compressed = compressed;
+        ArrayList<String> names = new ArrayList<String>();
+        AcmoColumnarFormat.parseSchema(AcmoUtil.generateAcmoHeader(), names, new ArrayList<AcmoColumnType>());
+        keyColumns = new int[keys.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = names.indexOf(keys.get(i).getColumn());
+        }
+        if (lanes > 1) {
+            final int sinkId = sinkCount.incrementAndGet();
+            this.lanes = new ExecutorService[lanes];
+            for (int i = 0; i < lanes; i++) {
+                final String name = "acmo-shard-" + sinkId + "-" + (i + 1);
+                this.lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            this.pending = new Semaphore(lanes * ROWS_PER_LANE);
+        } else {
+            this.lanes = null;
+            this.pending = null;
+        }
+        int laneCount = this.lanes == null ? 1 : this.lanes.length;
+        this.maxOpenPerLane = Math.max(1, maxOpenShards / laneCount);
+        this.openShards = new ArrayList<LinkedHashMap<Shard, Boolean>>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            openShards.add(new LinkedHashMap<Shard, Boolean>(16, 0.75f, true));
+        }
+    }
+
+    /**
+     * @param metrics the listener receiving the size of each written row,
+     * or null for none
+     */
+    void setMetricsListener(AcmoMetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the manifest file listing the shards
+     */
+    File getManifestFile() {
+        return getManifestFile(dir, baseName);
+    }
+
+    /**
+     * @param dir the output directory
+     * @param baseName the base name of the shard files
+     * @return the manifest file listing the shards
+     */
+    static File getManifestFile(File dir, String baseName) {
+        return new File(dir, baseName + ".shards");
+    }
+
+    /**
+     * Route a row to its shard, rows are expected in output order from a
+     * single thread.
+     *
+     * @param row the row, without the line break
+     * @throws IOException if a shard could not be written
+     */
+    void write(final String row) throws IOException {
+        checkFailure();
+        AcmoCsv.split(row, cells);
+        String[] values = new String[keyColumns.length];
+        for (int i = 0; i < values.length; i++) {
+            int col = keyColumns[i];
+            values[i] = keys.get(i).normalize(col < cells.size() ? AcmoCsv.unquote(cells.get(col)) : "");
+        }
+        List<String> key = Arrays.asList(values);
+        Shard shard = shards.get(key);
+        if (shard == null) {
+            shard = new Shard(values, shardFileName(values), shards.size());
+            shards.put(key, shard);
+        }
+        if (lanes == null) {
+            shard.write(row);
+            return;
+        }
+        try {
+            pending.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the ACMO shards");
+        }
+        final Shard target = shard;
+        lanes[shard.lane % lanes.length].execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        target.write(row);
+                    }
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                } catch (Throwable ex) {
+                    IOException ioe = new IOException("Error writing " + target.file.getName() + ": " + ex);
+                    ioe.initCause(ex);
+                    failure.compareAndSet(null, ioe);
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the pending rows, close the shards and write the manifest.
+     *
+     * @throws IOException if a shard or the manifest could not be written
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (lanes != null) {
+                for (ExecutorService lane : lanes) {
+                    lane.shutdown();
+                }
+                for (ExecutorService lane : lanes) {
+                    while (!lane.awaitTermination(1, TimeUnit.SECONDS)) {
+                        log.debug("Waiting for the ACMO shard writers");
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+            failure.compareAndSet(null, new IOException("Interrupted while writing the ACMO shards"));
+        } finally {
+            for (Shard shard : shards.values()) {
+                try {
+                    shard.close();
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            }
+        }
+        checkFailure();
+        writeManifest();
+    }
+
+    /**
+     * Stop the writer lanes and close the shards without writing the
+     * manifest, after a failed write.
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (lanes != null) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+            try {
+                for (ExecutorService lane : lanes) {
+                    lane.awaitTermination(10, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Shard shard : shards.values()) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                log.warn("Unable to close {}: {}", shard.file.getPath(), ex.getMessage());
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException ex = failure.get();
+        if (ex != null) {
+            IOException ioe = new IOException("Error writing the ACMO shards: " + ex.getMessage());
+            ioe.initCause(ex);
+            throw ioe;
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        AcmoChannelWriter out = AcmoChannelWriter.open(getManifestFile(), 8 * 1024, false);
+        try {
+            out.write("#,FILE,ROWS");
+            for (AcmoShardKey key : keys) {
+                out.write(",");
+                out.write(key.name());
+            }
+            out.write("\n");
+            for (Shard shard : shards.values()) {
+                out.write("*,");
+                out.write(AcmoCsv.quote(shard.file.getName()));
+                out.write(",");
+                out.write(Long.toString(shard.rows));
+                for (String value : shard.values) {
+                    out.write(",");
+                    out.write(AcmoCsv.quote(value));
+                }
+                out.write("\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private String shardFileName(String[] values) {
+        StringBuilder sb = new StringBuilder(baseName);
+        for (String value : values) {
+            sb.append('-');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                boolean safe = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '.';
+                sb.append(safe ? c : '_');
+            }
+        }
+        String name = sb.toString();
+        // Different values may only differ by the replaced characters
+        String unique = name;
+        for (int n = 1; !fileNames.add(unique.toLowerCase()); n++) {
+            unique = name + "_" + n;
+        }
+        return unique + (compressed ? ".dat.gz" : ".dat");
+    }
+
+    private class Shard {
+
+        private final String[] values;
+        private final File file;
+        private final int lane;
+        private AcmoChannelWriter out = null;
+        private boolean started = false;
+        private long rows = 0;
+
+        private Shard(String[] values, String fileName, int lane) {
+            this.values = values;
+            this.file = new File(dir, fileName);
+            this.lane = lane;
+        }
+
+        private void write(String row) throws IOException {
+            LinkedHashMap<Shard, Boolean> open = openShards.get(lane % openShards.size());
+            if (out == null) {
+                if (open.size() >= maxOpenPerLane) {
+                    Shard eldest = open.keySet().iterator().next();
+                    open.remove(eldest);
+                    eldest.close();
+                }
+                out = AcmoChannelWriter.open(file, bufferSize, compressed, started);
+                if (!started) {
+                    out.write(AcmoUtil.generateAcmoHeader());
+                    started = true;
+                }
+            }
+            open.put(this, Boolean.TRUE);
+            long offset = metrics == null ? 0 : out.getBytesWritten();
+            out.write(row);
+            out.write('\n');
+            rows++;
+            if (metrics != null) {
+                metrics.rowWritten(out.getBytesWritten() - offset);
+            }
+        }
+
+        private void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+}
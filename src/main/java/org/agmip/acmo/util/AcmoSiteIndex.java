@@ -0,0 +1,186 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import org.agmip.util.MapUtil;
+
+/**
+ * The weather station and soil site index used to fill the CLIM_ID,
+ * CLIM_CAT, WID, SOIL_ID and SID columns of an ACMO file.
+ *
+ * Soil profiles sharing the same {@code sid} are replicated soils; they
+ * are all written with the shortest soil ID of the group, so the ACMO
+ * file keeps the link to the original data. A reverse index from each
+ * value to its soil IDs keeps this canonicalization linear in the number
+ * of soils. Among soil IDs of the same length, the soil ID being added
+ * wins, so the last one added to the group is kept.
+ *
+ * The index is not thread-safe while it is being built, but can be read
+ * by several threads once all the sites have been added.
+ */
+public class AcmoSiteIndex {
+
+    private final HashMap<String, String> wstClimIdMap = new HashMap<String, String>();
+    private final HashMap<String, String> wstClimCatMap = new HashMap<String, String>();
+    private final HashMap<String, String> widMap = new HashMap<String, String>();
+    // soil_id -> sid for the canonical soil, or soil_id -> canonical soil_id
+    private final HashMap<String, String> sidMap = new HashMap<String, String>();
+    // The reverse of sidMap, value -> the soil IDs mapped to it, in the
+    // order they were mapped
+    private final HashMap<String, LinkedHashSet<String>> reverseMap = new HashMap<String, LinkedHashSet<String>>();
+
+    /**
+     * Index the weather stations.
+     *
+     * @param weathers the weather stations
+     */
+    public void addWeathers(Iterator<HashMap<String, Object>> weathers) {
+        while (weathers != null && weathers.hasNext()) {
+            addWeather(weathers.next());
+        }
+    }
+
+    /**
+     * Index a weather station.
+     *
+     * @param wst the weather station
+     */
+    public void addWeather(HashMap<String, Object> wst) {
+        String wst_id = MapUtil.getValueOr(wst, "wst_id", "");
+        wstClimIdMap.put(wst_id, MapUtil.getValueOr(wst, "clim_id", "0XXX"));
+        wstClimCatMap.put(wst_id, MapUtil.getValueOr(wst, "clim_cat", ""));
+        widMap.put(wst_id, MapUtil.getValueOr(wst, "wid", ""));
+    }
+
+    /**
+     * Index the soil sites.
+     *
+     * @param soils the soil profiles
+     */
+    public void addSoils(Iterator<HashMap<String, Object>> soils) {
+        while (soils != null && soils.hasNext()) {
+            addSoil(soils.next());
+        }
+    }
+
+    /**
+     * Index a soil site.
+     *
+     * @param soil the soil profile
+     */
+    public void addSoil(HashMap<String, Object> soil) {
+        String soilId = MapUtil.getValueOr(soil, "soil_id", "");
+        String sid = MapUtil.getValueOr(soil, "sid", "");
+        // Fix the issue that replicated soil ID been used in the ACMO meta file which modify the original data link
+        LinkedHashSet<String> sameSid = reverseMap.get(sid);
+        if (!sidMap.containsKey(soilId) && sameSid != null) {
+            if (sameSid.size() == 1) {
+                String key = sameSid.iterator().next();
+                if (key.length() < soilId.length()) {
+                    put(soilId, key);
+                } else {
+                    put(soilId, sid);
+                    put(key, soilId);
+                }
+            } else {
+                // Several soil IDs already map to this value, e.g. after a
+                // soil ID was listed twice; keep the shortest of them.
+                ArrayList<String> rplSoilIds = new ArrayList<String>(sameSid.size());
+                for (String key : new ArrayList<String>(sameSid)) {
+                    if (key.length() < soilId.length()) {
+                        rplSoilIds.add(soilId);
+                        soilId = key;
+                    } else {
+                        rplSoilIds.add(key);
+                    }
+                }
+                put(soilId, sid);
+                for (String key : rplSoilIds) {
+                    put(key, soilId);
+                }
+            }
+        } else {
+            put(soilId, sid);
+        }
+    }
+
+    private void put(String soilId, String value) {
+        String old = sidMap.put(soilId, value);
+        if (old != null) {
+            LinkedHashSet<String> keys = reverseMap.get(old);
+            keys.remove(soilId);
+            if (keys.isEmpty()) {
+                reverseMap.remove(old);
+            }
+        }
+        LinkedHashSet<String> keys = reverseMap.get(value);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            reverseMap.put(value, keys);
+        }
+        keys.add(soilId);
+    }
+
+    /**
+     * @param wstId the weather station ID
+     * @return the climate ID of the station, {@code 0XXX} if unknown
+     */
+    public String getClimId(String wstId) {
+        return MapUtil.getValueOr(wstClimIdMap, wstId, "0XXX");
+    }
+
+    /**
+     * @param wstId the weather station ID
+     * @return the climate scenario category of the station
+     */
+    public String getClimCat(String wstId) {
+        return MapUtil.getValueOr(wstClimCatMap, wstId, "");
+    }
+
+    /**
+     * @param wstId the weather station ID
+     * @return the weather ID of the station
+     */
+    public String getWid(String wstId) {
+        return MapUtil.getValueOr(widMap, wstId, "");
+    }
+
+    /**
+     * @param soilId the soil ID used by the experiment
+     * @return the soil ID to write, the shortest one among the replicated
+     * soils
+     */
+    public String getSoilId(String soilId) {
+        String sid = MapUtil.getValueOr(sidMap, soilId, "");
+        if (sidMap.containsKey(sid)) {
+            return sid;
+        }
+        return soilId;
+    }
+
+    /**
+     * @param soilId the soil ID used by the experiment
+     * @return the soil site ID
+     */
+    public String getSid(String soilId) {
+        String sid = MapUtil.getValueOr(sidMap, soilId, "");
+        if (sidMap.containsKey(sid)) {
+            sid = MapUtil.getValueOr(sidMap, sid, "");
+        }
+        return sid;
+    }
+
+    /**
+     * Remove all the indexed sites.
+     */
+    public void clear() {
+        wstClimIdMap.clear();
+        wstClimCatMap.clear();
+        widMap.clear();
+        sidMap.clear();
+        reverseMap.clear();
+    }
+}
@@ -0,0 +1,29 @@
+package org.agmip.acmo.util;
+
+/**
+ * The stages of the ACMO generation timed by an
+ * {@link AcmoMetricsListener}.
+ */
+public enum AcmoStage {
+
+    /**
+     * Indexing the weather stations and soil profiles
+     */
+    INDEXING,
+    /**
+     * Summarizing the management events of an experiment
+     */
+    EVENT_EXTRACTION,
+    /**
+     * Resolving the DOME meta data of an experiment
+     */
+    DOME_RESOLUTION,
+    /**
+     * Encoding the other cells of a row
+     */
+    ENCODING,
+    /**
+     * Writing a row to the output
+     */
+    IO
+}
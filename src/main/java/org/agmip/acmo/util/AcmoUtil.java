@@ -1,19 +1,23 @@
 package org.agmip.acmo.util;
 
 import au.com.bytecode.opencsv.CSVReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import org.agmip.util.MapUtil;
-import org.agmip.ace.LookupCodes;
-import org.agmip.ace.util.AcePathfinderUtil;
 import org.agmip.dome.DomeUtil;
 
 import org.slf4j.Logger;
@@ -21,6 +25,18 @@ import org.slf4j.LoggerFactory;
 
 public class AcmoUtil {
     private static final Logger log = LoggerFactory.getLogger(AcmoUtil.class);
+    private static final EventAggregatorRegistry defaultAggregators = EventAggregatorRegistry.createDefault();
+    // The number of CSV file base names whose next suffix is kept
+    private static final int MAX_CSV_FILE_SUFFIXES = 256;
+    // The next suffix to try for the last CSV file base names used
+    private static final LinkedHashMap<String, AtomicInteger> csvFileSuffixes = new LinkedHashMap<String, AtomicInteger>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AtomicInteger> eldest) {
+            return size() > MAX_CSV_FILE_SUFFIXES;
+        }
+    };
     /**
      * Do not instantiate
      */
@@ -38,86 +54,56 @@ public class AcmoUtil {
      *
      */
     public static void writeAcmo(String outputPath, HashMap<String, Object> datapackage, String destModel, HashMap<String, String> domeIdHashMap) {
-        if (domeIdHashMap == null) {
-            domeIdHashMap = new HashMap();
-        }
-        HashMap<String, String> wstClimIdMap = new HashMap<String, String>();
-        HashMap<String, String> wstClimCatMap = new HashMap<String, String>();
-        HashMap<String, String> widMap = new HashMap<String, String>();
-        HashMap<String, String> sidMap = new HashMap<String, String>();
+        writeAcmo(outputPath,
+                MapUtil.getRawPackageContents(datapackage, "experiments").iterator(),
+                MapUtil.getRawPackageContents(datapackage, "weathers").iterator(),
+                MapUtil.getRawPackageContents(datapackage, "soils").iterator(),
+                destModel, domeIdHashMap);
+    }
+
+    /**
+     * Write an ACMO file to the specified {@code outputPath} by streaming
+     * the experiments one at a time. Only the weather and soil indexes are
+     * kept in memory, so the experiments may be loaded lazily by the
+     * caller and dropped once their line has been written. Use
+     * {@link AcmoWriter} directly to extract the lines in parallel.
+     *
+     * @param outputPath the directory to write the ACMO_meta.dat file.
+     * @param experiments the experiments to write, in output order
+     * @param weathers the weather stations referred by the experiments
+     * @param soils the soil profiles referred by the experiments
+     * @param destModel the destination model name
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     *
+     */
+    public static void writeAcmo(String outputPath, Iterator<HashMap<String, Object>> experiments, Iterator<HashMap<String, Object>> weathers, Iterator<HashMap<String, Object>> soils, String destModel, HashMap<String, String> domeIdHashMap) {
+        AcmoWriter writer = new AcmoWriter(outputPath, destModel);
+        writer.setDomeIdHashMap(domeIdHashMap);
         try {
-            // Make sure the outputPath exists
-            File f = new File(outputPath);
-            f.mkdirs();
-            String fileName   = outputPath+File.separator+"ACMO_meta.dat";
-            log.debug("Attempting to write {}", fileName);
-            FileWriter fw     = new FileWriter(fileName);
-            BufferedWriter bw = new BufferedWriter(fw);
-            // Index the Weather Stations
-            for (HashMap<String, Object> wst : MapUtil.getRawPackageContents(datapackage, "weathers")) {
-                String wst_id = MapUtil.getValueOr(wst, "wst_id", "");
-                wstClimIdMap.put(wst_id, MapUtil.getValueOr(wst, "clim_id", "0XXX"));
-                wstClimCatMap.put(wst_id, MapUtil.getValueOr(wst, "clim_cat", ""));
-                widMap.put(wst_id, MapUtil.getValueOr(wst, "wid", ""));
-            }
-            // Index the Soil Site
-            for (HashMap<String, Object> soil : MapUtil.getRawPackageContents(datapackage, "soils")) {
-                String soilId = MapUtil.getValueOr(soil, "soil_id", "");
-                String sid = MapUtil.getValueOr(soil, "sid", "");
-                // Fix the issue that replicated soil ID been used in the ACMO meta file which modify the original data link
-                if (!sidMap.containsKey(soilId) && sidMap.containsValue(sid)) {
-                    ArrayList<String> rplSoilIds = new ArrayList();
-                    for (String key : sidMap.keySet()) {
-                        if (sid.equals(sidMap.get(key))) {
-                            if (key.length() < soilId.length()) {
-                                rplSoilIds.add(soilId);
-                                soilId = key;
-                            } else {
-                                rplSoilIds.add(key);
-                            }
-                        }
-                    }
-                    sidMap.put(soilId, sid);
-                    for (String key : rplSoilIds) {
-                        sidMap.put(key, soilId);
-                    }
-                } else {
-                    sidMap.put(soilId, sid);
-                }
-            }
+            writer.write(experiments, weathers, soils);
+        } catch (Exception ex) {
+            log.error("Error writing ACMO_meta.dat: {}", ex.getMessage(), ex);
+        }
+    }
 
-            try {
-                // First write the header
-                bw.write(generateAcmoHeader());
-                // Then write the lines
-                ArrayList<HashMap<String, Object>> experiments = MapUtil.getRawPackageContents(datapackage, "experiments");
-                for (HashMap<String, Object> experiment : experiments) {
-                    // get WSTID and pass the CLIM_ID from that.
-                    String wstId = MapUtil.getValueOr(experiment, "wst_id", "");
-                    String soilId = MapUtil.getValueOr(experiment, "soil_id", "");
-                    String climId = MapUtil.getValueOr(experiment, "ctwn_clim_id", MapUtil.getValueOr(wstClimIdMap, wstId, "0XXX"));
-                    String climCat = MapUtil.getValueOr(wstClimCatMap, wstId, "");
-                    String quaduiVer = MapUtil.getValueOr(experiment, "quaduiVer", "");
-                    String wid = MapUtil.getValueOr(widMap, wstId, "");
-                    String sid = MapUtil.getValueOr(sidMap, soilId, "");
-                    if (sidMap.containsKey(sid)) {
-                        soilId = sid;
-                        sid = MapUtil.getValueOr(sidMap, sid, "");
-                    }
-                    String acmoData = extractAcmoData(experiment, destModel, domeIdHashMap, climId, climCat, wid, sid, soilId, quaduiVer);
-                    log.debug("ACMO dataline: {}", acmoData);
-                    bw.write(acmoData);
-                    bw.write("\n");
-                }
-            } finally {
-                // Finally close the file.
-                log.debug("Attempting to close the ACMO file");
-                bw.flush();
-                bw.close();
-                fw.close();
-            }
+    /**
+     * Write an ACMO file for each of the {@code destModels} in a single
+     * pass, see {@link AcmoWriter#AcmoWriter(String, List)}.
+     *
+     * @param outputPath the directory holding a folder for each model
+     * @param datapackage a standard AgMIP package
+     * @param destModels the destination model names
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     */
+    public static void writeAcmo(String outputPath, HashMap<String, Object> datapackage, List<String> destModels, HashMap<String, String> domeIdHashMap) {
+        AcmoWriter writer = new AcmoWriter(outputPath, destModels);
+        writer.setDomeIdHashMap(domeIdHashMap);
+        try {
+            writer.write(MapUtil.getRawPackageContents(datapackage, "experiments").iterator(),
+                    MapUtil.getRawPackageContents(datapackage, "weathers").iterator(),
+                    MapUtil.getRawPackageContents(datapackage, "soils").iterator());
         } catch (Exception ex) {
-            log.error("Error writing ACMO_meta.dat: {}", ex.getMessage());
+            log.error("Error writing ACMO_meta.dat: {}", ex.getMessage(), ex);
         }
     }
 
@@ -132,9 +118,61 @@ public class AcmoUtil {
      * @return ACMO compatible CSV line.
      */
     public static String extractAcmoData(HashMap<String, Object> dataset, String destModel, HashMap<String, String> domeIdHashMap, String... ids) {
-        ArrayList<String> acmoData = new ArrayList<String>();
+        AcmoRowEncoder acmoData = new AcmoRowEncoder();
+        extractAcmoData(dataset, destModel, domeIdHashMap, acmoData, ids);
+        return acmoData.toString();
+    }
+
+    /**
+     * Extract an ACMO line from a single experiment into the given encoder
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     * @param acmoData the encoder to append the cells to, it is not reset
+     * @param ids including clime ID, wid and sid
+     */
+    public static void extractAcmoData(HashMap<String, Object> dataset, String destModel, HashMap<String, String> domeIdHashMap, AcmoRowEncoder acmoData, String... ids) {
+        extractAcmoData(dataset, destModel, domeIdHashMap, defaultAggregators, acmoData, ids);
+    }
+
+    /**
+     * Extract an ACMO line from a single experiment into the given encoder,
+     * with the event columns summarized by the given aggregators
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     * @param aggregators the event aggregators
+     * @param acmoData the encoder to append the cells to, it is not reset
+     * @param ids including clime ID, wid and sid
+     */
+    public static void extractAcmoData(HashMap<String, Object> dataset, String destModel, HashMap<String, String> domeIdHashMap, EventAggregatorRegistry aggregators, AcmoRowEncoder acmoData, String... ids) {
+        extractAcmoData(dataset, destModel, domeIdHashMap, aggregators, null, acmoData, ids);
+    }
+
+    /**
+     * Extract an ACMO line from a single experiment into the given encoder,
+     * timing the stages when a listener is given
+     */
+    static void extractAcmoData(HashMap<String, Object> dataset, String destModel, HashMap<String, String> domeIdHashMap, EventAggregatorRegistry aggregators, AcmoMetricsListener metrics, AcmoRowEncoder acmoData, String... ids) {
+        extractAcmoData(dataset, destModel, Collections.<String>emptyList(), null, domeIdHashMap, aggregators, metrics, acmoData, ids);
+    }
+
+    /**
+     * Extract an ACMO line from a single experiment into the given encoder,
+     * summarizing the events for other destination models in the same
+     * pass, see {@link EventAggregatorRegistry#aggregate(HashMap, String, AcmoMetricsListener, List, List)}
+     */
+    static void extractAcmoData(HashMap<String, Object> dataset, String destModel, List<String> otherModels, List<HashMap<String, String>> otherEvents, HashMap<String, String> domeIdHashMap, EventAggregatorRegistry aggregators, AcmoMetricsListener metrics, AcmoRowEncoder acmoData, String... ids) {
+        long start = metrics == null ? 0 : System.nanoTime();
         HashMap<String, Object> observed = MapUtil.getRawBucket(dataset, "observed");
-        HashMap<String, String> events   = extractEventData(dataset, destModel);
+        HashMap<String, String> events   = aggregators.aggregate(dataset, destModel, metrics, otherModels, otherEvents);
+        long eventNanos = 0;
+        if (metrics != null) {
+            eventNanos = System.nanoTime() - start;
+            metrics.stageCompleted(AcmoStage.EVENT_EXTRACTION, eventNanos);
+        }
         String climId = "0XXX";
         String climCat = "";
         String wid = "";
@@ -192,106 +230,86 @@ public class AcmoUtil {
 
         String fieldOverlayString = MapUtil.getValueOr(dataset, "field_overlay", "");
         String seasonalStrategyString = MapUtil.getValueOr(dataset, "seasonal_strategy", "");
-        ArrayList<HashMap<String, String>> domeBases = new ArrayList();
 
-        acmoData.add("*"); // Just an indication mark, this line stands alone
-        acmoData.add(""); // Suite ID, not implemented yet
+        acmoData.plain("*"); // Just an indication mark, this line stands alone
+        acmoData.plain(""); // Suite ID, not implemented yet
         String exname = MapUtil.getValueOr(dataset, "exname", "");
-        acmoData.add(quoteMe(exname));
+        acmoData.quoted(exname);
         String doStr = getDomeIds(dataset, "field_overlay", "field_dome_applied").toUpperCase();
         String dsStr = getDomeIds(dataset, "seasonal_strategy", "seasonal_dome_applied").toUpperCase();
         String drStr = getDomeIds(dataset, "rotational_analysis", "rotational_dome_applied").toUpperCase();
         String batStr = getDomeIds(dataset, "batch_dome", "batch_dome_applied").toUpperCase();
         String batRunNum = getDomeIds(dataset, "batch_run#", "batch_dome_applied").toUpperCase();
-        acmoData.add(quoteMe(doStr));
-        acmoData.add(quoteMe(dsStr));
-        acmoData.add(quoteMe(drStr));
-        acmoData.add(quoteMe(batStr));
-        acmoData.add(quoteMe(batRunNum));
+        acmoData.quoted(doStr);
+        acmoData.quoted(dsStr);
+        acmoData.quoted(drStr);
+        acmoData.quoted(batStr);
+        acmoData.quoted(batRunNum);
         String runNum = "1";
         if (exname.matches(".*__\\d+")) {
             runNum = exname.substring(exname.lastIndexOf("__") + 2);
         }
-        acmoData.add(runNum);
-        acmoData.add(quoteMe(MapUtil.getValueOr(dataset, "trt_name", "")));
-        acmoData.add(quoteMe(climId));
-        acmoData.add(quoteMe(climCat));
-        acmoData.add("1");
-        if (! seasonalStrategyString.isEmpty()) {
-            domeBases.addAll(getDomeMetaInfos(seasonalStrategyString));
-        }
-        domeBases.addAll(getDomeMetaInfos(fieldOverlayString));
-
-        String reg_id = getDomeMetaInfo(domeBases, "reg_id", "");
-        String rap_id = getDomeMetaInfo(domeBases, "rap_id", "");
-        String man_id = getDomeMetaInfo(domeBases, "man_id", "");
-
-        acmoData.add(quoteMe(checkCMSeries(exname, climId, rap_id, man_id))); // CMSS
-        acmoData.add(quoteMe(reg_id)); // Region
-        acmoData.add(quoteMe(getDomeMetaInfo(domeBases, "stratum", ""))); // Stratum
-        acmoData.add(rap_id); // RAP ID
-        acmoData.add(man_id); // MAN ID
-        acmoData.add("AgMIP"); // Institution
-        acmoData.add(MapUtil.getValueOr(dataset, "rotation", "0"));
+        acmoData.plain(runNum);
+        acmoData.quoted(MapUtil.getValueOr(dataset, "trt_name", ""));
+        acmoData.quoted(climId);
+        acmoData.quoted(climCat);
+        acmoData.plain("1");
+        long domeStart = metrics == null ? 0 : System.nanoTime();
+        DomeMetaInfo domeMeta = DomeMetaCache.getDefault().resolve(seasonalStrategyString, fieldOverlayString);
+        long domeNanos = 0;
+        if (metrics != null) {
+            domeNanos = System.nanoTime() - domeStart;
+            metrics.stageCompleted(AcmoStage.DOME_RESOLUTION, domeNanos);
+        }
+
+        String reg_id = domeMeta.getRegId();
+        String rap_id = domeMeta.getRapId();
+        String man_id = domeMeta.getManId();
+
+        acmoData.quoted(checkCMSeries(exname, climId, rap_id, man_id)); // CMSS
+        acmoData.quoted(reg_id); // Region
+        acmoData.quoted(domeMeta.getStratum()); // Stratum
+        acmoData.plain(rap_id); // RAP ID
+        acmoData.plain(man_id); // MAN ID
+        acmoData.plain("AgMIP"); // Institution
+        acmoData.plain(MapUtil.getValueOr(dataset, "rotation", "0"));
         String wst_id = MapUtil.getValueOr(dataset, "wst_id", "");
         if (wst_id.length() > 4) {
             wst_id = wst_id.substring(0, 4);
         }
-        acmoData.add(wst_id);
-        acmoData.add(soil_id);
-        acmoData.add(MapUtil.getValueOr(dataset, "fl_lat", ""));
-        acmoData.add(MapUtil.getValueOr(dataset, "fl_long", ""));
-        acmoData.add(quoteMe(MapUtil.getValueOr(events, "crid", "")));
-        acmoData.add(MapUtil.getValueOr(events, "cul_id", ""));
-        acmoData.add(quoteMe(MapUtil.getValueOr(events, "cul_name", "")));
-        acmoData.add(correctDateFormat(MapUtil.getValueOr(dataset, "sdat", "")));
-        acmoData.add(correctDateFormat(MapUtil.getValueOr(events, "pdate", "")));
-        acmoData.add(MapUtil.getValueOr(observed, "hwah", ""));
-        acmoData.add(MapUtil.getValueOr(observed, "cwah", ""));
-        acmoData.add(correctDateFormat(MapUtil.getValueOr(observed, "hdate", "")));
-        acmoData.add(MapUtil.getValueOr(events, "ir_count", ""));
-        acmoData.add(MapUtil.getValueOr(events, "ir_tot", ""));
-        acmoData.add(quoteMe(MapUtil.getValueOr(events, "irop", "")));
-        acmoData.add(MapUtil.getValueOr(events, "fe_count", ""));
-        acmoData.add(MapUtil.getValueOr(events, "fen_tot", ""));
-        acmoData.add(MapUtil.getValueOr(events, "fep_tot", ""));
-        acmoData.add(MapUtil.getValueOr(events, "fek_tot", ""));
-        acmoData.add(MapUtil.getValueOr(events, "omamt", ""));
-        acmoData.add(MapUtil.getValueOr(events, "ti_count", ""));
-        acmoData.add(quoteMe(MapUtil.getValueOr(events, "tiimp", "")));
-        acmoData.add(quoteMe(MapUtil.getValueOr(dataset, "eid", ""))); // Will be generated by the database
-        acmoData.add(quoteMe(wid)); // Will be generated by the database
-        acmoData.add(quoteMe(sid)); // Will be generated by the database
-        acmoData.add(quoteMe(getDomeHash(domeIdHashMap, doStr))); // Will be generated by the database
-        acmoData.add(quoteMe(getDomeHash(domeIdHashMap, dsStr))); // Will be generated by the database
-        acmoData.add(quoteMe(getDomeHash(domeIdHashMap, drStr))); // Will be generated by the database
-        acmoData.add(quoteMe(getDomeHash(domeIdHashMap, batStr))); // Will be generated by the database
-        acmoData.add(quoteMe("quadui=" + quaduiVer + "|acmoui="));
-        acmoData.add(destModel.toUpperCase());
-        return joinList(acmoData, ",");
-    }
-
-    private static ArrayList<HashMap<String, String>> getDomeMetaInfos(String domeStr) {
-        ArrayList<HashMap<String, String>> ret = new ArrayList();
-        String[] domes = domeStr.split("[|]");
-        for (String dome : domes) {
-            ret.add(DomeUtil.unpackDomeName(dome));
-        }
-        return ret;
-    }
-
-    private static String getDomeMetaInfo(ArrayList<HashMap<String, String>> domeBases, String metaId, String defVal) {
-        String ret = "";
-        for (HashMap<String, String> domeBase : domeBases) {
-            ret = MapUtil.getValueOr(domeBase, metaId, "");
-            if (!ret.isEmpty()) {
-                break;
-            }
-        }
-        if (ret.isEmpty()) {
-            return defVal;
-        } else {
-            return ret;
+        acmoData.plain(wst_id);
+        acmoData.plain(soil_id);
+        acmoData.plain(MapUtil.getValueOr(dataset, "fl_lat", ""));
+        acmoData.plain(MapUtil.getValueOr(dataset, "fl_long", ""));
+        acmoData.quoted(MapUtil.getValueOr(events, "crid", ""));
+        acmoData.markNextCell().plain(MapUtil.getValueOr(events, "cul_id", ""));
+        acmoData.quoted(MapUtil.getValueOr(events, "cul_name", ""));
+        acmoData.plain(correctDateFormat(MapUtil.getValueOr(dataset, "sdat", "")));
+        acmoData.plain(correctDateFormat(MapUtil.getValueOr(events, "pdate", "")));
+        acmoData.plain(MapUtil.getValueOr(observed, "hwah", ""));
+        acmoData.plain(MapUtil.getValueOr(observed, "cwah", ""));
+        acmoData.plain(correctDateFormat(MapUtil.getValueOr(observed, "hdate", "")));
+        acmoData.plain(MapUtil.getValueOr(events, "ir_count", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "ir_tot", ""));
+        acmoData.quoted(MapUtil.getValueOr(events, "irop", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "fe_count", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "fen_tot", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "fep_tot", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "fek_tot", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "omamt", ""));
+        acmoData.plain(MapUtil.getValueOr(events, "ti_count", ""));
+        acmoData.quoted(MapUtil.getValueOr(events, "tiimp", ""));
+        acmoData.quoted(MapUtil.getValueOr(dataset, "eid", "")); // Will be generated by the database
+        acmoData.quoted(wid); // Will be generated by the database
+        acmoData.quoted(sid); // Will be generated by the database
+        appendDomeHash(acmoData, domeIdHashMap, doStr); // Will be generated by the database
+        appendDomeHash(acmoData, domeIdHashMap, dsStr); // Will be generated by the database
+        appendDomeHash(acmoData, domeIdHashMap, drStr); // Will be generated by the database
+        appendDomeHash(acmoData, domeIdHashMap, batStr); // Will be generated by the database
+        acmoData.beginQuoted().escaped("quadui=").escaped(quaduiVer).escaped("|acmoui=").endQuoted();
+        acmoData.plain(destModel.toUpperCase());
+        if (metrics != null) {
+            metrics.stageCompleted(AcmoStage.ENCODING, System.nanoTime() - start - eventNanos - domeNanos);
         }
     }
 
@@ -303,17 +321,21 @@ public class AcmoUtil {
         }
     }
 
-    private static String getDomeHash(HashMap<String, String> domeIdHashMap, String domeIds) {
-        ArrayList<String> domeHashs = new ArrayList();
+    private static void appendDomeHash(AcmoRowEncoder acmoData, HashMap<String, String> domeIdHashMap, String domeIds) {
+        acmoData.beginQuoted();
+        boolean first = true;
         String[] ids = domeIds.split("\\|");
         for (String id : ids) {
             String hash = MapUtil.getValueOr(domeIdHashMap, id, "");
             if (!hash.isEmpty()) {
-                domeHashs.add(hash);
+                if (!first) {
+                    acmoData.escaped('|');
+                }
+                acmoData.escaped(hash);
+                first = false;
             }
         }
-
-        return joinList(domeHashs, "|");
+        acmoData.endQuoted();
     }
 
     /**
@@ -327,169 +349,22 @@ public class AcmoUtil {
     }
 
     protected static HashMap<String, String> extractEventData(HashMap<String, Object> dataset, String destModel) {
-        destModel = destModel.toLowerCase();
-        HashMap<String, String> results = new HashMap<String, String>();
-        HashMap<String, Object> management = MapUtil.getRawBucket(dataset, "management");
-        ArrayList<HashMap<String, String>> events = (ArrayList<HashMap<String, String>>) MapUtil.getObjectOr(management, "events", new ArrayList<HashMap<String, String>>());
-        int irrCount = 0;
-        boolean isAutoIrrigation = false;
-        int feCount = 0;
-        int tilCount = 0;
-        ArrayList<String> irop = new ArrayList<String>();
-        ArrayList<String> timp = new ArrayList<String>();
-        BigDecimal irrAmount, fenAmount, fekAmount, fepAmount, omAmount;
-        try {
-            irrAmount = new BigDecimal(0.0);
-            fenAmount = new BigDecimal(0.0);
-            fekAmount = new BigDecimal(0.0);
-            fepAmount = new BigDecimal(0.0);
-            omAmount  = new BigDecimal(0.0);
-        } catch (Exception ex) {
-            //Something really weird happened here. Like really really weird.
-            log.error("Error converting 0.0 to a decimal, hard Java error");
-            return new HashMap<String, String>();
-        }
-        // Process only the items needed by ACMO.
-
-        for (HashMap<String, String> event : events) {
-            // From planting, we need to extract PDATE, CUL_ID, CUL_NAME,
-            // and CRID (as full text)
-
-            String currentEvent = MapUtil.getValueOr(event, "event", "");
-            log.debug("Current event: {}", event.toString());
-            if (currentEvent.equals("planting")) {
-                populateEventMap(results, event, "pdate", destModel);
-                populateEventMap(results, event, "cul_name", destModel);
-
-                if (event.containsKey(destModel+"_cul_id")) {
-                    populateEventMap(results, event, destModel+"_cul_id", destModel);
-                } else {
-                    populateEventMap(results, event, "cul_id", destModel);
-                }
-
-                String crop = LookupCodes.lookupCode("crid", MapUtil.getValueOr(event, "crid", ""), "cn");
-                results.put("crid", crop);
-            } else if (currentEvent.equals("irrigation")) {
-                String irval = MapUtil.getValueOr(event, "irval", "");
-                String sIrIpCode = MapUtil.getValueOr(event, "irop", "");
-                String sIrOp = LookupCodes.lookupCode("irop", sIrIpCode, "cn");
-                boolean isPaddy = false;
-                if (sIrIpCode.equals("IR008") || sIrIpCode.equals("IR009") || sIrIpCode.equals("IR010")) {
-                    isPaddy = true;
-                } else if (sIrIpCode.equals("IR011")) {
-                    isAutoIrrigation = true;
-                    isPaddy = true;
-                }
-                if (!isPaddy) {
-                    irrCount++;
-                    try {
-                        if (!irval.isEmpty()) {
-                            irrAmount = irrAmount.add(new BigDecimal(irval));
-                        }
-                    } catch (Exception ex) {
-                        log.error("Error converting irrigation amount with value {}", irval);
-                        continue;
-                    }
-                }
-                
-                if (! irop.contains(sIrOp)) {
-                    irop.add(sIrOp);
-                }
-            } else if (currentEvent.equals("fertilizer")) {
-                feCount++;
-                String feamn = MapUtil.getValueOr(event, "feamn", "");
-                String feamk = MapUtil.getValueOr(event, "feamk", "");
-                String feamp = MapUtil.getValueOr(event, "feamp", "");
-                log.debug("Feamn amount: {}", feamn);
-                try {
-                    if (!feamn.isEmpty()) {
-                        fenAmount = fenAmount.add(new BigDecimal(feamn));
-                    }
-                } catch (Exception ex) {
-                    log.error("Error converting fertilizer [nitrogen] with value {}", feamn);
-                    continue;
-                }
-                log.debug(fenAmount.toString());
-
-                try {
-                    if (!feamk.isEmpty()) {
-                        fekAmount = fekAmount.add(new BigDecimal(feamk));
-                    }
-                } catch (Exception ex) {
-                    log.error("Error converting fertilizer [potassium] with value {}", feamn);
-                    continue;
-                }
-
-                try {
-                    if (!feamp.isEmpty()) {
-                        fepAmount = fepAmount.add(new BigDecimal(feamp));
-                    }
-                } catch (Exception ex) {
-                    log.error("Error converting fertilizer [phosphorus] with value {}", feamn);
-                }
-            } else if (currentEvent.equals("organic_matter")) {
-                String omamt = MapUtil.getValueOr(event, "omamt", "");
-                if (! omamt.isEmpty()) {
-                    try {
-                        omAmount = omAmount.add(new BigDecimal(omamt));
-                    } catch (Exception ex) {
-                        log.error("Error converting organic matter amount with value {}", omamt);
-                    }
-                }
-            } else if (currentEvent.equals("tillage")) {
-                tilCount++;
-                String tiimp = LookupCodes.lookupCode("tiimp", MapUtil.getValueOr(event, "tiimp", ""), "ca");
-                if (! timp.contains(tiimp)) {
-                    timp.add(tiimp);
-                }
-            }
-        }
-        // After processing all the events, consume the results of the counters.
-        if (isAutoIrrigation) {
-            results.put("ir_count", "auto");
-            results.put("ir_tot", "auto");
-            results.put("irop", joinList(irop, "|"));
-        } else if (irrCount > 0) {
-            results.put("ir_count", Integer.toString(irrCount));
-            results.put("ir_tot", irrAmount.toString());
-            results.put("irop", joinList(irop, "|"));
-        }
-        if (feCount > 0) {
-            results.put("fe_count", Integer.toString(feCount));
-            results.put("fen_tot", fenAmount.toString());
-            results.put("fek_tot", fekAmount.toString());
-            results.put("fep_tot", fepAmount.toString());
-        }
-        String om_tot = omAmount.toString();
-        if (! om_tot.equals("0")) {
-            results.put("omamt", om_tot);
-        }
-        if (tilCount > 0) {
-            results.put("ti_count", Integer.toString(tilCount));
-            results.put("tiimp", joinList(timp, "|"));
-        }
-        log.debug("extractEventData results: {}", results.toString());
-        return results;
+        return defaultAggregators.aggregate(dataset, destModel);
     }
 
-    private static void populateEventMap(HashMap<String, String> eventMap, HashMap<String, String> sourceMap, String var, String destModel) {
-        String tempVar = AcePathfinderUtil.setEventDateVar(var, true);
-        String value = MapUtil.getValueOr(sourceMap, tempVar, "");
-        if (var.startsWith(destModel)) {
-            var = var.substring(destModel.length()+1);
-        }
-        eventMap.put(var, value);
-    }
-
-    private static String joinList(ArrayList<String> list, String joint) {
-        StringBuilder joinedList = new StringBuilder();
-        for (String item : list) {
-            joinedList.append(item);
-            joinedList.append(joint);
-        }
-        if (joinedList.length() > 0)
-            joinedList.setLength(joinedList.length()-1);
-        return joinedList.toString();
+    /**
+     * Summarize the management events of a single experiment in one pass
+     * with the given aggregators. Use a registry from
+     * {@link EventAggregatorRegistry#createDefault()} to get the ACMO
+     * values together with extra summaries.
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @param aggregators the event aggregators
+     * @return the summary values of the events
+     */
+    public static HashMap<String, String> extractEventData(HashMap<String, Object> dataset, String destModel, EventAggregatorRegistry aggregators) {
+        return aggregators.aggregate(dataset, destModel);
     }
 
     private static String correctDateFormat(String date) {
@@ -503,10 +378,6 @@ public class AcmoUtil {
         }
     }
 
-    private static String quoteMe(String unquoted) {
-        return "\""+unquoted.replaceAll("\"", "\"\"").replaceAll("\\\\", "\\\\\\\\") +"\"";
-    }
-
     /**
      * Generate an ACMO CSV file object with a non-repeated file name in the
      * given directory. The naming rule is as follow,
@@ -515,6 +386,7 @@ public class AcmoUtil {
      * @param outputCsvPath The output path for CSV file
      * @param mode The name of model which provide the model output data
      * @return The {@code File} for CSV file
+     * @throws IllegalStateException if the file could not be created
      */
     public static File createCsvFile(String outputCsvPath, String mode) {
         return createCsvFile(outputCsvPath, mode, null);
@@ -527,7 +399,9 @@ public class AcmoUtil {
      * @param outputCsvPath The output path for CSV file
      * @param model The name of model which provide the model output data
      * @param metaFilePath The path of meta data file
-     * @return The {@code File} for CSV file
+     * @return The {@code File} for CSV file, created empty to reserve the
+     * name, along with the output directory if missing
+     * @throws IllegalStateException if the file could not be created
      */
     public static File createCsvFile(String outputCsvPath, String model, String metaFilePath) {
         if (!outputCsvPath.endsWith(File.separator) && !outputCsvPath.isEmpty()) {
@@ -536,98 +410,208 @@ public class AcmoUtil {
         String domeInfo = "";
         if (metaFilePath != null) {
             try {
-                // Read meta data
-                CSVReader reader = new CSVReader(new FileReader(metaFilePath), ',', '"');
-                List<String[]> metaData = reader.readAll();
-                reader.close();
-                // Get Title and first record
-                String[] title = new String[0];
-                ArrayList<String[]> dataArr = new ArrayList();
-                for (int i = 0; i < metaData.size() - 1; i++) {
-                    if ("#".equals(metaData.get(i)[0])) {
-                        title = metaData.get(i);
-                    } else if ("*".equals(metaData.get(i)[0])) {
-                        dataArr.add(metaData.get(i));
-                    }
+                domeInfo = readDomeInfo(metaFilePath);
+            } catch (IOException ex) {
+                domeInfo = "";
+            }
+        }
+        // Create CSV file name
+        return reserveCsvFile(outputCsvPath + "ACMO-" + domeInfo + model);
+    }
+
+    /**
+     * Reserve a non-repeated CSV file name by creating the empty file, so
+     * concurrent callers never get the same file. The base name is tried
+     * first, then the suffixes from the next one cached for the base name;
+     * the existing files are only probed once while the base name is among
+     * the last ones used. The suffixes of files deleted afterwards are not
+     * reused. A missing output directory is created.
+     *
+     * @param basePath The path of the CSV file without the extension
+     * @return The {@code File} for CSV file
+     * @throws IllegalStateException if the file could not be created
+     */
+    private static File reserveCsvFile(String basePath) {
+        File f = new File(basePath + ".csv");
+        try {
+            if (createNewFile(f)) {
+                return f;
+            }
+            String key = new File(basePath).getCanonicalPath();
+            AtomicInteger next;
+            synchronized (csvFileSuffixes) {
+                next = csvFileSuffixes.get(key);
+                if (next == null) {
+                    next = new AtomicInteger(1);
+                    csvFileSuffixes.put(key, next);
                 }
-                // Get the position index of Region, stratum, climate ID, RAP ID and Management ID
-                int region = -1;
-                int crop = -1;
-                int climateId = -1;
-                int rapId = -1;
-                int mgnId = -1;
-                int field = -1;
-                int seasonal = -1;
-                int count = 0;
-                for (int i = 0; i < title.length; i++) {
-                    if ("REG_ID".equalsIgnoreCase(title[i])) {
-                        region = i;
-                        count++;
-                    } else if ("CRID_text".equalsIgnoreCase(title[i])) {
-                        crop = i;
-                        count++;
-                    } else if ("CLIM_ID".equalsIgnoreCase(title[i])) {
-                        climateId = i;
-                        count++;
-                    } else if ("RAP_ID".equalsIgnoreCase(title[i])) {
-                        rapId = i;
-                        count++;
-                    } else if ("MAN_ID".equalsIgnoreCase(title[i])) {
-                        mgnId = i;
-                        count++;
-                    } else if ("FIELD_OVERLAY".equalsIgnoreCase(title[i])) {
-                        field = i;
-                        count++;
-                    } else if ("SEASONAL_STRATEGY".equalsIgnoreCase(title[i])) {
-                        seasonal = i;
-                        count++;
+            }
+            while (true) {
+                f = new File(basePath + " (" + next.getAndIncrement() + ").csv");
+                if (f.createNewFile()) {
+                    return f;
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to create " + f.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Create an empty file, creating its directory first when the file
+     * could not be created.
+     *
+     * @return false if the file already exists
+     */
+    private static boolean createNewFile(File f) throws IOException {
+        try {
+            return f.createNewFile();
+        } catch (IOException ex) {
+            File dir = f.getAbsoluteFile().getParentFile();
+            if (dir == null || (!dir.mkdirs() && !dir.isDirectory())) {
+                throw ex;
+            }
+            return f.createNewFile();
+        }
+    }
+
+    /**
+     * Scan the meta data file for the DOME info part of the ACMO file name.
+     * The rows are streamed and only the cells used for the name are kept;
+     * the scan stops as soon as both RAP_ID and MAN_ID are known to be
+     * mixed. As before, the last row of the file is not taken into account.
+     *
+     * @param metaFilePath The path of meta data file
+     * @return The DOME info, like [Region]-[stratum]-[climate_id]-[RAP_id]-[Management_id]-
+     * @throws IOException if the meta data file could not be read
+     */
+    private static String readDomeInfo(String metaFilePath) throws IOException {
+        CSVReader reader = new CSVReader(openMetaReader(metaFilePath), ',', '"');
+        try {
+            // Get the position index of Region, stratum, climate ID, RAP ID and Management ID
+            int region = -1;
+            int crop = -1;
+            int climateId = -1;
+            int rapId = -1;
+            int mgnId = -1;
+            int field = -1;
+            int seasonal = -1;
+            // Get the first record and the RAP ID and Management ID over all records
+            String[] first = null;
+            String rap = null;
+            String mgn = null;
+            String[] line = reader.readNext();
+            String[] next;
+            while (line != null && (next = reader.readNext()) != null) {
+                if (line.length > 0 && "#".equals(line[0])) {
+                    String[] title = line;
+                    region = crop = climateId = rapId = mgnId = field = seasonal = -1;
+                    int count = 0;
+                    for (int i = 0; i < title.length; i++) {
+                        if ("REG_ID".equalsIgnoreCase(title[i])) {
+                            region = i;
+                            count++;
+                        } else if ("CRID_text".equalsIgnoreCase(title[i])) {
+                            crop = i;
+                            count++;
+                        } else if ("CLIM_ID".equalsIgnoreCase(title[i])) {
+                            climateId = i;
+                            count++;
+                        } else if ("RAP_ID".equalsIgnoreCase(title[i])) {
+                            rapId = i;
+                            count++;
+                        } else if ("MAN_ID".equalsIgnoreCase(title[i])) {
+                            mgnId = i;
+                            count++;
+                        } else if ("FIELD_OVERLAY".equalsIgnoreCase(title[i])) {
+                            field = i;
+                            count++;
+                        } else if ("SEASONAL_STRATEGY".equalsIgnoreCase(title[i])) {
+                            seasonal = i;
+                            count++;
+                        } else {
+                            continue;
+                        }
+                        if (count == 7) {
+                            break;
+                        }
+                    }
+                } else if (line.length > 0 && "*".equals(line[0])) {
+                    if (first == null) {
+                        first = line;
+                        rap = getDomeInfoStr(line, rapId);
+                        mgn = getDomeInfoStr(line, mgnId);
                     } else {
-                        continue;
+                        if (!"M-".equals(rap) && !rap.equals(getDomeInfoStr(line, rapId))) {
+                            rap = "M-";
+                        }
+                        if (!"M-".equals(mgn) && !mgn.equals(getDomeInfoStr(line, mgnId))) {
+                            mgn = "M-";
+                        }
                     }
-                    if (count == 7) {
+                    // Nothing left to learn from the remaining records
+                    if ((rapId < 0 || "M-".equals(rap)) && (mgnId < 0 || "M-".equals(mgn))) {
                         break;
                     }
                 }
-                // Get dome info for creating ACMO file name
-                if (!dataArr.isEmpty() && region != -1 && (crop != -1 || rapId != -1 || mgnId != -1 || climateId != -1)) {
-                    String str;
-                    if ((str = getDomeInfoStr(dataArr.get(0), region)).equals("0-")) {
-                        if (!(str = getDomeInfoStr(dataArr.get(0), seasonal)).equals("0-")) {
-                        } else if (!(str = getDomeInfoStr(dataArr.get(0), field)).equals("0-")) {
-                        } else {
-                            str = "";
-                        }
-                        if (!"".equals(str)) {
-                            HashMap<String, String> domeBase = DomeUtil.unpackDomeName(str);
-                            str = MapUtil.getValueOr(domeBase, "reg_id", "");
-                            if (!str.isEmpty()) {
-                                str += "-";
-                            }
-                        }
+                line = next;
+            }
+
+            // Get dome info for creating ACMO file name
+            String domeInfo = "";
+            if (first != null && region != -1 && (crop != -1 || rapId != -1 || mgnId != -1 || climateId != -1)) {
+                String str;
+                if ((str = getDomeInfoStr(first, region)).equals("0-")) {
+                    if (!(str = getDomeInfoStr(first, seasonal)).equals("0-")) {
+                    } else if (!(str = getDomeInfoStr(first, field)).equals("0-")) {
                     } else {
+                        str = "";
+                    }
+                    if (!"".equals(str)) {
+                        HashMap<String, String> domeBase = DomeUtil.unpackDomeName(str);
+                        str = MapUtil.getValueOr(domeBase, "reg_id", "");
                         if (!str.isEmpty()) {
-                            domeInfo = str;
-                            domeInfo += getDomeInfoStr(dataArr.get(0), crop).replaceAll(" ", "").toUpperCase();
-                            domeInfo += getDomeInfoStr(dataArr.get(0), climateId);
-                            domeInfo += getDomeInfoStr(dataArr, rapId);
-                            domeInfo += getDomeInfoStr(dataArr, mgnId);
+                            str += "-";
                         }
                     }
+                } else {
+                    if (!str.isEmpty()) {
+                        domeInfo = str;
+                        domeInfo += getDomeInfoStr(first, crop).replaceAll(" ", "").toUpperCase();
+                        domeInfo += getDomeInfoStr(first, climateId);
+                        domeInfo += rap;
+                        domeInfo += mgn;
+                    }
                 }
-            } catch (IOException ex) {
-                domeInfo = "";
             }
+            return domeInfo;
+        } finally {
+            reader.close();
         }
-        // Create CSV file name
-        outputCsvPath += "ACMO-" + domeInfo + model;
-        File f = new File(outputCsvPath + ".csv");
-        int count = 1;
-        while (f.exists()) {
-            f = new File(outputCsvPath + " (" + count + ").csv");
-            count++;
-        }
+    }
 
-        return f;
+    /**
+     * Open a UTF-8 reader on the meta data file, gzip-compressed files
+     * (like ACMO_meta.dat.gz) are detected and decompressed transparently.
+     *
+     * @param metaFilePath The path of meta data file
+     * @return The reader for the meta data
+     * @throws IOException if the file could not be opened
+     */
+    public static Reader openMetaReader(String metaFilePath) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(metaFilePath));
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                in = new GZIPInputStream(in);
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        return new InputStreamReader(in, AcmoChannelWriter.UTF8);
     }
 
     public static String addAcmouiVersion(String line, String acmouiVer) {
@@ -648,24 +632,6 @@ public class AcmoUtil {
         }
     }
 
-    private static String getDomeInfoStr(ArrayList<String[]> dataArr, int id) {
-        if (id < 0) {
-            return "0-";
-        } else if (dataArr.isEmpty()) {
-            return "0-";
-        } else {
-            String ret = getDomeInfoStr(dataArr.get(0), id);
-            for (int i = 1; i < dataArr.size(); i++) {
-                String tmp = ret;
-                ret = getDomeInfoStr(dataArr.get(i), id);
-                if (!tmp.equals(ret)) {
-                    return "M-";
-                }
-            }
-            return ret;
-        }
-    }
-
     /**
      * CSV Escape handling for given string.
      *  " to ""
@@ -677,15 +643,34 @@ public class AcmoUtil {
     public static String escapeCsvStr(String str) {
         if (str != null && !str.isEmpty()) {
             boolean needQuote = false;
-            if (str.contains("\"")) {
-                str = str.replaceAll("\"", "\"\"");
-                needQuote = true;
-            }
-            if (!needQuote && str.contains(",")) {
-                needQuote = true;
+            int quotes = 0;
+            int len = str.length();
+            for (int i = 0; i < len; i++) {
+                char c = str.charAt(i);
+                if (c == '"') {
+                    quotes++;
+                    needQuote = true;
+                } else if (c == ',') {
+                    needQuote = true;
+                }
             }
             if (needQuote) {
-                str = "\"" + str + "\"";
+                StringBuilder sb = new StringBuilder(len + quotes + 2);
+                sb.append('"');
+                if (quotes > 0) {
+                    int start = 0;
+                    for (int i = 0; i < len; i++) {
+                        if (str.charAt(i) == '"') {
+                            sb.append(str, start, i + 1).append('"');
+                            start = i + 1;
+                        }
+                    }
+                    sb.append(str, start, len);
+                } else {
+                    sb.append(str);
+                }
+                sb.append('"');
+                str = sb.toString();
             }
             return str;
         } else {
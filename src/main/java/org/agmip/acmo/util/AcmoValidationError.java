@@ -0,0 +1,85 @@
+package org.agmip.acmo.util;
+
+/**
+ * A cell or row of an ACMO file not matching the header, found by
+ * {@link AcmoValidator}.
+ */
+public class AcmoValidationError {
+
+    private final long rowNumber;
+    private final long offset;
+    private final int column;
+    private final String columnName;
+    private final String value;
+    private final String reason;
+
+    AcmoValidationError(long rowNumber, long offset, int column, String columnName, String value, String reason) {
+        this.rowNumber = rowNumber;
+        this.offset = offset;
+        this.column = column;
+        this.columnName = columnName;
+        this.value = value;
+        this.reason = reason;
+    }
+
+    /**
+     * @return the number of the data row, starting at 1
+     */
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    /**
+     * @return the byte offset of the row in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the column index, or -1 for an error on the whole row
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the column name, or null for an error on the whole row
+     */
+    public String getColumnName() {
+        return columnName;
+    }
+
+    /**
+     * @return the value of the cell, or null for an error on the whole row
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the error on one line, like
+     * {@code row 12, PDATE: not a yyyy-mm-dd date "1981-13-01"}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("row ").append(rowNumber);
+        if (columnName != null) {
+            sb.append(", ").append(columnName);
+        }
+        sb.append(": ").append(reason);
+        if (value != null) {
+            sb.append(" \"").append(value).append('"');
+        }
+        return sb.toString();
+    }
+
+    AcmoValidationError withRowNumber(long rowNumber) {
+        return new AcmoValidationError(rowNumber, offset, column, columnName, value, reason);
+    }
+}
@@ -0,0 +1,78 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of checking an ACMO file with {@link AcmoValidator}.
+ */
+public class AcmoValidationReport {
+
+    private final File file;
+    private final List<AcmoValidationError> errors;
+    private final long rowCount;
+    private final boolean limitReached;
+
+    AcmoValidationReport(File file, List<AcmoValidationError> errors, long rowCount, boolean limitReached) {
+        this.file = file;
+        this.errors = Collections.unmodifiableList(errors);
+        this.rowCount = rowCount;
+        this.limitReached = limitReached;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the errors, in file order
+     */
+    public List<AcmoValidationError> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of data rows checked, up to the row of the last
+     * error when the error limit was reached
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return true if the check stopped at the error limit, so more rows
+     * may be wrong
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * @return true if no error was found
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return a summary line followed by an error on each line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(file.getName()).append(": ");
+        if (errors.isEmpty()) {
+            sb.append("valid, ").append(rowCount).append(" rows");
+        } else {
+            sb.append(errors.size()).append(errors.size() == 1 ? " error" : " errors").append(" in ").append(rowCount).append(" rows");
+            if (limitReached) {
+                sb.append(", stopped at the error limit");
+            }
+        }
+        for (AcmoValidationError error : errors) {
+            sb.append('\n').append(error);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,405 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the data rows of an ACMO file against the types declared in its
+ * header, see {@link AcmoColumnType}: the number columns must hold
+ * numbers, the date columns valid yyyy-mm-dd dates, and no row may have
+ * more cells than the header has columns. Empty cells are always valid,
+ * and so is {@code auto} in IR#C and IR_TOT, written for the automatic
+ * irrigation, see {@link #AUTO_COLUMNS}.
+ *
+ * The data rows are split into byte ranges checked on several threads,
+ * each one through its own {@link AcmoReader}. The ranges end on row
+ * boundaries, found from the parity of the quotes before them, so a
+ * quoted cell holding a line break is never split. The check stops once
+ * the error limit is reached in file order, so the report always holds
+ * the first errors of the file, whatever the number of threads.
+ */
+public class AcmoValidator {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoValidator.class);
+    /**
+     * The default number of errors reported before stopping
+     */
+    public static final int DEFAULT_ERROR_LIMIT = 100;
+    /**
+     * The smallest range of rows checked by a thread, 4MB
+     */
+    static final long DEFAULT_MIN_CHUNK_SIZE = 4L << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+    // How often a range without errors looks at the errors of the others
+    private static final int ROWS_PER_LIMIT_CHECK = 1024;
+    private static final int MAX_VALUE_LENGTH = 64;
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    /**
+     * The number columns accepting the {@code auto} value
+     */
+    public static final List<String> AUTO_COLUMNS = Collections.unmodifiableList(Arrays.asList("IR#C", "IR_TOT"));
+    private static final String AUTO = "auto";
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int errorLimit = DEFAULT_ERROR_LIMIT;
+    private long minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+
+    /**
+     * Set the number of threads checking the rows, by default the number
+     * of processors.
+     *
+     * @param parallelism the number of threads, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param errorLimit the number of errors reported before stopping, at
+     * least 1
+     */
+    public void setErrorLimit(int errorLimit) {
+        if (errorLimit < 1) {
+            throw new IllegalArgumentException("The error limit must be at least 1");
+        }
+        this.errorLimit = errorLimit;
+    }
+
+    public int getErrorLimit() {
+        return errorLimit;
+    }
+
+    /**
+     * @param minChunkSize the smallest range of rows checked by a thread,
+     * in bytes
+     */
+    void setMinChunkSize(long minChunkSize) {
+        this.minChunkSize = Math.max(1, minChunkSize);
+    }
+
+    /**
+     * Check the data rows of an uncompressed ACMO file.
+     *
+     * @param file the ACMO CSV file
+     * @return the report of the errors found
+     * @throws IOException if the file could not be read, is compressed or
+     * has no {@code #} header row
+     */
+    public AcmoValidationReport validate(final File file) throws IOException {
+        long[] splits;
+        AcmoReader reader = new AcmoReader(file);
+        try {
+            if (reader.getColumnCount() == 0) {
+                throw new IOException("The ACMO file " + file.getPath() + " has no # header row");
+            }
+            long start = reader.getDataOffset();
+            long size = reader.getLength() - start;
+            int count = (int) Math.max(1, Math.min((long) parallelism * CHUNKS_PER_THREAD, size / minChunkSize));
+            splits = new long[count + 1];
+            for (int i = 0; i <= count; i++) {
+                splits[i] = start + size * i / count;
+            }
+        } finally {
+            reader.close();
+        }
+        final int count = splits.length - 1;
+        final AtomicIntegerArray errorCounts = new AtomicIntegerArray(count);
+        ExecutorService pool = count > 1 && parallelism > 1
+                ? Executors.newFixedThreadPool(Math.min(parallelism, count), new ValidatorThreadFactory())
+                : null;
+        try {
+            // Find the quotes opened before each split, then move the
+            // splits to the next row start
+            ArrayList<Callable<Long>> counts = new ArrayList<Callable<Long>>(count);
+            for (int i = 0; i < count; i++) {
+                final long from = splits[i];
+                final long to = splits[i + 1];
+                counts.add(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return countQuotes(file, from, to);
+                    }
+                });
+            }
+            long[] bounds = findBounds(file, splits, run(pool, counts));
+
+            ArrayList<Chunk> chunks = new ArrayList<Chunk>(count);
+            for (int i = 0; i < count; i++) {
+                chunks.add(new Chunk(file, i, bounds[i], bounds[i + 1], errorCounts));
+            }
+            return report(file, run(pool, chunks));
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private <T> ArrayList<T> run(ExecutorService pool, ArrayList<? extends Callable<T>> tasks) throws IOException {
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (pool == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                ArrayList<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+                for (Callable<T> task : tasks) {
+                    futures.add(pool.submit(task));
+                }
+                for (Future<T> future : futures) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating the ACMO file");
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        return results;
+    }
+
+    private static long countQuotes(File file, long from, long to) throws IOException {
+        AcmoReader reader = new AcmoReader(file);
+        try {
+            long quotes = 0;
+            for (long p = from; p < to; p++) {
+                if (reader.get(p) == '"') {
+                    quotes++;
+                }
+            }
+            return quotes;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the first row start at or after each split, except the first
+     * and last splits which are kept
+     */
+    private static long[] findBounds(File file, long[] splits, ArrayList<Long> quotes) throws IOException {
+        long[] bounds = splits.clone();
+        AcmoReader reader = new AcmoReader(file);
+        try {
+            long length = reader.getLength();
+            long opened = 0;
+            for (int i = 1; i < splits.length - 1; i++) {
+                opened += quotes.get(i - 1);
+                if (bounds[i - 1] >= splits[i]) {
+                    // A long row already spans this split
+                    bounds[i] = bounds[i - 1];
+                    continue;
+                }
+                boolean inQuotes = opened % 2 != 0;
+                long p = splits[i];
+                for (; p < length; p++) {
+                    byte b = reader.get(p);
+                    if (b == '"') {
+                        inQuotes = !inQuotes;
+                    } else if (b == '\n' && !inQuotes) {
+                        break;
+                    }
+                }
+                bounds[i] = Math.min(p + 1, length);
+            }
+        } finally {
+            reader.close();
+        }
+        return bounds;
+    }
+
+    /**
+     * Merge the errors of the ranges in file order, numbering the rows
+     * from the start of the file.
+     */
+    private AcmoValidationReport report(File file, ArrayList<Chunk> chunks) {
+        ArrayList<AcmoValidationError> errors = new ArrayList<AcmoValidationError>();
+        long base = 0;
+        boolean limitReached = false;
+        for (Chunk chunk : chunks) {
+            for (AcmoValidationError error : chunk.errors) {
+                if (errors.size() >= errorLimit) {
+                    break;
+                }
+                errors.add(error.withRowNumber(base + error.getRowNumber()));
+            }
+            if (chunk.stopped || errors.size() >= errorLimit) {
+                limitReached = true;
+                break;
+            }
+            base += chunk.rows;
+        }
+        long rowCount = limitReached ? errors.get(errors.size() - 1).getRowNumber() : base;
+        if (!errors.isEmpty()) {
+            log.warn("{} errors found in {}", errors.size(), file.getPath());
+        }
+        return new AcmoValidationReport(file, errors, rowCount, limitReached);
+    }
+
+    private static boolean isValidDate(int yyyymmdd) {
+        int year = yyyymmdd / 10000;
+        int month = yyyymmdd / 100 % 100;
+        int day = yyyymmdd % 100;
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]) {
+            return false;
+        }
+        return month != 2 || day < 29 || (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0));
+    }
+
+    private static String shorten(String value) {
+        if (value != null && value.length() > MAX_VALUE_LENGTH) {
+            return value.substring(0, MAX_VALUE_LENGTH) + "...";
+        }
+        return value;
+    }
+
+    /**
+     * Checks the rows starting in a range of the file.
+     */
+    private class Chunk implements Callable<Chunk> {
+
+        private final File file;
+        private final int index;
+        private final long start;
+        private final long end;
+        private final AtomicIntegerArray errorCounts;
+        // The errors, numbered from the start of the range
+        private final ArrayList<AcmoValidationError> errors = new ArrayList<AcmoValidationError>();
+        private long rows = 0;
+        private boolean stopped = false;
+
+        private Chunk(File file, int index, long start, long end, AtomicIntegerArray errorCounts) {
+            this.file = file;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.errorCounts = errorCounts;
+        }
+
+        public Chunk call() throws IOException {
+            AcmoReader reader = new AcmoReader(file);
+            try {
+                reader.setRange(start, end);
+                while (reader.next()) {
+                    rows++;
+                    int found = errors.size();
+                    checkRow(reader);
+                    if ((errors.size() > found || rows % ROWS_PER_LIMIT_CHECK == 0) && isLimitReached()) {
+                        stopped = true;
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return this;
+        }
+
+        /**
+         * @return true if the ranges up to this one found enough errors
+         */
+        private boolean isLimitReached() {
+            int total = 0;
+            for (int i = 0; i <= index; i++) {
+                total += errorCounts.get(i);
+                if (total >= errorLimit) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void checkRow(AcmoReader reader) {
+            int cells = reader.getCellCount();
+            int columns = reader.getColumnCount();
+            if (cells > columns) {
+                error(reader, -1, "has " + cells + " cells for " + columns + " columns");
+            }
+            for (int col = 1; col < Math.min(cells, columns); col++) {
+                if (reader.isEmpty(col)) {
+                    continue;
+                }
+                AcmoColumnType type = reader.getColumnType(col);
+                if (type == AcmoColumnType.NUMBER) {
+                    try {
+                        reader.getDecimal(col);
+                    } catch (NumberFormatException ex) {
+                        if (!isAuto(reader, col)) {
+                            error(reader, col, "not a number");
+                        }
+                    }
+                } else if (type == AcmoColumnType.DATE) {
+                    try {
+                        if (!isValidDate(reader.getDate(col))) {
+                            error(reader, col, "not a valid date");
+                        }
+                    } catch (NumberFormatException ex) {
+                        error(reader, col, "not a yyyy-mm-dd date");
+                    }
+                }
+            }
+        }
+
+        private boolean isAuto(AcmoReader reader, int col) {
+            return AUTO_COLUMNS.contains(reader.getColumnName(col).toUpperCase()) && AUTO.equalsIgnoreCase(reader.getString(col).trim());
+        }
+
+        private void error(AcmoReader reader, int col, String reason) {
+            if (col < 0) {
+                errors.add(new AcmoValidationError(reader.getRowNumber(), reader.getRowOffset(), -1, null, null, reason));
+            } else {
+                errors.add(new AcmoValidationError(reader.getRowNumber(), reader.getRowOffset(), col, reader.getColumnName(col), shorten(reader.getString(col)), reason));
+            }
+            errorCounts.incrementAndGet(index);
+        }
+    }
+
+    private static class ValidatorThreadFactory implements ThreadFactory {
+
+        private final int poolId = poolCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "acmo-validator-" + poolId + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,917 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.agmip.util.MapUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the ACMO_meta.dat file for a stream of experiments.
+ *
+ * By default the lines are extracted on the calling thread. When the
+ * parallelism is set above 1, the lines are extracted on a pool of worker
+ * threads and still written in the same order as the experiments are
+ * provided, so the output is identical to the sequential one.
+ *
+ * The file is written as UTF-8 through an {@link AcmoChannelWriter}, and
+ * can be gzip-compressed as ACMO_meta.dat.gz. The columnar companion
+ * file ACMO_meta.acmc can be written in the same pass. In the incremental
+ * mode only the new or changed experiments are extracted again.
+ *
+ * With several destination models, every experiment is extracted once and
+ * written to the ACMO_meta.dat of each model, in a folder named after the
+ * model. Only the CUL_ID and CROP_MODEL cells differ between the models.
+ *
+ * The rows can also be sorted by REG_ID, CLIM_ID, CRID and EXNAME instead
+ * of following the order of the experiments. The sort spills to temporary
+ * files in the output directory, so it works within a memory budget
+ * whatever the number of experiments.
+ *
+ * In the indexed mode the ACMO_meta.dat.idx sidecar file is written in
+ * the same pass, so the rows can be read by EXNAME, EID or RUN# through an
+ * {@link AcmoRowIndex}.
+ *
+ * A write keeps its outputs in the writer, so an AcmoWriter must not be
+ * used by several threads at once; a write started while another one is
+ * running is rejected. Use one writer for each concurrent write.
+ */
+public class AcmoWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(AcmoWriter.class);
+    /**
+     * The number of pending lines allowed for each worker thread
+     */
+    private static final int LINES_PER_WORKER = 16;
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    private static final String MANIFEST_NAME = "ACMO_meta.dat.manifest";
+    /**
+     * The rows in a batch for the I/O thread, and the batches allowed in
+     * its queue
+     */
+    private static final int PIPELINE_BATCH_SIZE = 64;
+    private static final int PIPELINE_BATCHES = 16;
+    /**
+     * The default memory budget of the sorted output, in bytes
+     */
+    public static final long DEFAULT_SORT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private final String outputPath;
+    private final String destModel;
+    private final List<String> destModels;
+    private HashMap<String, String> domeIdHashMap = new HashMap<String, String>();
+    private int parallelism = 1;
+    private int bufferSize = AcmoChannelWriter.DEFAULT_BUFFER_SIZE;
+    private boolean compressed = false;
+    private boolean columnar = false;
+    private boolean incremental = false;
+    private boolean pipelined = false;
+    private boolean sorted = false;
+    private boolean indexed = false;
+    private long sortMemoryBudget = DEFAULT_SORT_MEMORY_BUDGET;
+    private List<AcmoShardKey> shardKeys = Collections.emptyList();
+    // The shard output of the current write, if any
+    private AcmoShardSink shardSink = null;
+    // The I/O thread of the current write, if pipelined
+    private AcmoRowPipeline pipeline = null;
+    // The sort of the current write, if sorted
+    private AcmoRowSorter sorter = null;
+    // The files of each model in the current write, if several
+    private AcmoChannelWriter[] modelOuts = null;
+    // The columnar output of the current write, if any
+    private AcmoColumnarWriter columnarOut = null;
+    // The manifests of the previous and current incremental write, if any
+    private AcmoManifest previousManifest = null;
+    private AcmoManifest manifestOut = null;
+    // The row index of the current write, if indexed
+    private AcmoRowIndex.Builder indexOut = null;
+    private final AtomicInteger reusedRows = new AtomicInteger();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private AcmoMetricsListener metrics = null;
+    private EventAggregatorRegistry aggregators = EventAggregatorRegistry.createDefault();
+    private final AcmoSiteIndex siteIndex = new AcmoSiteIndex();
+
+    /**
+     * @param outputPath the directory to write the ACMO_meta.dat file.
+     * @param destModel the destination model name
+     */
+    public AcmoWriter(String outputPath, String destModel) {
+        this.outputPath = outputPath;
+        this.destModel = destModel;
+        this.destModels = Collections.singletonList(destModel);
+    }
+
+    /**
+     * Write the ACMO file of several models in a single pass, each one to
+     * outputPath/[model]/ACMO_meta.dat. The incremental, columnar,
+     * indexed and sharded outputs are not available for several models,
+     * and the CUL_ID of the models after the first one follows the rule of
+     * {@link AcmoEventAggregators#PLANTING}.
+     *
+     * @param outputPath the directory holding a folder for each model
+     * @param destModels the destination model names
+     */
+    public AcmoWriter(String outputPath, List<String> destModels) {
+        if (destModels.isEmpty()) {
+            throw new IllegalArgumentException("At least one destination model is required");
+        }
+        this.outputPath = outputPath;
+        this.destModel = destModels.get(0);
+        this.destModels = Collections.unmodifiableList(new ArrayList<String>(destModels));
+    }
+
+    public List<String> getDestModels() {
+        return destModels;
+    }
+
+    /**
+     * @param domeIdHashMap the map hold the data as [DOME ID] : [calculated hash for its content]
+     */
+    public void setDomeIdHashMap(HashMap<String, String> domeIdHashMap) {
+        if (domeIdHashMap == null) {
+            this.domeIdHashMap = new HashMap<String, String>();
+        } else {
+            this.domeIdHashMap = domeIdHashMap;
+        }
+    }
+
+    /**
+     * Set the number of threads used for extracting the ACMO lines.
+     *
+     * @param parallelism the number of threads, 1 for extracting on the
+     * calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the size of the output buffers.
+     *
+     * @param bufferSize the buffer size in bytes, 64K by default
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set if the meta file is written gzip-compressed, as ACMO_meta.dat.gz.
+     *
+     * @param compressed true for the compressed output
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Set if the columnar companion file ACMO_meta.acmc is written next to
+     * the meta file, see {@link AcmoColumnarWriter}.
+     *
+     * @param columnar true for writing the columnar file
+     */
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    /**
+     * Set if the rows are written by a dedicated I/O thread. The rows are
+     * then handed over in batches through a bounded queue, so extracting
+     * the rows and writing them to the disk overlap, which helps most on
+     * slow or network storage. A failure on either side stops the other
+     * one and is thrown by {@link #write(Iterator, Iterator, Iterator)}.
+     *
+     * @param pipelined true for writing on a dedicated I/O thread
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Set if the rows are sorted by REG_ID, CLIM_ID, CRID and EXNAME. The
+     * rows with the same values keep the order of their experiments. When
+     * the buffered rows exceed the memory budget they are sorted and
+     * spilled to a temporary run file in the output directory, and the
+     * runs are merged into the ACMO file at the end of the write. The
+     * sorted output works with the other modes, each shard being sorted.
+     *
+     * @param sorted true for the sorted output
+     */
+    public void setSortedOutput(boolean sorted) {
+        this.sorted = sorted;
+    }
+
+    public boolean isSortedOutput() {
+        return sorted;
+    }
+
+    /**
+     * Set the estimated heap the sorted output may use for buffering the
+     * rows, {@link #DEFAULT_SORT_MEMORY_BUDGET} by default.
+     *
+     * @param sortMemoryBudget the memory budget, in bytes
+     */
+    public void setSortMemoryBudget(long sortMemoryBudget) {
+        if (sortMemoryBudget <= 0) {
+            throw new IllegalArgumentException("The sort memory budget must be positive");
+        }
+        this.sortMemoryBudget = sortMemoryBudget;
+    }
+
+    public long getSortMemoryBudget() {
+        return sortMemoryBudget;
+    }
+
+    /**
+     * Set the indexed mode. The ACMO_meta.dat.idx sidecar file is then
+     * written with the byte range and the EXNAME, EID and RUN# of every
+     * row, to be opened with {@link AcmoRowIndex#open(java.io.File)}. The
+     * indexed mode needs the uncompressed and unsharded ACMO_meta.dat.
+     *
+     * @param indexed true for the indexed mode
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Set the listener receiving the counters and stage timings of the
+     * writes, see {@link AcmoMetrics}. Nothing is measured without one.
+     *
+     * @param metrics the listener, or null for none
+     */
+    public void setMetricsListener(AcmoMetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    public AcmoMetricsListener getMetricsListener() {
+        return metrics;
+    }
+
+    /**
+     * Partition the output into shards keyed by the given columns, e.g.
+     * {@code REG_ID} and {@code CLIM_ID}. Each shard is written to its own
+     * ACMO_meta-[values].dat file with the ACMO header, and the
+     * ACMO_meta.shards file lists the shards and their row counts. The
+     * shards are written on as many threads as the parallelism. At most 64
+     * shard files are open at once, the others are reopened to append
+     * their next rows, so keys with many values do not run out of file
+     * descriptors.
+     *
+     * @param keys the columns keying the shards, none for a single file
+     */
+    public void setShardKeys(AcmoShardKey... keys) {
+        this.shardKeys = Collections.unmodifiableList(new ArrayList<AcmoShardKey>(new LinkedHashSet<AcmoShardKey>(Arrays.asList(keys))));
+    }
+
+    public List<AcmoShardKey> getShardKeys() {
+        return shardKeys;
+    }
+
+    /**
+     * Set the aggregators used for the event columns, by default the ones
+     * from {@link EventAggregatorRegistry#createDefault()}. With several
+     * destination models, the CUL_ID of each model comes from the
+     * aggregators registered for the planting events, run for every model
+     * in the same pass over the events.
+     *
+     * @param aggregators the event aggregators
+     */
+    public void setEventAggregators(EventAggregatorRegistry aggregators) {
+        this.aggregators = aggregators;
+    }
+
+    /**
+     * Set the incremental mode. The content hash of each written experiment
+     * is then kept in the ACMO_meta.dat.manifest sidecar file, and the next
+     * write only extracts the new or changed experiments; the rows of the
+     * unchanged ones are copied from the previous ACMO_meta.dat. Custom
+     * event aggregators are not part of the hash, so the previous file has
+     * to be removed when they change. The incremental mode can not be used
+     * with the compressed output.
+     *
+     * @param incremental true for the incremental mode
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the number of rows copied from the previous file by the last
+     * incremental write
+     */
+    public int getReusedRowCount() {
+        return reusedRows.get();
+    }
+
+    /**
+     * Write the ACMO_meta.dat file for the given experiments.
+     *
+     * @param experiments the experiments to write, in output order
+     * @param weathers the weather stations referred by the experiments
+     * @param soils the soil profiles referred by the experiments
+     * @return the written ACMO_meta.dat or ACMO_meta.dat.gz file, the
+     * ACMO_meta.shards file listing the shards, or the output directory
+     * with several models
+     * @throws IOException if the file could not be written
+     * @throws IllegalStateException if another write of this writer is
+     * running
+     */
+    public File write(Iterator<HashMap<String, Object>> experiments, Iterator<HashMap<String, Object>> weathers, Iterator<HashMap<String, Object>> soils) throws IOException {
+        if (!writing.compareAndSet(false, true)) {
+            throw new IllegalStateException("The AcmoWriter is already writing, use one writer for each concurrent write");
+        }
+        try {
+            // Make sure the outputPath exists
+            File dir = new File(outputPath);
+            dir.mkdirs();
+            if (destModels.size() > 1) {
+                return writeModels(dir, experiments, weathers, soils);
+            }
+            return writeFile(dir, experiments, weathers, soils);
+        } finally {
+            writing.set(false);
+        }
+    }
+
+    private File writeFile(File dir, Iterator<HashMap<String, Object>> experiments, Iterator<HashMap<String, Object>> weathers, Iterator<HashMap<String, Object>> soils) throws IOException {
+        File target = new File(dir, compressed ? "ACMO_meta.dat.gz" : "ACMO_meta.dat");
+        File file = target;
+        File manifestFile = new File(dir, MANIFEST_NAME);
+        File indexFile = AcmoRowIndex.getIndexFile(new File(dir, "ACMO_meta.dat"));
+        reusedRows.set(0);
+        if (indexed && (compressed || !shardKeys.isEmpty())) {
+            throw new IllegalStateException("The indexed mode needs the uncompressed and unsharded ACMO_meta.dat");
+        }
+        // Never leave an index describing another file
+        if (indexFile.exists() && !indexFile.delete()) {
+            log.warn("Unable to delete the outdated {}", indexFile.getPath());
+        }
+        if (!shardKeys.isEmpty()) {
+            if (incremental) {
+                throw new IllegalStateException("The incremental mode can not be used with the sharded output");
+            }
+        } else if (incremental) {
+            if (compressed) {
+                throw new IllegalStateException("The incremental mode needs the uncompressed ACMO_meta.dat");
+            }
+            // Keep the previous file readable until the new one is complete
+            previousManifest = AcmoManifest.load(manifestFile, target, destModel);
+            manifestOut = new AcmoManifest(destModel);
+            file = new File(dir, "ACMO_meta.dat.tmp");
+        } else if (manifestFile.exists() && !manifestFile.delete()) {
+            log.warn("Unable to delete the outdated {}", manifestFile.getPath());
+        }
+        if (!shardKeys.isEmpty()) {
+            target = file = AcmoShardSink.getManifestFile(dir, "ACMO_meta");
+        } else if (indexed) {
+            indexOut = new AcmoRowIndex.Builder(new File(dir, indexFile.getName() + ".tmp"));
+        }
+        AcmoChannelWriter bw = null;
+        boolean done = false;
+        try {
+            if (shardKeys.isEmpty()) {
+                log.debug("Attempting to write {}", file.getPath());
+                bw = AcmoChannelWriter.open(file, bufferSize, compressed);
+            } else {
+                log.debug("Attempting to write the ACMO shards by {}", shardKeys);
+                shardSink = new AcmoShardSink(dir, "ACMO_meta", shardKeys, parallelism, bufferSize, compressed);
+                shardSink.setMetricsListener(metrics);
+            }
+            if (columnar) {
+                columnarOut = new AcmoColumnarWriter(new FileOutputStream(new File(dir, "ACMO_meta.acmc")), AcmoUtil.generateAcmoHeader());
+            }
+            indexSites(weathers, soils);
+            // First write the header, the shards write their own
+            if (bw != null) {
+                bw.write(AcmoUtil.generateAcmoHeader());
+            }
+            startSort(dir);
+            startPipeline(bw);
+            // Then write the lines
+            if (parallelism > 1) {
+                writeParallel(bw, experiments);
+            } else {
+                AcmoRowEncoder encoder = new AcmoRowEncoder();
+                while (experiments != null && experiments.hasNext()) {
+                    HashMap<String, Object> experiment = experiments.next();
+                    String hash = hashExperiment(experiment);
+                    String line = reuseLine(hash);
+                    if (metrics != null) {
+                        metrics.experimentProcessed(line != null);
+                    }
+                    if (line == null) {
+                        extractLine(experiment, encoder.reset());
+                    }
+                    if (pipeline != null || sorter != null) {
+                        emitResult(bw, new String[]{hash, line != null ? line : encoder.toString()});
+                    } else if (line != null) {
+                        writeLine(bw, line, hash);
+                    } else {
+                        writeLine(bw, encoder, hash);
+                    }
+                }
+            }
+            finishSort(bw);
+            finishPipeline();
+            done = true;
+        } catch (IOException ex) {
+            if (metrics != null) {
+                metrics.writeFailed(ex);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (metrics != null) {
+                metrics.writeFailed(ex);
+            }
+            throw ex;
+        } finally {
+            // Finally close the file.
+            log.debug("Attempting to close the ACMO file");
+            closeSort();
+            cancelPipeline();
+            try {
+                if (bw != null) {
+                    bw.close();
+                } else if (shardSink != null && done) {
+                    shardSink.close();
+                } else if (shardSink != null) {
+                    shardSink.abort();
+                }
+            } finally {
+                shardSink = null;
+                if (columnarOut != null) {
+                    columnarOut.close();
+                    columnarOut = null;
+                }
+                if (previousManifest != null) {
+                    previousManifest.close();
+                    previousManifest = null;
+                }
+                if (!done) {
+                    manifestOut = null;
+                    if (indexOut != null) {
+                        indexOut.abort();
+                        indexOut = null;
+                    }
+                    if (file != target) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        if (manifestOut != null) {
+            AcmoManifest manifest = manifestOut;
+            manifestOut = null;
+            // Never leave a manifest describing another file
+            manifestFile.delete();
+            replaceFile(file, target);
+            File manifestTmp = new File(dir, MANIFEST_NAME + ".tmp");
+            AcmoChannelWriter mw = AcmoChannelWriter.open(manifestTmp, bufferSize, false);
+            try {
+                manifest.write(mw, target.length());
+            } finally {
+                mw.close();
+            }
+            replaceFile(manifestTmp, manifestFile);
+            log.info("Reused {} of {} ACMO rows", reusedRows.get(), manifest.size());
+        }
+        if (indexOut != null) {
+            AcmoRowIndex.Builder index = indexOut;
+            indexOut = null;
+            boolean indexDone = false;
+            try {
+                index.finish(target);
+                replaceFile(new File(dir, indexFile.getName() + ".tmp"), indexFile);
+                indexDone = true;
+            } finally {
+                if (!indexDone) {
+                    index.abort();
+                }
+            }
+        }
+        return target;
+    }
+
+    private File writeModels(File dir, Iterator<HashMap<String, Object>> experiments, Iterator<HashMap<String, Object>> weathers, Iterator<HashMap<String, Object>> soils) throws IOException {
+        if (incremental || columnar || indexed || !shardKeys.isEmpty()) {
+            throw new IllegalStateException("The incremental, columnar, indexed and sharded outputs need a single destination model");
+        }
+        modelOuts = new AcmoChannelWriter[destModels.size()];
+        boolean done = false;
+        try {
+            for (int i = 0; i < modelOuts.length; i++) {
+                File modelDir = new File(dir, destModels.get(i).toLowerCase());
+                modelDir.mkdirs();
+                File file = new File(modelDir, compressed ? "ACMO_meta.dat.gz" : "ACMO_meta.dat");
+                log.debug("Attempting to write {}", file.getPath());
+                modelOuts[i] = AcmoChannelWriter.open(file, bufferSize, compressed);
+            }
+            indexSites(weathers, soils);
+            for (AcmoChannelWriter out : modelOuts) {
+                out.write(AcmoUtil.generateAcmoHeader());
+            }
+            startSort(dir);
+            startPipeline(null);
+            if (parallelism > 1) {
+                writeParallel(null, experiments);
+            } else {
+                AcmoRowEncoder encoder = new AcmoRowEncoder();
+                while (experiments != null && experiments.hasNext()) {
+                    HashMap<String, Object> experiment = experiments.next();
+                    if (metrics != null) {
+                        metrics.experimentProcessed(false);
+                    }
+                    emitResult(null, extractModelLines(experiment, encoder.reset()));
+                }
+            }
+            finishSort(null);
+            finishPipeline();
+            done = true;
+        } catch (IOException ex) {
+            if (metrics != null) {
+                metrics.writeFailed(ex);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (metrics != null) {
+                metrics.writeFailed(ex);
+            }
+            throw ex;
+        } finally {
+            closeSort();
+            cancelPipeline();
+            AcmoChannelWriter[] outs = modelOuts;
+            modelOuts = null;
+            IOException closeError = null;
+            for (AcmoChannelWriter out : outs) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        closeError = ex;
+                    }
+                }
+            }
+            // Do not hide the error which stopped the write
+            if (closeError != null && done) {
+                throw closeError;
+            }
+        }
+        return dir;
+    }
+
+    private void indexSites(Iterator<HashMap<String, Object>> weathers, Iterator<HashMap<String, Object>> soils) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        siteIndex.clear();
+        siteIndex.addWeathers(weathers);
+        siteIndex.addSoils(soils);
+        if (metrics != null) {
+            metrics.stageCompleted(AcmoStage.INDEXING, System.nanoTime() - start);
+        }
+    }
+
+    static void replaceFile(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Some platforms do not rename over an existing file
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("Unable to rename " + from.getPath() + " to " + to.getPath());
+            }
+        }
+    }
+
+    private void writeParallel(AcmoChannelWriter bw, Iterator<HashMap<String, Object>> experiments) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        try {
+            // Keep a bounded window of pending lines and always write the
+            // oldest one first, so the order of the input is preserved.
+            LinkedList<Future<String[]>> pending = new LinkedList<Future<String[]>>();
+            int window = parallelism * LINES_PER_WORKER;
+            final ThreadLocal<AcmoRowEncoder> encoders = new ThreadLocal<AcmoRowEncoder>() {
+                @Override
+                protected AcmoRowEncoder initialValue() {
+                    return new AcmoRowEncoder();
+                }
+            };
+            while (experiments != null && experiments.hasNext()) {
+                final HashMap<String, Object> experiment = experiments.next();
+                // The content hash and the line, or the line of each model
+                pending.add(pool.submit(new Callable<String[]>() {
+                    public String[] call() throws IOException {
+                        if (modelOuts != null) {
+                            if (metrics != null) {
+                                metrics.experimentProcessed(false);
+                            }
+                            return extractModelLines(experiment, encoders.get().reset());
+                        }
+                        String hash = hashExperiment(experiment);
+                        String line = reuseLine(hash);
+                        if (metrics != null) {
+                            metrics.experimentProcessed(line != null);
+                        }
+                        if (line == null) {
+                            AcmoRowEncoder encoder = encoders.get().reset();
+                            extractLine(experiment, encoder);
+                            line = encoder.toString();
+                        }
+                        return new String[]{hash, line};
+                    }
+                }));
+                if (pending.size() >= window) {
+                    emitResult(bw, getResult(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                emitResult(bw, getResult(pending.removeFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void startSort(File dir) {
+        if (sorted) {
+            sorter = new AcmoRowSorter(dir, sortMemoryBudget);
+        }
+    }
+
+    /**
+     * Merge the sorted rows into the I/O thread, or write them.
+     */
+    private void finishSort(final AcmoChannelWriter bw) throws IOException {
+        if (sorter != null) {
+            AcmoRowSorter s = sorter;
+            sorter = null;
+            if (s.getRunCount() > 0) {
+                log.debug("Merging {} sorted runs of ACMO rows", s.getRunCount());
+            }
+            s.merge(new AcmoRowPipeline.RowSink() {
+                public void write(String[] result) throws IOException {
+                    emitResult(bw, result);
+                }
+            });
+        }
+    }
+
+    private void closeSort() {
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
+    }
+
+    private void startPipeline(final AcmoChannelWriter bw) {
+        if (pipelined) {
+            pipeline = new AcmoRowPipeline(new AcmoRowPipeline.RowSink() {
+                public void write(String[] result) throws IOException {
+                    writeResult(bw, result);
+                }
+            }, PIPELINE_BATCH_SIZE, PIPELINE_BATCHES);
+        }
+    }
+
+    private void finishPipeline() throws IOException {
+        if (pipeline != null) {
+            AcmoRowPipeline p = pipeline;
+            pipeline = null;
+            p.finish();
+        }
+    }
+
+    private void cancelPipeline() {
+        if (pipeline != null) {
+            pipeline.cancel();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Hand the lines of an experiment to the sort or the I/O thread, or
+     * write them.
+     */
+    private void emitResult(AcmoChannelWriter bw, String[] result) throws IOException {
+        if (sorter != null) {
+            sorter.add(result);
+        } else if (pipeline != null) {
+            pipeline.put(result);
+        } else {
+            writeResult(bw, result);
+        }
+    }
+
+    /**
+     * Write the lines extracted for an experiment: the content hash
+     * followed by the line, or by the line of each model.
+     */
+    private void writeResult(AcmoChannelWriter bw, String[] result) throws IOException {
+        if (modelOuts != null) {
+            for (int i = 0; i < modelOuts.length; i++) {
+                writeLine(modelOuts[i], result[i + 1], null);
+            }
+        } else {
+            writeLine(bw, result[1], result[0]);
+        }
+    }
+
+    /**
+     * Extract the line of the first model, then derive the lines of the
+     * other models by replacing the CUL_ID and the last CROP_MODEL cells.
+     *
+     * @return null followed by the line of each model
+     */
+    private String[] extractModelLines(HashMap<String, Object> experiment, AcmoRowEncoder encoder) {
+        // The events of the other models come from the same event pass
+        ArrayList<HashMap<String, String>> modelEvents = new ArrayList<HashMap<String, String>>(destModels.size() - 1);
+        extractLine(experiment, encoder, destModels.subList(1, destModels.size()), modelEvents);
+        String line = encoder.toString();
+        int culStart = encoder.getMark();
+        int culEnd = line.indexOf(',', culStart);
+        int modelStart = line.lastIndexOf(',') + 1;
+        String[] result = new String[destModels.size() + 1];
+        result[1] = line;
+        StringBuilder sb = new StringBuilder(line.length() + 16);
+        for (int i = 1; i < destModels.size(); i++) {
+            String model = destModels.get(i);
+            sb.setLength(0);
+            sb.append(line, 0, culStart);
+            sb.append(MapUtil.getValueOr(modelEvents.get(i - 1), "cul_id", ""));
+            sb.append(line, culEnd, modelStart);
+            sb.append(model.toUpperCase());
+            result[i + 1] = sb.toString();
+        }
+        return result;
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting ACMO lines");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                IOException ioe = new IOException("Error extracting ACMO line: " + cause.getMessage());
+                ioe.initCause(cause);
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * Write a line, and record it in the manifest when a hash is given.
+     */
+    private void writeLine(AcmoChannelWriter bw, CharSequence acmoData, String hash) throws IOException {
+        log.debug("ACMO dataline: {}", acmoData);
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (shardSink != null) {
+            // The shard writers report the size of the rows
+            shardSink.write(acmoData.toString());
+            if (columnarOut != null) {
+                columnarOut.writeRow(acmoData);
+            }
+            if (metrics != null) {
+                metrics.stageCompleted(AcmoStage.IO, System.nanoTime() - start);
+            }
+            return;
+        }
+        long offset = hash == null && metrics == null && indexOut == null ? 0 : bw.getBytesWritten();
+        if (acmoData instanceof AcmoRowEncoder) {
+            ((AcmoRowEncoder) acmoData).writeTo(bw);
+        } else {
+            bw.write(acmoData.toString());
+        }
+        if (hash != null || indexOut != null) {
+            long length = bw.getBytesWritten() - offset;
+            if (hash != null) {
+                manifestOut.add(hash, offset, length);
+            }
+            if (indexOut != null) {
+                indexOut.add(acmoData, offset, length);
+            }
+        }
+        bw.write('\n');
+        if (columnarOut != null) {
+            columnarOut.writeRow(acmoData);
+        }
+        if (metrics != null) {
+            metrics.rowWritten(bw.getBytesWritten() - offset);
+            metrics.stageCompleted(AcmoStage.IO, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the content hash of the experiment, or null when not in the
+     * incremental mode
+     */
+    private String hashExperiment(HashMap<String, Object> experiment) {
+        if (manifestOut == null) {
+            return null;
+        }
+        String wstId = MapUtil.getValueOr(experiment, "wst_id", "");
+        String soilId = MapUtil.getValueOr(experiment, "soil_id", "");
+        String[] siteValues = {siteIndex.getClimId(wstId), siteIndex.getClimCat(wstId), siteIndex.getWid(wstId),
+            siteIndex.getSid(soilId), siteIndex.getSoilId(soilId)};
+        return manifestOut.hashExperiment(experiment, siteValues, domeIdHashMap);
+    }
+
+    /**
+     * @return the line of an unchanged experiment from the previous file, or
+     * null if it has to be extracted
+     */
+    private String reuseLine(String hash) throws IOException {
+        if (hash == null || previousManifest == null) {
+            return null;
+        }
+        String line = previousManifest.readRow(hash);
+        if (line != null) {
+            reusedRows.incrementAndGet();
+        }
+        return line;
+    }
+
+    private void extractLine(HashMap<String, Object> experiment, AcmoRowEncoder encoder) {
+        extractLine(experiment, encoder, Collections.<String>emptyList(), null);
+    }
+
+    private void extractLine(HashMap<String, Object> experiment, AcmoRowEncoder encoder, List<String> otherModels, List<HashMap<String, String>> otherEvents) {
+        // get WSTID and pass the CLIM_ID from that.
+        String wstId = MapUtil.getValueOr(experiment, "wst_id", "");
+        String soilId = MapUtil.getValueOr(experiment, "soil_id", "");
+        String climId = MapUtil.getValueOr(experiment, "ctwn_clim_id", siteIndex.getClimId(wstId));
+        String climCat = siteIndex.getClimCat(wstId);
+        String quaduiVer = MapUtil.getValueOr(experiment, "quaduiVer", "");
+        String wid = siteIndex.getWid(wstId);
+        String sid = siteIndex.getSid(soilId);
+        soilId = siteIndex.getSoilId(soilId);
+        AcmoUtil.extractAcmoData(experiment, destModel, otherModels, otherEvents, domeIdHashMap, aggregators, metrics, encoder, climId, climCat, wid, sid, soilId, quaduiVer);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final int poolId = poolCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "acmo-writer-" + poolId + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
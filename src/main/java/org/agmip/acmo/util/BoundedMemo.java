@@ -0,0 +1,118 @@
+package org.agmip.acmo.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe memo of computed values keyed by a few strings, with hit
+ * and miss counters.
+ *
+ * The memo holds at most {@code maxSize} values. Once it is full, new
+ * values are no longer stored, so the values computed first stay for good
+ * and the others are computed on every call; there is no eviction.
+ *
+ * @param <V> the type of the values
+ */
+class BoundedMemo<V> {
+
+    private final ConcurrentHashMap<Key, V> values = new ConcurrentHashMap<Key, V>();
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of stored values
+     */
+    BoundedMemo(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a stored value, counting a hit or a miss.
+     *
+     * @param key the key
+     * @return the value, or null if it has to be computed
+     */
+    V get(Key key) {
+        V value = values.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Store a computed value, unless the memo is full.
+     *
+     * @param key the key
+     * @param value the value, not stored if null
+     */
+    void put(Key key, V value) {
+        if (value != null && values.size() < maxSize) {
+            values.putIfAbsent(key, value);
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the ratio of hits over all the lookups, 0 if none
+     */
+    double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Remove all the values and reset the counters.
+     */
+    void clear() {
+        values.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * A key made of several strings, its hash computed once.
+     */
+    static final class Key {
+
+        private final String[] parts;
+        private final int hash;
+
+        Key(String... parts) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(parts, other.parts);
+        }
+    }
+}
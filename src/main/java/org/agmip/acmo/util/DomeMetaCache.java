@@ -0,0 +1,125 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.agmip.dome.DomeUtil;
+import org.agmip.util.MapUtil;
+
+/**
+ * A thread-safe cache from the DOME strings of an experiment to their
+ * resolved {@link DomeMetaInfo}.
+ *
+ * A batch usually uses only a handful of distinct DOME strings, so most
+ * experiments only pay a map lookup. The cache holds at most
+ * {@code maxSize} entries; once it is full, new strings are still resolved
+ * but no longer cached, the first entries staying cached for good.
+ */
+public class DomeMetaCache {
+
+    /**
+     * The default capacity
+     */
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    private static final DomeMetaCache defaultCache = new DomeMetaCache(DEFAULT_MAX_SIZE);
+    private final BoundedMemo<DomeMetaInfo> memo;
+
+    /**
+     * @param maxSize the maximum number of cached entries
+     */
+    public DomeMetaCache(int maxSize) {
+        this.memo = new BoundedMemo<DomeMetaInfo>(maxSize);
+    }
+
+    /**
+     * @return the cache shared by the ACMO extraction
+     */
+    public static DomeMetaCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Resolve the meta data of the DOMEs applied to an experiment.
+     *
+     * @param seasonalStrategy the {@code seasonal_strategy} value, DOME
+     * names separated by {@code |}
+     * @param fieldOverlay the {@code field_overlay} value, DOME names
+     * separated by {@code |}
+     * @return the resolved meta data
+     */
+    public DomeMetaInfo resolve(String seasonalStrategy, String fieldOverlay) {
+        BoundedMemo.Key key = new BoundedMemo.Key(seasonalStrategy, fieldOverlay);
+        DomeMetaInfo ret = memo.get(key);
+        if (ret == null) {
+            ret = resolveDomeMetaInfo(seasonalStrategy, fieldOverlay);
+            memo.put(key, ret);
+        }
+        return ret;
+    }
+
+    public long getHitCount() {
+        return memo.getHitCount();
+    }
+
+    public long getMissCount() {
+        return memo.getMissCount();
+    }
+
+    /**
+     * @return the ratio of hits over all the lookups, 0 if none
+     */
+    public double getHitRate() {
+        return memo.getHitRate();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return memo.size();
+    }
+
+    /**
+     * Remove all the cached entries and reset the statistics.
+     */
+    public void clear() {
+        memo.clear();
+    }
+
+    private static DomeMetaInfo resolveDomeMetaInfo(String seasonalStrategy, String fieldOverlay) {
+        ArrayList<HashMap<String, String>> domeBases = new ArrayList<HashMap<String, String>>();
+        if (! seasonalStrategy.isEmpty()) {
+            domeBases.addAll(getDomeMetaInfos(seasonalStrategy));
+        }
+        domeBases.addAll(getDomeMetaInfos(fieldOverlay));
+        return new DomeMetaInfo(
+                getDomeMetaInfo(domeBases, "reg_id", ""),
+                getDomeMetaInfo(domeBases, "stratum", ""),
+                getDomeMetaInfo(domeBases, "rap_id", ""),
+                getDomeMetaInfo(domeBases, "man_id", ""));
+    }
+
+    private static ArrayList<HashMap<String, String>> getDomeMetaInfos(String domeStr) {
+        ArrayList<HashMap<String, String>> ret = new ArrayList<HashMap<String, String>>();
+        String[] domes = domeStr.split("[|]");
+        for (String dome : domes) {
+            ret.add(DomeUtil.unpackDomeName(dome));
+        }
+        return ret;
+    }
+
+    private static String getDomeMetaInfo(ArrayList<HashMap<String, String>> domeBases, String metaId, String defVal) {
+        String ret = "";
+        for (HashMap<String, String> domeBase : domeBases) {
+            ret = MapUtil.getValueOr(domeBase, metaId, "");
+            if (!ret.isEmpty()) {
+                break;
+            }
+        }
+        if (ret.isEmpty()) {
+            return defVal;
+        } else {
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.agmip.acmo.util;
+
+/**
+ * The ACMO meta data resolved from the DOME names of an experiment.
+ *
+ * Each value is taken from the first DOME name which defines it, seasonal
+ * strategy DOMEs first, then the field overlay DOMEs.
+ */
+public final class DomeMetaInfo {
+
+    private final String regId;
+    private final String stratum;
+    private final String rapId;
+    private final String manId;
+
+    public DomeMetaInfo(String regId, String stratum, String rapId, String manId) {
+        this.regId = regId;
+        this.stratum = stratum;
+        this.rapId = rapId;
+        this.manId = manId;
+    }
+
+    public String getRegId() {
+        return regId;
+    }
+
+    public String getStratum() {
+        return stratum;
+    }
+
+    public String getRapId() {
+        return rapId;
+    }
+
+    public String getManId() {
+        return manId;
+    }
+}
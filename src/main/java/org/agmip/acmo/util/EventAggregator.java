@@ -0,0 +1,28 @@
+package org.agmip.acmo.util;
+
+import java.util.HashMap;
+
+/**
+ * Summarizes the management events of one experiment.
+ *
+ * A new aggregator is created by its {@link EventAggregatorFactory} for
+ * each experiment, then given every event of the types it is registered
+ * for, in the order of the event list.
+ */
+public interface EventAggregator {
+
+    /**
+     * Process one event.
+     *
+     * @param event the event data, including the {@code event} type
+     */
+    public void add(HashMap<String, String> event);
+
+    /**
+     * Put the summary values into the results after all the events have
+     * been processed.
+     *
+     * @param results the summary values of the experiment
+     */
+    public void complete(HashMap<String, String> results);
+}
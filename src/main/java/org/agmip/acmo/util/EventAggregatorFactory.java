@@ -0,0 +1,13 @@
+package org.agmip.acmo.util;
+
+/**
+ * Creates the {@link EventAggregator} for each experiment.
+ */
+public interface EventAggregatorFactory {
+
+    /**
+     * @param context the context of the experiment being processed
+     * @return a new aggregator
+     */
+    public EventAggregator newAggregator(EventContext context);
+}
@@ -0,0 +1,234 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.agmip.util.MapUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The event aggregators keyed by event type.
+ *
+ * {@link #aggregate(HashMap, String)} walks the management events of an
+ * experiment once, and hands each event to the aggregators registered for
+ * its type with a single map lookup. The registry can be changed at any
+ * time; an aggregation in progress keeps using the aggregators registered
+ * when it started.
+ */
+public class EventAggregatorRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(EventAggregatorRegistry.class);
+    private volatile Entries entries = new Entries(new ArrayList<String>(), new ArrayList<EventAggregatorFactory>());
+
+    /**
+     * Create a registry with the aggregators for the ACMO columns:
+     * planting, irrigation, fertilizer, organic_matter and tillage.
+     *
+     * @return a new registry
+     */
+    public static EventAggregatorRegistry createDefault() {
+        EventAggregatorRegistry registry = new EventAggregatorRegistry();
+        registry.register("planting", AcmoEventAggregators.PLANTING);
+        registry.register("irrigation", AcmoEventAggregators.IRRIGATION);
+        registry.register("fertilizer", AcmoEventAggregators.FERTILIZER);
+        registry.register("organic_matter", AcmoEventAggregators.ORGANIC_MATTER);
+        registry.register("tillage", AcmoEventAggregators.TILLAGE);
+        return registry;
+    }
+
+    /**
+     * Register an aggregator for an event type. The same factory may be
+     * registered for several types, it then gets a single aggregator per
+     * experiment which receives the events of all those types.
+     *
+     * @param eventType the event type, as in the {@code event} variable
+     * @param factory the factory of the aggregator
+     */
+    public synchronized void register(String eventType, EventAggregatorFactory factory) {
+        ArrayList<String> types = new ArrayList<String>(entries.types);
+        ArrayList<EventAggregatorFactory> factories = new ArrayList<EventAggregatorFactory>(entries.factories);
+        types.add(eventType);
+        factories.add(factory);
+        entries = new Entries(types, factories);
+    }
+
+    /**
+     * Remove all the aggregators registered for an event type.
+     *
+     * @param eventType the event type
+     */
+    public synchronized void remove(String eventType) {
+        ArrayList<String> types = new ArrayList<String>();
+        ArrayList<EventAggregatorFactory> factories = new ArrayList<EventAggregatorFactory>();
+        for (int i = 0; i < entries.types.size(); i++) {
+            if (!entries.types.get(i).equals(eventType)) {
+                types.add(entries.types.get(i));
+                factories.add(entries.factories.get(i));
+            }
+        }
+        entries = new Entries(types, factories);
+    }
+
+    /**
+     * Summarize the management events of an experiment in a single pass.
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @return the summary values of all the aggregators
+     */
+    public HashMap<String, String> aggregate(HashMap<String, Object> dataset, String destModel) {
+        return aggregate(dataset, destModel, null);
+    }
+
+    /**
+     * Summarize the management events of an experiment in a single pass,
+     * reporting the invalid values to the given listener.
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @param metrics the listener told about the invalid values, can be
+     * null
+     * @return the summary values of all the aggregators
+     */
+    public HashMap<String, String> aggregate(HashMap<String, Object> dataset, String destModel, AcmoMetricsListener metrics) {
+        return aggregate(dataset, destModel, metrics, Collections.<String>emptyList(), null);
+    }
+
+    /**
+     * Summarize the management events of an experiment in a single pass,
+     * for a destination model with all the aggregators, and for other
+     * models with only the aggregators registered for the planting events,
+     * which give the model specific CUL_ID.
+     *
+     * @param dataset a single AgMIP dataset
+     * @param destModel the destination model name
+     * @param metrics the listener told about the invalid values, can be
+     * null
+     * @param otherModels the other destination model names
+     * @param otherResults receives the summary values of each other model,
+     * can be null without other models
+     * @return the summary values of all the aggregators
+     */
+    HashMap<String, String> aggregate(HashMap<String, Object> dataset, String destModel, AcmoMetricsListener metrics, List<String> otherModels, List<HashMap<String, String>> otherResults) {
+        Entries current = entries;
+        HashMap<String, String> results = new HashMap<String, String>();
+        ArrayList<HashMap<String, String>> events = getEvents(dataset);
+        // The aggregators of each model, only the planting ones for the
+        // other models
+        EventAggregator[][] aggregators = new EventAggregator[otherModels.size() + 1][current.distinct.length];
+        for (int m = 0; m < aggregators.length; m++) {
+            EventContext context = new EventContext(m == 0 ? destModel : otherModels.get(m - 1), metrics);
+            for (int i = 0; i < current.distinct.length; i++) {
+                if (m == 0 || current.planting[i]) {
+                    aggregators[m][i] = current.distinct[i].newAggregator(context);
+                }
+            }
+        }
+
+        for (HashMap<String, String> event : events) {
+            String currentEvent = MapUtil.getValueOr(event, "event", "");
+            if (log.isDebugEnabled()) {
+                log.debug("Current event: {}", event);
+            }
+            int[] indexes = current.byType.get(currentEvent);
+            if (indexes != null) {
+                for (EventAggregator[] modelAggregators : aggregators) {
+                    for (int i : indexes) {
+                        if (modelAggregators[i] != null) {
+                            modelAggregators[i].add(event);
+                        }
+                    }
+                }
+            }
+        }
+        // After processing all the events, consume the results of the aggregators.
+        for (int m = 0; m < aggregators.length; m++) {
+            HashMap<String, String> modelResults = m == 0 ? results : new HashMap<String, String>();
+            for (EventAggregator aggregator : aggregators[m]) {
+                if (aggregator != null) {
+                    aggregator.complete(modelResults);
+                }
+            }
+            if (m > 0) {
+                otherResults.add(modelResults);
+            }
+        }
+        log.debug("extractEventData results: {}", results);
+        return results;
+    }
+
+    /**
+     * @param dataset a single AgMIP dataset
+     * @return the management events of the dataset, the only place they
+     * are read from the untyped dataset
+     */
+    @SuppressWarnings("unchecked")
+    static ArrayList<HashMap<String, String>> getEvents(HashMap<String, Object> dataset) {
+        HashMap<String, Object> management = MapUtil.getRawBucket(dataset, "management");
+        return (ArrayList<HashMap<String, String>>) MapUtil.getObjectOr(management, "events", new ArrayList<HashMap<String, String>>());
+    }
+
+    /**
+     * An immutable snapshot of the registered aggregators
+     */
+    private static class Entries {
+
+        private final ArrayList<String> types;
+        private final ArrayList<EventAggregatorFactory> factories;
+        // The distinct factories, in registration order
+        private final EventAggregatorFactory[] distinct;
+        // The event type to the indexes in distinct
+        private final HashMap<String, int[]> byType = new HashMap<String, int[]>();
+        // Whether each distinct factory is registered for the planting events
+        private final boolean[] planting;
+
+        private Entries(ArrayList<String> types, ArrayList<EventAggregatorFactory> factories) {
+            this.types = types;
+            this.factories = factories;
+            ArrayList<EventAggregatorFactory> distinctList = new ArrayList<EventAggregatorFactory>();
+            HashMap<String, ArrayList<Integer>> indexes = new HashMap<String, ArrayList<Integer>>();
+            for (int i = 0; i < types.size(); i++) {
+                EventAggregatorFactory factory = factories.get(i);
+                int index = -1;
+                for (int j = 0; j < distinctList.size(); j++) {
+                    if (distinctList.get(j) == factory) {
+                        index = j;
+                        break;
+                    }
+                }
+                if (index < 0) {
+                    index = distinctList.size();
+                    distinctList.add(factory);
+                }
+                ArrayList<Integer> typeIndexes = indexes.get(types.get(i));
+                if (typeIndexes == null) {
+                    typeIndexes = new ArrayList<Integer>();
+                    indexes.put(types.get(i), typeIndexes);
+                }
+                if (!typeIndexes.contains(index)) {
+                    typeIndexes.add(index);
+                }
+            }
+            distinct = distinctList.toArray(new EventAggregatorFactory[distinctList.size()]);
+            for (Map.Entry<String, ArrayList<Integer>> entry : indexes.entrySet()) {
+                int[] arr = new int[entry.getValue().size()];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = entry.getValue().get(i);
+                }
+                byType.put(entry.getKey(), arr);
+            }
+            planting = new boolean[distinct.length];
+            int[] plantingIndexes = byType.get("planting");
+            if (plantingIndexes != null) {
+                for (int i : plantingIndexes) {
+                    planting[i] = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.agmip.acmo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The context shared by the event aggregators of one experiment.
+ */
+public class EventContext {
+
+    private static final Logger log = LoggerFactory.getLogger(EventContext.class);
+    private final String destModel;
+    private final AcmoMetricsListener metrics;
+
+    /**
+     * @param destModel the destination model name
+     */
+    public EventContext(String destModel) {
+        this(destModel, null);
+    }
+
+    /**
+     * @param destModel the destination model name
+     * @param metrics the listener told about the invalid values, can be
+     * null
+     */
+    public EventContext(String destModel, AcmoMetricsListener metrics) {
+        this.destModel = destModel.toLowerCase();
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the destination model name, in lower case
+     */
+    public String getDestModel() {
+        return destModel;
+    }
+
+    /**
+     * Report an event value which could not be converted.
+     *
+     * @param var the variable name
+     * @param value the invalid value
+     */
+    public void invalidValue(String var, String value) {
+        log.error("Error converting {} with value {}", var, value);
+        if (metrics != null) {
+            metrics.parseError(var, value);
+        }
+    }
+}
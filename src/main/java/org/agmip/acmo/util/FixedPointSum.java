@@ -0,0 +1,172 @@
+package org.agmip.acmo.util;
+
+import java.math.BigDecimal;
+
+/**
+ * Sums decimal strings as a scaled {@code long}.
+ *
+ * The result is the same as adding {@code new BigDecimal(value)} to
+ * {@code BigDecimal.ZERO}: the scale of the sum is the largest scale of
+ * the added values, and {@link #toString()} prints the sum the way
+ * {@link BigDecimal#toString()} does. A value in exponent notation, with
+ * more than 18 digits, or a sum that would overflow the {@code long},
+ * switches the accumulator to {@code BigDecimal} arithmetic for good.
+ *
+ * An accumulator is not thread-safe.
+ */
+public class FixedPointSum {
+
+    private static final int MAX_DIGITS = 18;
+    private static final long[] POW10 = new long[MAX_DIGITS + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private long unscaled = 0;
+    private int scale = 0;
+    private BigDecimal big = null;
+    // The last value parsed by parse()
+    private long parsedUnscaled;
+    private int parsedScale;
+
+    /**
+     * Add a decimal value to the sum.
+     *
+     * @param value the decimal string, in the format accepted by
+     * {@link BigDecimal#BigDecimal(String)}
+     * @throws NumberFormatException if the value is not a valid decimal
+     */
+    public void add(String value) {
+        if (big == null && parse(value) && addScaled(parsedUnscaled, parsedScale)) {
+            return;
+        }
+        // Slow path, also reports the invalid values
+        BigDecimal dec = new BigDecimal(value);
+        big = toBigDecimal().add(dec);
+    }
+
+    /**
+     * @return the sum as a {@code BigDecimal}
+     */
+    public BigDecimal toBigDecimal() {
+        if (big != null) {
+            return big;
+        } else {
+            return BigDecimal.valueOf(unscaled, scale);
+        }
+    }
+
+    /**
+     * @return the sum formatted as {@link BigDecimal#toString()}
+     */
+    @Override
+    public String toString() {
+        if (big != null) {
+            return big.toString();
+        } else if (scale == 0) {
+            return Long.toString(unscaled);
+        }
+        String digits = Long.toString(Math.abs(unscaled));
+        // BigDecimal switches to the scientific notation for small numbers
+        if (digits.length() - 1 - scale < -6) {
+            return toBigDecimal().toString();
+        }
+        StringBuilder sb = new StringBuilder(digits.length() + 3);
+        if (unscaled < 0) {
+            sb.append('-');
+        }
+        int intDigits = digits.length() - scale;
+        if (intDigits > 0) {
+            sb.append(digits, 0, intDigits).append('.').append(digits, intDigits, digits.length());
+        } else {
+            sb.append("0.");
+            for (int i = intDigits; i < 0; i++) {
+                sb.append('0');
+            }
+            sb.append(digits);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a plain decimal ({@code [+-]digits[.digits]}) with at most 18
+     * digits into {@code parsedUnscaled} and {@code parsedScale}.
+     *
+     * @return false if the value has to be handled by {@code BigDecimal}
+     */
+    private boolean parse(String value) {
+        int len = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (len > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        long u = 0;
+        int digits = 0;
+        int sc = 0;
+        boolean point = false;
+        for (; i < len; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return false;
+                }
+                u = u * 10 + (c - '0');
+                if (point) {
+                    sc++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        parsedUnscaled = negative ? -u : u;
+        parsedScale = sc;
+        return true;
+    }
+
+    private boolean addScaled(long u, int sc) {
+        long a = unscaled;
+        int newScale = scale;
+        if (sc > scale) {
+            a = rescale(a, sc - scale);
+            newScale = sc;
+        } else if (sc < scale) {
+            u = rescale(u, scale - sc);
+        }
+        if (a == Long.MIN_VALUE || u == Long.MIN_VALUE) {
+            return false;
+        }
+        long r = a + u;
+        if (((a ^ r) & (u ^ r)) < 0) {
+            return false;
+        }
+        unscaled = r;
+        scale = newScale;
+        return true;
+    }
+
+    /**
+     * @return the value multiplied by 10^n, or {@code Long.MIN_VALUE} on
+     * overflow
+     */
+    private static long rescale(long value, int n) {
+        if (n > MAX_DIGITS) {
+            return value == 0 ? 0 : Long.MIN_VALUE;
+        }
+        long factor = POW10[n];
+        if (Math.abs(value) > Long.MAX_VALUE / factor) {
+            return Long.MIN_VALUE;
+        }
+        return value * factor;
+    }
+}
@@ -0,0 +1,85 @@
+package org.agmip.acmo.util;
+
+import org.agmip.ace.LookupCodes;
+
+/**
+ * A thread-safe cache for the {@link LookupCodes} translations, keyed by
+ * (domain, code, format).
+ *
+ * The cache holds at most {@code maxSize} translations. Once it is full,
+ * new translations are still looked up but no longer cached: the first
+ * codes seen stay cached for good, whether or not they are the most used
+ * ones. The default capacity holds every code of the lookup tables, so
+ * this only matters for smaller caches.
+ */
+public class LookupCodeCache {
+
+    /**
+     * The default capacity, well above the number of codes in the ACE
+     * lookup tables used by ACMO
+     */
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    private static final LookupCodeCache defaultCache = new LookupCodeCache(DEFAULT_MAX_SIZE);
+    private final BoundedMemo<String> memo;
+
+    /**
+     * @param maxSize the maximum number of cached translations
+     */
+    public LookupCodeCache(int maxSize) {
+        this.memo = new BoundedMemo<String>(maxSize);
+    }
+
+    /**
+     * @return the cache shared by the ACMO event aggregators
+     */
+    public static LookupCodeCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Translate a code, see {@link LookupCodes#lookupCode(String, String, String)}.
+     *
+     * @param domain the code domain, e.g. {@code crid}
+     * @param code the code to translate
+     * @param format the output format, e.g. {@code cn} for the common name
+     * @return the translated code
+     */
+    public String lookupCode(String domain, String code, String format) {
+        BoundedMemo.Key key = new BoundedMemo.Key(domain, code, format);
+        String ret = memo.get(key);
+        if (ret == null) {
+            ret = LookupCodes.lookupCode(domain, code, format);
+            memo.put(key, ret);
+        }
+        return ret;
+    }
+
+    public long getHitCount() {
+        return memo.getHitCount();
+    }
+
+    public long getMissCount() {
+        return memo.getMissCount();
+    }
+
+    /**
+     * @return the ratio of hits over all the lookups, 0 if none
+     */
+    public double getHitRate() {
+        return memo.getHitRate();
+    }
+
+    /**
+     * @return the number of cached translations
+     */
+    public int size() {
+        return memo.size();
+    }
+
+    /**
+     * Remove all the cached translations and reset the statistics.
+     */
+    public void clear() {
+        memo.clear();
+    }
+}
@@ -0,0 +1,179 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcmoBatchRunnerTest {
+
+    /**
+     * Returns destFolder/sourceFolder.csv after a short pause, fails on the
+     * "bad" and "none" folders, and records the peak number of concurrent
+     * calls.
+     */
+    private static class StubTranslator implements AcmoTranslator {
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        public File execute(String sourceFolder, String destFolder) {
+            calls.incrementAndGet();
+            int now = running.incrementAndGet();
+            while (peak.get() < now && !peak.compareAndSet(peak.get(), now)) {
+            }
+            try {
+                Thread.sleep(5);
+                if (sourceFolder.equals("bad")) {
+                    throw new IllegalStateException("bad folder");
+                } else if (sourceFolder.equals("none")) {
+                    return null;
+                }
+                return new File(destFolder, sourceFolder + ".csv");
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void batchTest() throws InterruptedException {
+        StubTranslator translator = new StubTranslator();
+        ArrayList<AcmoBatchRunner.Job> jobs = new ArrayList<AcmoBatchRunner.Job>();
+        for (int i = 0; i < 40; i++) {
+            String source = i == 7 ? "bad" : i == 11 ? "none" : "exp" + i;
+            jobs.add(new AcmoBatchRunner.Job(translator, source, "out"));
+        }
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger lastCompleted = new AtomicInteger();
+        AcmoBatchRunner runner = new AcmoBatchRunner(3);
+        runner.setListener(new AcmoBatchRunner.Listener() {
+            public void jobStarted(AcmoBatchRunner.Job job, int index) {
+                started.incrementAndGet();
+            }
+
+            public void jobFinished(AcmoBatchRunner.Result result, int completed, int total) {
+                assertEquals(40, total);
+                synchronized (lastCompleted) {
+                    lastCompleted.set(Math.max(lastCompleted.get(), completed));
+                }
+            }
+        });
+        List<AcmoBatchRunner.Result> results = runner.run(jobs);
+
+        assertEquals(40, results.size());
+        assertEquals(40, started.get());
+        assertEquals(40, lastCompleted.get());
+        assertTrue("Too many concurrent jobs", translator.peak.get() <= 3);
+        for (int i = 0; i < 40; i++) {
+            AcmoBatchRunner.Result result = results.get(i);
+            assertEquals(i, result.getIndex());
+            assertSame(jobs.get(i), result.getJob());
+            if (i == 7) {
+                assertEquals(AcmoBatchRunner.Status.FAILED, result.getStatus());
+                assertEquals("bad folder", result.getError().getMessage());
+            } else if (i == 11) {
+                assertEquals(AcmoBatchRunner.Status.FAILED, result.getStatus());
+                assertNull(result.getError());
+            } else {
+                assertTrue(result.isSucceeded());
+                assertEquals(new File("out", "exp" + i + ".csv"), result.getFile());
+            }
+        }
+        List<File> files = AcmoBatchRunner.getFiles(results);
+        assertEquals(38, files.size());
+        assertEquals(new File("out", "exp0.csv"), files.get(0));
+        assertEquals(new File("out", "exp39.csv"), files.get(37));
+    }
+
+    @Test
+    public void cancelTest() throws InterruptedException {
+        StubTranslator translator = new StubTranslator();
+        ArrayList<AcmoBatchRunner.Job> jobs = new ArrayList<AcmoBatchRunner.Job>();
+        for (int i = 0; i < 100; i++) {
+            jobs.add(new AcmoBatchRunner.Job(translator, "exp" + i, "out"));
+        }
+        final AcmoBatchRunner runner = new AcmoBatchRunner(2);
+        runner.setListener(new AcmoBatchRunner.Listener() {
+            public void jobStarted(AcmoBatchRunner.Job job, int index) {
+            }
+
+            public void jobFinished(AcmoBatchRunner.Result result, int completed, int total) {
+                if (completed == 10) {
+                    runner.cancel();
+                }
+            }
+        });
+        List<AcmoBatchRunner.Result> results = runner.run(jobs);
+
+        assertEquals(100, results.size());
+        assertTrue(runner.isCancelled());
+        int succeeded = 0;
+        for (AcmoBatchRunner.Result result : results) {
+            if (result.isSucceeded()) {
+                succeeded++;
+            } else {
+                assertEquals(AcmoBatchRunner.Status.CANCELLED, result.getStatus());
+                assertNull(result.getFile());
+            }
+        }
+        assertEquals(translator.calls.get(), succeeded);
+        assertTrue("Batch not stopped", succeeded >= 10 && succeeded < 100);
+        assertEquals(AcmoBatchRunner.Status.CANCELLED, results.get(99).getStatus());
+    }
+
+    @Test
+    public void errorTest() throws InterruptedException {
+        ArrayList<AcmoBatchRunner.Job> jobs = new ArrayList<AcmoBatchRunner.Job>();
+        for (int i = 0; i < 10; i++) {
+            final boolean broken = i == 3;
+            jobs.add(new AcmoBatchRunner.Job(new AcmoTranslator() {
+                public File execute(String sourceFolder, String destFolder) {
+                    if (broken) {
+                        throw new NoClassDefFoundError("org/agmip/Missing");
+                    }
+                    return new File(destFolder, sourceFolder + ".csv");
+                }
+            }, "exp" + i, "out"));
+        }
+        List<AcmoBatchRunner.Result> results = new AcmoBatchRunner(2).run(jobs);
+
+        assertEquals(10, results.size());
+        assertEquals(AcmoBatchRunner.Status.FAILED, results.get(3).getStatus());
+        assertTrue(results.get(3).getError() instanceof NoClassDefFoundError);
+        assertEquals(9, AcmoBatchRunner.getFiles(results).size());
+    }
+
+    @Test
+    public void cancelBeforeRunTest() throws InterruptedException {
+        StubTranslator translator = new StubTranslator();
+        ArrayList<AcmoBatchRunner.Job> jobs = new ArrayList<AcmoBatchRunner.Job>();
+        for (int i = 0; i < 5; i++) {
+            jobs.add(new AcmoBatchRunner.Job(translator, "exp" + i, "out"));
+        }
+        AcmoBatchRunner runner = new AcmoBatchRunner(2);
+        runner.cancel();
+        assertTrue(runner.isCancelled());
+        for (AcmoBatchRunner.Result result : runner.run(jobs)) {
+            assertEquals(AcmoBatchRunner.Status.CANCELLED, result.getStatus());
+        }
+        assertEquals(0, translator.calls.get());
+
+        // Only the next batch is cancelled
+        for (AcmoBatchRunner.Result result : runner.run(jobs)) {
+            assertTrue(result.isSucceeded());
+        }
+        assertFalse(runner.isCancelled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidConcurrencyTest() {
+        new AcmoBatchRunner(0);
+    }
+}
@@ -0,0 +1,154 @@
+package org.agmip.acmo.translators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcmoTranslatorAdapterTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicInteger peak = new AtomicInteger();
+
+    /**
+     * Returns destFolder/sourceFolder-version.csv with the recorded version,
+     * like the model translators which keep it in a field.
+     */
+    private static class RecordingTranslator implements AcmoTranslator, AcmoVersionRecordable {
+
+        private String acmoVer = "";
+
+        public void recordAcmoVersion(String acmoVer) {
+            this.acmoVer = acmoVer;
+        }
+
+        public File execute(String sourceFolder, String destFolder) {
+            int now = running.incrementAndGet();
+            while (peak.get() < now && !peak.compareAndSet(peak.get(), now)) {
+            }
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            if (sourceFolder.equals("bad")) {
+                throw new IllegalStateException("bad folder");
+            }
+            return new File(destFolder, sourceFolder + "-" + acmoVer + ".csv");
+        }
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void checkVersions(AcmoAsyncTranslator async) throws Exception {
+        ArrayList<Future<File>> futures = new ArrayList<Future<File>>();
+        for (int i = 0; i < 40; i++) {
+            futures.add(async.executeAsync("exp" + i, "out", new AcmoTranslationContext("1." + i), null));
+        }
+        for (int i = 0; i < 40; i++) {
+            assertEquals(new File("out", "exp" + i + "-1." + i + ".csv"), futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sharedTranslatorTest() throws Exception {
+        peak.set(0);
+        checkVersions(new AcmoTranslatorAdapter(new RecordingTranslator(), executor));
+        assertEquals("Shared recording translator run concurrently", 1, peak.get());
+    }
+
+    @Test
+    public void missingVersionTest() throws Exception {
+        AcmoAsyncTranslator async = new AcmoTranslatorAdapter(new RecordingTranslator(), executor);
+        assertEquals(new File("out", "exp-1.0.csv"), async.executeAsync("exp", "out", new AcmoTranslationContext("1.0"), null).get(10, TimeUnit.SECONDS));
+        assertEquals(new File("out", "exp-null.csv"), async.executeAsync("exp", "out", null, null).get(10, TimeUnit.SECONDS));
+        assertEquals(new File("out", "exp-null.csv"), async.executeAsync("exp", "out", new AcmoTranslationContext(null), null).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void factoryTest() throws Exception {
+        peak.set(0);
+        checkVersions(new AcmoTranslatorAdapter(new AcmoTranslatorFactory() {
+            public AcmoTranslator newTranslator() {
+                return new RecordingTranslator();
+            }
+        }, executor));
+    }
+
+    @Test
+    public void callbackTest() throws Exception {
+        AcmoAsyncTranslator async = new AcmoTranslatorAdapter(new RecordingTranslator(), executor);
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        AcmoTranslationCallback callback = new AcmoTranslationCallback() {
+            public void completed(File file) {
+                outcome.compareAndSet(null, file);
+                latch.countDown();
+            }
+
+            public void failed(Throwable error) {
+                outcome.set(error);
+                latch.countDown();
+            }
+        };
+        async.executeAsync("exp", "out", new AcmoTranslationContext("2.0"), callback);
+        Future<File> bad = async.executeAsync("bad", "out", new AcmoTranslationContext("2.0"), callback);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Object error = outcome.get();
+        assertTrue(error instanceof IllegalStateException);
+        assertEquals("bad folder", ((Throwable) error).getMessage());
+        try {
+            bad.get();
+            fail("The failure is not reported by the future");
+        } catch (ExecutionException ex) {
+            assertSame(error, ex.getCause());
+        }
+    }
+
+    @Test
+    public void cancelCallbackTest() throws Exception {
+        // An executor which never runs the tasks
+        final ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        Executor idle = new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        assertEquals(0, AcmoTranslatorAdapter.getMaxThreads(idle));
+        assertEquals(4, AcmoTranslatorAdapter.getMaxThreads(executor));
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final AtomicReference<Throwable> outcome = new AtomicReference<Throwable>();
+        AcmoAsyncTranslator async = new AcmoTranslatorAdapter(new RecordingTranslator(), idle);
+        Future<File> future = async.executeAsync("exp", "out", null, new AcmoTranslationCallback() {
+            public void completed(File file) {
+            }
+
+            public void failed(Throwable error) {
+                thread.set(Thread.currentThread());
+                outcome.set(error);
+            }
+        });
+        assertEquals(1, queued.size());
+        assertTrue(future.cancel(false));
+        assertSame(Thread.currentThread(), thread.get());
+        assertTrue(outcome.get() instanceof CancellationException);
+    }
+}
@@ -0,0 +1,90 @@
+package org.agmip.acmo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoChannelWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String sample() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            // ASCII, 2-byte, 3-byte and a surrogate pair
+            sb.append("*,\"EXP_").append(i).append("\",\"Mga\u00f1a \u00b0C \u20ac \ud83c\udf3d\"\n");
+        }
+        return sb.toString();
+    }
+
+    private static void writeSample(Writer w, String str) throws IOException {
+        // Mix the write methods and cut the pairs at odd positions
+        int i = 0;
+        while (i < str.length()) {
+            int n = Math.min(str.length() - i, 7);
+            if (i % 3 == 0) {
+                w.write(str, i, n);
+            } else if (i % 3 == 1) {
+                w.write(str.toCharArray(), i, n);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    w.write(str.charAt(i + j));
+                }
+            }
+            i += n;
+        }
+    }
+
+    @Test
+    public void utf8EncodingTest() throws IOException {
+        String str = sample();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AcmoChannelWriter w = new AcmoChannelWriter(Channels.newChannel(out), 16);
+        writeSample(w, str);
+        byte[] expected = str.getBytes("UTF-8");
+        assertEquals("Incorrect byte count", expected.length, w.getBytesWritten());
+        w.close();
+
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void compressedTest() throws IOException {
+        String str = sample();
+        File f = tmp.newFile("sample.gz");
+        AcmoChannelWriter w = AcmoChannelWriter.open(f, 64, true);
+        writeSample(w, str);
+        w.close();
+
+        InputStream in = new GZIPInputStream(new FileInputStream(f));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[256];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(str, new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterCloseTest() throws IOException {
+        AcmoChannelWriter w = AcmoChannelWriter.open(tmp.newFile("closed.dat"), 64, false);
+        w.close();
+        w.write("*");
+    }
+}
@@ -0,0 +1,145 @@
+package org.agmip.acmo.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoColumnarTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String HEADER = "!,Name,Count,Amount,Date,Code\n"
+            + "!,text,number,kg/ha,yyyy-mm-dd,code\n"
+            + "#,NAME,COUNT,AMOUNT,DATE,CODE\n";
+
+    private static String roundTrip(String csv, int rowGroupSize) throws IOException {
+        ByteArrayOutputStream bin = new ByteArrayOutputStream();
+        int start = csv.indexOf("\n*") + 1;
+        AcmoColumnarWriter writer = new AcmoColumnarWriter(bin, csv.substring(0, start), rowGroupSize);
+        for (String line : csv.substring(start).split("\n")) {
+            writer.writeRow(line);
+        }
+        writer.close();
+        StringWriter out = new StringWriter();
+        AcmoColumnarReader reader = new AcmoColumnarReader(new ByteArrayInputStream(bin.toByteArray()));
+        reader.writeCsv(out);
+        reader.close();
+        return out.toString();
+    }
+
+    @Test
+    public void writerRoundTripTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(300);
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        writer.setColumnar(true);
+        File meta = writer.write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        File bin = new File(meta.getParentFile(), "ACMO_meta.acmc");
+        assertTrue("Columnar file is not smaller", bin.length() < meta.length());
+
+        File csv = tmp.newFile("back.dat");
+        assertEquals("Incorrect number of rows", 300, AcmoColumnarReader.convert(bin, csv));
+        assertArrayEquals("CSV form differs", AcmoTestUtil.readBytes(meta), AcmoTestUtil.readBytes(csv));
+
+        File converted = tmp.newFile("converted.acmc");
+        assertEquals(300, AcmoColumnarWriter.convert(meta, converted));
+        assertArrayEquals("Conversion differs", AcmoTestUtil.readBytes(bin), AcmoTestUtil.readBytes(converted));
+    }
+
+    @Test
+    public void typedAccessTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(20);
+        File meta = new AcmoWriter(tmp.newFolder("typed").getPath(), "dssat").write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        File bin = tmp.newFile("typed.acmc");
+        AcmoColumnarWriter.convert(meta, bin);
+
+        AcmoColumnarReader reader = new AcmoColumnarReader(bin);
+        try {
+            int exname = reader.getColumnIndex("EXNAME");
+            int irTot = reader.getColumnIndex("IR_TOT");
+            int pdate = reader.getColumnIndex("PDATE");
+            int climId = reader.getColumnIndex("CLIM_ID");
+            int hwahS = reader.getColumnIndex("HWAH_S");
+            assertEquals(AcmoColumnType.NUMBER, reader.getColumnType(irTot));
+            assertEquals(AcmoColumnType.DATE, reader.getColumnType(pdate));
+            assertEquals(AcmoColumnType.CODE, reader.getColumnType(climId));
+            for (int i = 0; i < 20; i++) {
+                assertTrue(reader.nextRow());
+                assertEquals("EXP_" + i + "__1", reader.getString(exname));
+                assertEquals(new BigDecimal(i), reader.getDecimal(irTot));
+                assertEquals(19810101, reader.getDate(pdate));
+                assertEquals(i % 2 == 0 ? "0XFX" : "0XAX", reader.getString(climId));
+                assertNull("Simulated cell should be absent", reader.getString(hwahS));
+                assertTrue(reader.isEmpty(hwahS));
+            }
+            assertFalse(reader.nextRow());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fallbackEncodingTest() throws IOException {
+        String csv = HEADER
+                + "*,\"A\",1,12.50,1981-01-01,RAP1\n"
+                + "*,\"B \"\"q\"\" \\\\ ,\",auto,-0.05,19810101,\"RAP1\"\n"
+                + "*,\"raw \\x\",007,-0,,\n"
+                + "*,,,,\n"
+                + "*,\"C\"\n"
+                + "*,\"D\",12345678901234567890,1e3,2001-13-45,M\n";
+        for (int groupSize = 1; groupSize <= 7; groupSize++) {
+            assertEquals("Round trip with groups of " + groupSize, csv, roundTrip(csv, groupSize));
+        }
+    }
+
+    @Test
+    public void typedFallbackTest() throws IOException {
+        String csv = HEADER
+                + "*,\"B \"\"q\"\"\",auto,12.50,19810101\n"
+                + "*,\"A\",2,-0.05,1981-02-03,RAP1\n";
+        ByteArrayOutputStream bin = new ByteArrayOutputStream();
+        AcmoColumnarWriter.convert(new StringReader(csv), bin);
+        AcmoColumnarReader reader = new AcmoColumnarReader(new ByteArrayInputStream(bin.toByteArray()));
+        try {
+            assertTrue(reader.nextRow());
+            assertEquals("B \"q\"", reader.getString(1));
+            assertEquals(new BigDecimal("12.50"), reader.getDecimal(3));
+            assertEquals(5, reader.getCellCount());
+            try {
+                reader.getDecimal(2);
+                fail("auto is not a number");
+            } catch (NumberFormatException ex) {
+            }
+            try {
+                reader.getDate(4);
+                fail("19810101 is not a yyyy-mm-dd date");
+            } catch (NumberFormatException ex) {
+            }
+            assertTrue(reader.nextRow());
+            assertEquals(new BigDecimal(2), reader.getDecimal(2));
+            assertEquals(new BigDecimal("-0.05"), reader.getDecimal(3));
+            assertEquals(19810203, reader.getDate(4));
+            assertEquals("*,\"A\",2,-0.05,1981-02-03,RAP1", reader.getRow());
+            assertFalse(reader.nextRow());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyCellsTest() throws IOException {
+        AcmoColumnarWriter writer = new AcmoColumnarWriter(new ByteArrayOutputStream(), HEADER);
+        writer.writeRow("*,a,1,2,1981-01-01,b,extra");
+    }
+}
@@ -0,0 +1,133 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoMetricsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ArrayList<HashMap<String, Object>> createExperiments() {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(20);
+        HashMap<String, Object> bad = AcmoTestUtil.createExperiment("EXP_BAD__1", "UFGA", "IBSB910015");
+        AcePathfinderUtil.insertValue(bad, "idate", "19810102");
+        AcePathfinderUtil.insertValue(bad, "irval", "ten");
+        experiments.add(bad);
+        return experiments;
+    }
+
+    private void checkWrite(int parallelism) throws IOException {
+        AcmoMetrics metrics = new AcmoMetrics();
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder().getPath(), "dssat");
+        writer.setParallelism(parallelism);
+        writer.setMetricsListener(metrics);
+        File meta = writer.write(createExperiments().iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+
+        assertEquals(21, metrics.getExperimentCount());
+        assertEquals(0, metrics.getReusedExperimentCount());
+        assertEquals(21, metrics.getRowCount());
+        long headerBytes = AcmoUtil.generateAcmoHeader().getBytes("UTF-8").length;
+        assertEquals(meta.length() - headerBytes, metrics.getBytesWritten());
+        assertEquals(1, metrics.getParseErrorCount());
+        assertEquals(Long.valueOf(1), metrics.getParseErrorCounts().get("irval"));
+        for (AcmoStage stage : AcmoStage.values()) {
+            assertTrue(stage + " not timed", metrics.getStageNanos(stage) > 0);
+        }
+        assertEquals(0, metrics.getWriteFailureCount());
+
+        metrics.reset();
+        assertEquals(0, metrics.getRowCount());
+        assertTrue(metrics.getParseErrorCounts().isEmpty());
+    }
+
+    @Test
+    public void sequentialTest() throws IOException {
+        checkWrite(1);
+    }
+
+    @Test
+    public void shardedTest() throws IOException {
+        AcmoMetrics metrics = new AcmoMetrics();
+        File dir = tmp.newFolder();
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setShardKeys(AcmoShardKey.CLIM_ID);
+        writer.setParallelism(3);
+        writer.setMetricsListener(metrics);
+        writer.write(createExperiments().iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+
+        // The rows are measured on the shard writer threads
+        assertEquals(21, metrics.getRowCount());
+        long headerBytes = AcmoUtil.generateAcmoHeader().getBytes("UTF-8").length;
+        long rowBytes = 0;
+        for (File shard : dir.listFiles()) {
+            if (shard.getName().endsWith(".dat")) {
+                rowBytes += shard.length() - headerBytes;
+            }
+        }
+        assertEquals(rowBytes, metrics.getBytesWritten());
+    }
+
+    @Test
+    public void parallelTest() throws IOException {
+        checkWrite(3);
+    }
+
+    @Test
+    public void writeFailedTest() throws IOException {
+        AcmoMetrics metrics = new AcmoMetrics();
+        // A file in place of the output directory
+        AcmoWriter writer = new AcmoWriter(tmp.newFile("taken").getPath(), "dssat");
+        writer.setMetricsListener(metrics);
+        try {
+            writer.write(createExperiments().iterator(), null, null);
+            fail("The output directory is a file");
+        } catch (IOException ex) {
+        }
+        assertEquals(1, metrics.getWriteFailureCount());
+
+        File dir = tmp.newFolder("out");
+        writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setMetricsListener(metrics);
+        ArrayList<HashMap<String, Object>> experiments = createExperiments();
+        experiments.add(null);
+        try {
+            writer.write(experiments.iterator(), null, null);
+            fail("A null experiment is not valid");
+        } catch (RuntimeException ex) {
+        }
+        assertEquals(2, metrics.getWriteFailureCount());
+        assertNotNull(metrics.getLastWriteFailure());
+    }
+
+    @Test
+    public void jmxTest() throws IOException, JMException {
+        AcmoMetrics metrics = new AcmoMetrics();
+        ObjectName name = metrics.register("test");
+        try {
+            AcmoWriter writer = new AcmoWriter(tmp.newFolder().getPath(), "dssat");
+            writer.setMetricsListener(metrics);
+            writer.write(createExperiments().iterator(), null, null);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(21L, server.getAttribute(name, "RowCount"));
+            assertEquals(1L, server.getAttribute(name, "ParseErrorCount"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "RowCount"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
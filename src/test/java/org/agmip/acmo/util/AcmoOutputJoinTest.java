@@ -0,0 +1,114 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoOutputJoinTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HashMap<String, String> createOutput(String exname, int yield) {
+        HashMap<String, String> record = new HashMap<String, String>();
+        record.put("exname", exname);
+        record.put("model_ver", "DSSAT 4.6");
+        record.put("HWAH_S", Integer.toString(yield));
+        record.put("adat_s", "1981-05-01");
+        record.put("not_acmo", "ignored");
+        return record;
+    }
+
+    @Test
+    public void joinTest() throws IOException {
+        File meta = new AcmoWriter(tmp.newFolder("meta").getPath(), "dssat").write(AcmoTestUtil.createExperiments(10).iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        ArrayList<String> lines = AcmoTestUtil.readLines(meta);
+
+        AcmoOutputJoin join = new AcmoOutputJoin(AcmoJoinKey.EXNAME);
+        join.setAcmouiVersion("1.0");
+        ArrayList<HashMap<String, String>> outputs = new ArrayList<HashMap<String, String>>();
+        // In reverse order, without EXP_3 and with an unknown experiment
+        for (int i = 9; i >= 0; i--) {
+            if (i != 3) {
+                outputs.add(createOutput("EXP_" + i + "__1", i * 100));
+            }
+        }
+        outputs.add(createOutput("EXP_X__1", 1));
+        join.addOutputs(outputs.iterator());
+        assertEquals(10, join.getOutputCount());
+
+        File joined = tmp.newFile("joined.csv");
+        join.join(meta, joined);
+        ArrayList<String> result = AcmoTestUtil.readLines(joined);
+
+        assertEquals(13, result.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(lines.get(i), result.get(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            String stamped = AcmoUtil.addAcmouiVersion(lines.get(i + 3), "1.0");
+            if (i == 3) {
+                assertEquals(stamped, result.get(i + 3));
+            } else {
+                assertEquals(stamped + ",\"DSSAT 4.6\"," + (i * 100) + ",,1981-05-01", result.get(i + 3));
+            }
+        }
+        assertEquals(9, join.getMatchedRowCount());
+        assertEquals(1, join.getUnmatchedRowCount());
+        assertEquals(Arrays.asList(Arrays.asList("EXP_X__1")), join.getUnmatchedOutputs());
+
+        AcmoReader reader = new AcmoReader(joined);
+        try {
+            assertTrue(reader.next());
+            assertEquals("DSSAT 4.6", reader.getString(reader.getColumnIndex("MODEL_VER")));
+            assertEquals(0, reader.getDouble(reader.getColumnIndex("HWAH_S")), 0);
+            assertEquals(19810501, reader.getDate(reader.getColumnIndex("ADAT_S")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void compositeKeyTest() throws IOException {
+        String header = AcmoUtil.generateAcmoHeader();
+        String row = "*,,\"EXP\",\"\",\"\",\"\",\"\",\"\",2,\"T \"\"1\"\"\",\"0XXX\"";
+        AcmoOutputJoin join = new AcmoOutputJoin(AcmoJoinKey.EXNAME, AcmoJoinKey.RUN_NUMBER);
+        HashMap<String, String> record = new HashMap<String, String>();
+        record.put("EXNAME", "EXP");
+        record.put("RUN#", "2");
+        record.put("MODEL_VER", "say \"hi\", model");
+        join.addOutput(record);
+        StringWriter out = new StringWriter();
+        join.join(new StringReader(header + row + "\r\n" + row.replace(",2,", ",1,") + "\n"), out);
+
+        String expected = row;
+        for (int i = 11; i < 51; i++) {
+            expected += ",";
+        }
+        expected += ",\"say \"\"hi\"\", model\"";
+        assertEquals(header + expected + "\n" + row.replace(",2,", ",1,") + "\n", out.toString());
+        assertEquals(1, join.getMatchedRowCount());
+        assertTrue(join.getUnmatchedOutputs().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingKeyTest() {
+        HashMap<String, String> record = new HashMap<String, String>();
+        record.put("exname", "EXP");
+        new AcmoOutputJoin(AcmoJoinKey.RUN_NUMBER).addOutput(record);
+    }
+
+    @Test(expected = IOException.class)
+    public void missingHeaderTest() throws IOException {
+        new AcmoOutputJoin(AcmoJoinKey.EXNAME).join(new StringReader("*,,\"EXP\"\n"), new StringWriter());
+    }
+}
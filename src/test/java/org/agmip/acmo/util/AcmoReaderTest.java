@@ -0,0 +1,128 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeFile(String name, String content) throws IOException {
+        File f = tmp.newFile(name);
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void metaFileTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(50);
+        File meta = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat").write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        ArrayList<String> lines = AcmoTestUtil.readLines(meta);
+        ArrayList<String> cells = new ArrayList<String>();
+
+        // Small chunks, so rows and cells cross the chunk boundaries
+        AcmoReader reader = new AcmoReader(meta, 64);
+        try {
+            assertEquals(AcmoUtil.generateAcmoHeader(), reader.getHeader());
+            assertEquals(71, reader.getColumnCount());
+            int exname = reader.getColumnIndex("exname");
+            int irTot = reader.getColumnIndex("IR_TOT");
+            int pdate = reader.getColumnIndex("PDATE");
+            assertEquals(AcmoColumnType.TEXT, reader.getColumnType(exname));
+            assertEquals("mm", reader.getColumnUnit(irTot));
+            assertEquals(AcmoColumnType.NUMBER, reader.getColumnType(irTot));
+            assertEquals(AcmoColumnType.DATE, reader.getColumnType(pdate));
+            assertEquals(-1, reader.getColumnIndex("NOT_A_COLUMN"));
+
+            for (int i = 0; i < 50; i++) {
+                assertTrue(reader.next());
+                String line = lines.get(i + 3);
+                assertEquals(line, reader.getRow());
+                AcmoCsv.split(line, cells);
+                assertEquals(cells.size(), reader.getCellCount());
+                for (int c = 0; c < cells.size(); c++) {
+                    assertEquals(AcmoCsv.unquote(cells.get(c)), reader.getString(c));
+                }
+                assertEquals("EXP_" + i + "__1", reader.getString(exname));
+                assertEquals(new BigDecimal(i), reader.getDecimal(irTot));
+                assertEquals(i, reader.getDouble(irTot), 0);
+                assertEquals(19810101, reader.getDate(pdate));
+                assertNull(reader.getString(reader.getColumnIndex("HWAH_S")));
+                assertEquals(i + 1, reader.getRowNumber());
+            }
+            assertFalse(reader.next());
+
+            reader.rewind();
+            assertTrue(reader.next());
+            assertEquals(AcmoUtil.generateAcmoHeader().getBytes("UTF-8").length, reader.getRowOffset());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void cellsTest() throws IOException {
+        File f = writeFile("cells.dat", "!,Name,Note,Amount,Date\r\n"
+                + "!,text,text,kg/ha,yyyy-mm-dd\r\n"
+                + "#,NAME,NOTE,AMOUNT,DATE\r\n"
+                + "*,\"Ma\u00efs \"\"B\"\" \\\\\",\"two\nlines, one cell\",-0.05,\"1981-02-03\"\r\n"
+                + "\r\n"
+                + "*,\"\",,auto,19810101");
+        AcmoReader reader = new AcmoReader(f, 16);
+        try {
+            assertTrue(reader.next());
+            assertEquals(5, reader.getCellCount());
+            assertEquals("Ma\u00efs \"B\" \\", reader.getString(1));
+            assertEquals("two\nlines, one cell", reader.getString(2));
+            assertEquals(new BigDecimal("-0.05"), reader.getDecimal(3));
+            assertEquals(-0.05, reader.getDouble(3), 0);
+            assertEquals(19810203, reader.getDate(4));
+
+            assertTrue(reader.next());
+            assertTrue(reader.isEmpty(1));
+            assertEquals("", reader.getString(1));
+            assertTrue(reader.isEmpty(2));
+            assertNull(reader.getDecimal(2));
+            assertTrue(Double.isNaN(reader.getDouble(2)));
+            assertEquals(0, reader.getDate(2));
+            try {
+                reader.getDecimal(3);
+                fail("auto is not a number");
+            } catch (NumberFormatException ex) {
+            }
+            try {
+                reader.getDate(4);
+                fail("19810101 is not a yyyy-mm-dd date");
+            } catch (NumberFormatException ex) {
+            }
+            assertTrue(reader.isEmpty(5));
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void compressedFileTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("gz").getPath(), "dssat");
+        writer.setCompressed(true);
+        File gz = writer.write(AcmoTestUtil.createExperiments(2).iterator(), null, null);
+        new AcmoReader(gz);
+    }
+}
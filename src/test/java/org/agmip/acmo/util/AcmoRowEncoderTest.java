@@ -0,0 +1,41 @@
+package org.agmip.acmo.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcmoRowEncoderTest {
+
+    @Test
+    public void encodeCellsTest() {
+        AcmoRowEncoder encoder = new AcmoRowEncoder(4);
+        encoder.plain("*").plain("").quoted("a \"b\", c\\d").plain("1");
+        assertEquals("Incorrect line", "*,,\"a \"\"b\"\", c\\\\d\",1", encoder.toString());
+
+        encoder.reset().quoted("").beginQuoted().escaped("x").escaped('|').escaped('"').endQuoted();
+        assertEquals("Incorrect line after reset", "\"\",\"x|\"\"\"", encoder.toString());
+    }
+
+    @Test
+    public void writeToTest() throws IOException {
+        AcmoRowEncoder encoder = new AcmoRowEncoder(2);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            encoder.plain(Integer.toString(i));
+            expected.append(i).append(i < 99 ? "," : "");
+        }
+        StringWriter out = new StringWriter();
+        encoder.writeTo(out);
+        assertEquals("Incorrect written line", expected.toString(), out.toString());
+    }
+
+    @Test
+    public void escapeCsvStrTest() {
+        assertEquals("", AcmoUtil.escapeCsvStr(null));
+        assertEquals("abc", AcmoUtil.escapeCsvStr("abc"));
+        assertEquals("\"a,b\"", AcmoUtil.escapeCsvStr("a,b"));
+        assertEquals("\"a \"\"b\"\"\"", AcmoUtil.escapeCsvStr("a \"b\""));
+    }
+}
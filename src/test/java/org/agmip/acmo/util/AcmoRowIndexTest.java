@@ -0,0 +1,192 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoRowIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ArrayList<HashMap<String, Object>> createExperiments() {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(100);
+        for (int i = 0; i < experiments.size(); i++) {
+            experiments.get(i).put("eid", "E" + (i % 50));
+        }
+        return experiments;
+    }
+
+    private File write(AcmoWriter writer) throws IOException {
+        return writer.write(createExperiments().iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+    }
+
+    private void checkIndex(File meta) throws IOException {
+        ArrayList<String> lines = AcmoTestUtil.readLines(meta);
+        AcmoRowIndex index = AcmoRowIndex.open(meta);
+        try {
+            assertEquals(100, index.getRowCount());
+            for (int i = 0; i < 100; i += 7) {
+                String line = lines.get(i + 3);
+                assertEquals(Arrays.asList(line), index.readRows(AcmoJoinKey.EXNAME, "EXP_" + i + "__1"));
+                assertEquals(line, index.readRow("EXP_" + i + "__1", "1"));
+            }
+            // Two experiments share each EID
+            assertEquals(Arrays.asList(lines.get(3 + 3), lines.get(53 + 3)), index.readRows(AcmoJoinKey.EID, "E3"));
+            assertEquals(2, index.getOffsets(AcmoJoinKey.EID, "E3").size());
+            assertEquals(100, index.getOffsets(AcmoJoinKey.RUN_NUMBER, "1").size());
+            assertTrue(index.readRows(AcmoJoinKey.EXNAME, "EXP_X__1").isEmpty());
+            assertNull(index.readRow("EXP_1__1", "2"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void indexedWriteTest() throws IOException {
+        File dir = tmp.newFolder("out");
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setIndexed(true);
+        File meta = write(writer);
+        File indexFile = AcmoRowIndex.getIndexFile(meta);
+        assertEquals(new File(dir, "ACMO_meta.dat.idx"), indexFile);
+        checkIndex(meta);
+
+        // Indexing the file afterwards gives the same index
+        byte[] written = AcmoTestUtil.readBytes(indexFile);
+        AcmoRowIndex.build(meta).close();
+        assertArrayEquals(written, AcmoTestUtil.readBytes(indexFile));
+
+        // A write without the index removes the outdated one
+        write(new AcmoWriter(dir.getPath(), "dssat"));
+        assertFalse(indexFile.exists());
+    }
+
+    @Test
+    public void indexedModesTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("par").getPath(), "dssat");
+        writer.setIndexed(true);
+        writer.setParallelism(3);
+        writer.setPipelined(true);
+        checkIndex(write(writer));
+
+        // The incremental mode indexes the renamed file
+        writer = new AcmoWriter(tmp.newFolder("inc").getPath(), "dssat");
+        writer.setIndexed(true);
+        writer.setIncremental(true);
+        write(writer);
+        checkIndex(write(writer));
+        assertEquals(100, writer.getReusedRowCount());
+    }
+
+    @Test
+    public void outdatedIndexTest() throws IOException {
+        File meta = write(new AcmoWriter(tmp.newFolder("out").getPath(), "dssat"));
+        AcmoRowIndex.openOrBuild(meta).close();
+        FileOutputStream out = new FileOutputStream(meta, true);
+        try {
+            out.write("*,,\"EXP_NEW__1\"\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        try {
+            AcmoRowIndex.open(meta);
+            fail("The index describes a shorter file");
+        } catch (IOException ex) {
+        }
+        AcmoRowIndex index = AcmoRowIndex.openOrBuild(meta);
+        try {
+            assertEquals(101, index.getRowCount());
+            assertEquals("*,,\"EXP_NEW__1\"", index.readRow("EXP_NEW__1", ""));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void sameLengthRewriteTest() throws IOException {
+        File meta = write(new AcmoWriter(tmp.newFolder("out").getPath(), "dssat"));
+        AcmoRowIndex.openOrBuild(meta).close();
+        long modified = meta.lastModified();
+
+        // A newer file of the same size
+        assertTrue(meta.setLastModified(modified + 2000));
+        try {
+            AcmoRowIndex.open(meta);
+            fail("The index describes an older file");
+        } catch (IOException ex) {
+        }
+
+        // A rewrite of the same size keeping the modification time
+        byte[] content = AcmoTestUtil.readBytes(meta);
+        String text = new String(content, "UTF-8").replace("EXP_0__1", "EXP_Z__1");
+        FileOutputStream out = new FileOutputStream(meta);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertEquals(content.length, meta.length());
+        assertTrue(meta.setLastModified(modified));
+        try {
+            AcmoRowIndex.open(meta);
+            fail("The index describes another file");
+        } catch (IOException ex) {
+        }
+        AcmoRowIndex index = AcmoRowIndex.openOrBuild(meta);
+        try {
+            assertNotNull(index.readRow("EXP_Z__1", "1"));
+            assertNull(index.readRow("EXP_0__1", "1"));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void manyRowsTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        writer.setIndexed(true);
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(3000);
+        for (int i = 0; i < experiments.size(); i++) {
+            experiments.get(i).put("eid", "E" + (i % 7));
+        }
+        File meta = writer.write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        ArrayList<String> lines = AcmoTestUtil.readLines(meta);
+        AcmoRowIndex index = AcmoRowIndex.open(meta);
+        try {
+            assertEquals(3000, index.getRowCount());
+            // The clustered values are listed in file order
+            List<Long> offsets = index.getOffsets(AcmoJoinKey.RUN_NUMBER, "1");
+            assertEquals(3000, offsets.size());
+            for (int i = 1; i < offsets.size(); i++) {
+                assertTrue(offsets.get(i - 1) < offsets.get(i));
+            }
+            List<String> rows = index.readRows(AcmoJoinKey.EID, "E5");
+            assertEquals(428, rows.size());
+            assertEquals(lines.get(5 + 3), rows.get(0));
+            assertEquals(lines.get(2994 + 3), rows.get(427));
+            for (int i = 0; i < 3000; i += 97) {
+                assertEquals(lines.get(i + 3), index.readRow("EXP_" + i + "__1", "1"));
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void indexedCompressedTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        writer.setIndexed(true);
+        writer.setCompressed(true);
+        write(writer);
+    }
+}
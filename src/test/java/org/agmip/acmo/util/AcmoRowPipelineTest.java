@@ -0,0 +1,72 @@
+package org.agmip.acmo.util;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcmoRowPipelineTest {
+
+    @Test(timeout = 10000)
+    public void failureAfterFinishTest() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        AcmoRowPipeline pipeline = new AcmoRowPipeline(new AcmoRowPipeline.RowSink() {
+            public void write(String[] row) throws IOException {
+                writing.countDown();
+                try {
+                    // Let the producer queue the end of the rows
+                    Thread.sleep(300);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("disk full");
+            }
+        }, 1, 4);
+        try {
+            for (int i = 0; i < 3; i++) {
+                pipeline.put(new String[]{null, "row " + i});
+            }
+            writing.await();
+            pipeline.finish();
+            fail("The sink failed");
+        } catch (IOException ex) {
+            assertEquals("disk full", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelAfterFinishTest() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AcmoRowPipeline pipeline = new AcmoRowPipeline(new AcmoRowPipeline.RowSink() {
+            public void write(String[] row) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 1, 4);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        pipeline.put(new String[]{null, "row " + i});
+                    }
+                    pipeline.finish();
+                } catch (IOException ex) {
+                    // Not expected, checked by the join below
+                }
+            }
+        });
+        producer.start();
+        writing.await();
+        // The end of the rows is queued while the sink is still busy
+        Thread.sleep(100);
+        pipeline.cancel();
+        release.countDown();
+        producer.join();
+    }
+}
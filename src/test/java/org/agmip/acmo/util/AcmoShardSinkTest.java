@@ -0,0 +1,72 @@
+package org.agmip.acmo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoShardSinkTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String row(int i) {
+        return "*,,\"EXP_" + i + "\",\"\",\"\",\"\",\"\",\"\",1,\"\",\"C" + (i % 10) + "\"";
+    }
+
+    private static String read(File file, boolean compressed) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (compressed) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkShards(int lanes, int maxOpenShards, boolean compressed) throws IOException {
+        File dir = tmp.newFolder();
+        AcmoShardSink sink = new AcmoShardSink(dir, "ACMO_meta", Collections.singletonList(AcmoShardKey.CLIM_ID), lanes, 1024, compressed, maxOpenShards);
+        for (int i = 0; i < 200; i++) {
+            sink.write(row(i));
+        }
+        sink.close();
+        for (int c = 0; c < 10; c++) {
+            StringBuilder expected = new StringBuilder(AcmoUtil.generateAcmoHeader());
+            for (int i = c; i < 200; i += 10) {
+                expected.append(row(i)).append('\n');
+            }
+            File shard = new File(dir, "ACMO_meta-C" + c + (compressed ? ".dat.gz" : ".dat"));
+            assertEquals(expected.toString(), read(shard, compressed));
+        }
+        ArrayList<String> manifest = AcmoTestUtil.readLines(sink.getManifestFile());
+        assertEquals(11, manifest.size());
+        assertEquals("*,\"ACMO_meta-C0" + (compressed ? ".dat.gz" : ".dat") + "\",20,\"C0\"", manifest.get(1));
+    }
+
+    @Test
+    public void maxOpenShardsTest() throws IOException {
+        // Every row closes a shard and reopens another one
+        checkShards(1, 1, false);
+        checkShards(3, 3, false);
+        checkShards(1, 2, true);
+        checkShards(2, 64, false);
+    }
+}
@@ -0,0 +1,136 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.agmip.util.MapUtil;
+
+public class AcmoSiteIndexTest {
+
+    private static HashMap<String, Object> createSoil(String soilId, String sid) {
+        HashMap<String, Object> soil = new HashMap<String, Object>();
+        soil.put("soil_id", soilId);
+        soil.put("sid", sid);
+        return soil;
+    }
+
+    /**
+     * The soil index as it was built by writeAcmo before the reverse index,
+     * scanning the soil IDs in the order they were last mapped
+     */
+    private static HashMap<String, String> buildReferenceSidMap(ArrayList<HashMap<String, Object>> soils) {
+        LinkedHashMap<String, String> sidMap = new LinkedHashMap<String, String>();
+        for (HashMap<String, Object> soil : soils) {
+            String soilId = MapUtil.getValueOr(soil, "soil_id", "");
+            String sid = MapUtil.getValueOr(soil, "sid", "");
+            if (!sidMap.containsKey(soilId) && sidMap.containsValue(sid)) {
+                ArrayList<String> rplSoilIds = new ArrayList<String>();
+                for (String key : sidMap.keySet()) {
+                    if (sid.equals(sidMap.get(key))) {
+                        if (key.length() < soilId.length()) {
+                            rplSoilIds.add(soilId);
+                            soilId = key;
+                        } else {
+                            rplSoilIds.add(key);
+                        }
+                    }
+                }
+                put(sidMap, soilId, sid);
+                for (String key : rplSoilIds) {
+                    put(sidMap, key, soilId);
+                }
+            } else {
+                put(sidMap, soilId, sid);
+            }
+        }
+        return new HashMap<String, String>(sidMap);
+    }
+
+    private static void put(LinkedHashMap<String, String> sidMap, String key, String value) {
+        sidMap.remove(key);
+        sidMap.put(key, value);
+    }
+
+    @Test
+    public void replicatedSoilTest() {
+        AcmoSiteIndex index = new AcmoSiteIndex();
+        index.addSoil(createSoil("IBSB910015_1", "S1"));
+        index.addSoil(createSoil("IBSB910015", "S1"));
+        index.addSoil(createSoil("IBSB910015_22", "S1"));
+        index.addSoil(createSoil("UFGA000001", "S2"));
+
+        assertEquals("Incorrect soil ID", "IBSB910015", index.getSoilId("IBSB910015_1"));
+        assertEquals("Incorrect soil ID", "IBSB910015", index.getSoilId("IBSB910015_22"));
+        assertEquals("Incorrect soil ID", "IBSB910015", index.getSoilId("IBSB910015"));
+        assertEquals("Incorrect SID", "S1", index.getSid("IBSB910015_22"));
+        assertEquals("Incorrect SID", "S1", index.getSid("IBSB910015"));
+        assertEquals("Incorrect SID", "S2", index.getSid("UFGA000001"));
+        assertEquals("Incorrect unknown soil ID", "XX", index.getSoilId("XX"));
+        assertEquals("Incorrect unknown SID", "", index.getSid("XX"));
+    }
+
+    @Test
+    public void sameLengthSoilTest() {
+        AcmoSiteIndex index = new AcmoSiteIndex();
+        index.addSoil(createSoil("A1", "S"));
+        index.addSoil(createSoil("B1", "S"));
+        assertEquals("Incorrect soil ID", "B1", index.getSoilId("A1"));
+        assertEquals("Incorrect soil ID", "B1", index.getSoilId("B1"));
+
+        // A1 listed again, so two soil IDs map to the sid
+        index.addSoil(createSoil("A1", "S"));
+        index.addSoil(createSoil("C1", "S"));
+        assertEquals("Incorrect soil ID", "C1", index.getSoilId("A1"));
+        assertEquals("Incorrect soil ID", "C1", index.getSoilId("B1"));
+        assertEquals("Incorrect soil ID", "C1", index.getSoilId("C1"));
+        assertEquals("Incorrect SID", "S", index.getSid("A1"));
+    }
+
+    @Test
+    public void sameAsReferenceTest() {
+        Random random = new Random(20140429);
+        for (int round = 0; round < 300; round++) {
+            ArrayList<HashMap<String, Object>> soils = new ArrayList<HashMap<String, Object>>();
+            // The last rounds list a few soil IDs many times, so most sids
+            // end up with several soil IDs mapped to them
+            boolean duplicated = round >= 200;
+            int count = duplicated ? 100 + random.nextInt(200) : random.nextInt(60);
+            for (int i = 0; i < count; i++) {
+                // Random soil ID lengths and repeated soil IDs and sids
+                String soilId = "SOIL" + random.nextInt(duplicated ? 12 : 30) + (random.nextBoolean() ? "_" + random.nextInt(3) : "");
+                soils.add(createSoil(soilId, "S" + random.nextInt(duplicated ? 3 : 8)));
+            }
+            HashMap<String, String> sidMap = buildReferenceSidMap(soils);
+            AcmoSiteIndex index = new AcmoSiteIndex();
+            index.addSoils(soils.iterator());
+
+            for (HashMap<String, Object> soil : soils) {
+                String soilId = (String) soil.get("soil_id");
+                String sid = MapUtil.getValueOr(sidMap, soilId, "");
+                String expectedSoilId = soilId;
+                if (sidMap.containsKey(sid)) {
+                    expectedSoilId = sid;
+                    sid = MapUtil.getValueOr(sidMap, sid, "");
+                }
+                assertEquals("Incorrect soil ID in round " + round, expectedSoilId, index.getSoilId(soilId));
+                assertEquals("Incorrect SID in round " + round, sid, index.getSid(soilId));
+            }
+        }
+    }
+
+    @Test
+    public void weatherTest() {
+        AcmoSiteIndex index = new AcmoSiteIndex();
+        index.addWeathers(AcmoTestUtil.createWeathers().iterator());
+
+        assertEquals("Incorrect CLIM_ID", "0XFX", index.getClimId("UFGA"));
+        assertEquals("Incorrect default CLIM_ID", "0XXX", index.getClimId("XXXX"));
+        assertEquals("Incorrect WID", "W2", index.getWid("KSAS"));
+        assertEquals("Incorrect CLIM_CAT", "", index.getClimCat("KSAS"));
+    }
+}
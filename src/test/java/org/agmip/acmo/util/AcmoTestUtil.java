@@ -0,0 +1,96 @@
+package org.agmip.acmo.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+
+/**
+ * Shared test data for the ACMO tests.
+ */
+public class AcmoTestUtil {
+
+    private AcmoTestUtil() {}
+
+    public static HashMap<String, Object> createExperiment(String exname, String wstId, String soilId) {
+        HashMap<String, Object> exp = new HashMap<String, Object>();
+        exp.put("exname", exname);
+        exp.put("wst_id", wstId);
+        exp.put("soil_id", soilId);
+        AcePathfinderUtil.insertValue(exp, "pdate", "19810101");
+        AcePathfinderUtil.insertValue(exp, "crid", "MAZ");
+        AcePathfinderUtil.insertValue(exp, "fedate", "19810101");
+        AcePathfinderUtil.insertValue(exp, "feamn", "100.0");
+        return exp;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createExperiments(int total) {
+        ArrayList<HashMap<String, Object>> experiments = new ArrayList<HashMap<String, Object>>();
+        for (int i = 0; i < total; i++) {
+            HashMap<String, Object> exp = createExperiment("EXP_" + i + "__1", i % 2 == 0 ? "UFGA" : "KSAS", "IBSB910015");
+            AcePathfinderUtil.insertValue(exp, "idate", "19810102");
+            AcePathfinderUtil.insertValue(exp, "irval", Integer.toString(i));
+            AcePathfinderUtil.insertValue(exp, "irop", "IR004");
+            experiments.add(exp);
+        }
+        return experiments;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createWeathers() {
+        ArrayList<HashMap<String, Object>> weathers = new ArrayList<HashMap<String, Object>>();
+        HashMap<String, Object> wst = new HashMap<String, Object>();
+        wst.put("wst_id", "UFGA");
+        wst.put("clim_id", "0XFX");
+        weathers.add(wst);
+        wst = new HashMap<String, Object>();
+        wst.put("wst_id", "KSAS");
+        wst.put("clim_id", "0XAX");
+        wst.put("wid", "W2");
+        weathers.add(wst);
+        return weathers;
+    }
+
+    public static ArrayList<HashMap<String, Object>> createSoils() {
+        ArrayList<HashMap<String, Object>> soils = new ArrayList<HashMap<String, Object>>();
+        HashMap<String, Object> soil = new HashMap<String, Object>();
+        soil.put("soil_id", "IBSB910015");
+        soil.put("sid", "S1");
+        soils.add(soil);
+        return soils;
+    }
+
+    public static ArrayList<String> readLines(File f) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            br.close();
+        }
+        return lines;
+    }
+
+    public static byte[] readBytes(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[(int) f.length()];
+            int off = 0;
+            int n;
+            while (off < buf.length && (n = in.read(buf, off, buf.length - off)) > 0) {
+                off += n;
+            }
+            return Arrays.copyOf(buf, off);
+        } finally {
+            in.close();
+        }
+    }
+}
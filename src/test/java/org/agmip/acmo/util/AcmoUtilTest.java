@@ -4,12 +4,24 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 import org.slf4j.Logger;
@@ -23,6 +35,9 @@ public class AcmoUtilTest {
     private static final Logger log = LoggerFactory.getLogger(AcmoUtilTest.class);
     private HashMap<String, Object> coreMap = new HashMap<String, Object>();
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Before
     public void populateCoreMap() {
         AcePathfinderUtil.insertValue(coreMap, "pdate", "19810101");
@@ -118,4 +133,120 @@ public class AcmoUtilTest {
         f1.delete();
         f2.delete();
     }
+
+    @Test
+    public void createCsvFileConcurrentTest() throws Exception {
+        final String outputCsvPath = tmp.newFolder("concurrent").getPath();
+        final int threads = 8;
+        final int perThread = 10;
+        final Set<File> files = Collections.synchronizedSet(new HashSet<File>());
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < perThread; j++) {
+                        files.add(AcmoUtil.createCsvFile(outputCsvPath, "TEST"));
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+
+        assertEquals("Same file returned twice", threads * perThread, files.size());
+        assertTrue(files.contains(new File(outputCsvPath, "ACMO-TEST.csv")));
+        assertTrue(files.contains(new File(outputCsvPath, "ACMO-TEST (" + (threads * perThread - 1) + ").csv")));
+        for (File f : files) {
+            assertTrue("File not reserved: " + f, f.exists());
+        }
+    }
+
+    @Test
+    public void createCsvFileMissingDirTest() throws IOException {
+        File outDir = new File(tmp.getRoot(), "missing" + File.separator + "csv");
+        File f = AcmoUtil.createCsvFile(outDir.getPath(), "TEST");
+        assertEquals(new File(outDir, "ACMO-TEST.csv"), f);
+        assertTrue(f.isFile());
+        assertEquals(new File(outDir, "ACMO-TEST (1).csv"), AcmoUtil.createCsvFile(outDir.getPath(), "TEST"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void createCsvFileFailureTest() throws IOException {
+        // A file is in the way of the output directory
+        File outDir = tmp.newFile("blocked");
+        AcmoUtil.createCsvFile(outDir.getPath(), "TEST");
+    }
+
+    @Test
+    public void createCsvFileFromMetaTest() throws IOException {
+        File outDir = tmp.newFolder("meta");
+        File meta = new File(outDir, "ACMO_meta.dat");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(meta));
+        bw.write("!,Region,Crop,Climate,RAP,Management\n");
+        bw.write("#,REG_ID,CRID_text,CLIM_ID,RAP_ID,MAN_ID\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP1\",\"MAN2\"\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP1\",\"MAN2\"\n");
+        // The last record is not used for the name
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP2\",\"MAN3\"\n");
+        bw.close();
+        File f = AcmoUtil.createCsvFile(outDir.getPath(), "TEST", meta.getPath());
+        assertEquals("ACMO-KEN-MAIZE-0XFX-RAP1-MAN2-TEST.csv", f.getName());
+
+        bw = new BufferedWriter(new FileWriter(meta));
+        bw.write("#,REG_ID,CRID_text,CLIM_ID,RAP_ID,MAN_ID\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP1\",\"MAN2\"\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP1\",\"MAN3\"\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP2\",\"MAN2\"\n");
+        bw.write("*,\"KEN\",\"Maize\",\"0XFX\",\"RAP1\",\"MAN2\"\n");
+        bw.close();
+        f = AcmoUtil.createCsvFile(outDir.getPath(), "TEST", meta.getPath());
+        assertEquals("ACMO-KEN-MAIZE-0XFX-M-M-TEST.csv", f.getName());
+    }
+
+    @Test
+    public void writeAcmoStreamingTest() throws IOException {
+        final int total = 50;
+        Iterator<HashMap<String, Object>> experiments = new Iterator<HashMap<String, Object>>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < total;
+            }
+
+            public HashMap<String, Object> next() {
+                i++;
+                return AcmoTestUtil.createExperiment("EXP_" + i + "__1", "UFGA", "IBSB910015");
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        ArrayList<HashMap<String, Object>> weathers = new ArrayList<HashMap<String, Object>>();
+        HashMap<String, Object> wst = new HashMap<String, Object>();
+        wst.put("wst_id", "UFGA");
+        wst.put("clim_id", "0XFX");
+        weathers.add(wst);
+        ArrayList<HashMap<String, Object>> soils = new ArrayList<HashMap<String, Object>>();
+        HashMap<String, Object> soil = new HashMap<String, Object>();
+        soil.put("soil_id", "IBSB910015");
+        soil.put("sid", "S1");
+        soils.add(soil);
+
+        File outDir = tmp.newFolder("stream");
+        AcmoUtil.writeAcmo(outDir.getPath(), experiments, weathers.iterator(), soils.iterator(), "dssat", null);
+
+        ArrayList<String> lines = AcmoTestUtil.readLines(new File(outDir, "ACMO_meta.dat"));
+        assertEquals("Incorrect number of lines", total + 3, lines.size());
+        assertTrue("Missing CLIM_ID from weather index", lines.get(3).contains("\"0XFX\""));
+        assertTrue("Missing SID from soil index", lines.get(3).contains("\"S1\""));
+        assertTrue("Incorrect order", lines.get(total + 2).startsWith("*,,\"EXP_" + total + "__1\""));
+    }
 }
@@ -0,0 +1,165 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoValidatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeFile(List<String> rows) throws IOException {
+        File file = tmp.newFile();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(AcmoUtil.generateAcmoHeader());
+            for (String row : rows) {
+                out.write(row);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private AcmoValidationReport validate(File file, int parallelism, int errorLimit) throws IOException {
+        AcmoValidator validator = new AcmoValidator();
+        validator.setParallelism(parallelism);
+        validator.setErrorLimit(errorLimit);
+        validator.setMinChunkSize(256);
+        return validator.validate(file);
+    }
+
+    /**
+     * A row with the given PDATE and HWAH cells, and a quoted TRT_NAME
+     * holding a line break.
+     */
+    private static String row(int i, String pdate, String hwah) {
+        return "*,,\"EXP_" + i + "\",\"\",\"\",\"\",\"\",\"\",1,\"line 1\n,line 2\",\"0XAX\",\"\",1,\"CM1\",\"\",\"\",,,AgMIP,0,KSAS,IBSB910015,,,\"Maize\",,\"\",," + pdate + "," + hwah;
+    }
+
+    @Test
+    public void validFileTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder().getPath(), "dssat");
+        File meta = writer.write(AcmoTestUtil.createExperiments(200).iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        AcmoValidationReport report = validate(meta, 4, 10);
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(200, report.getRowCount());
+        assertFalse(report.isLimitReached());
+    }
+
+    @Test
+    public void autoIrrigationTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(3);
+        HashMap<String, Object> auto = AcmoTestUtil.createExperiment("EXP_AUTO__1", "UFGA", "IBSB910015");
+        AcePathfinderUtil.insertValue(auto, "idate", "19810102");
+        AcePathfinderUtil.insertValue(auto, "irop", "IR011");
+        experiments.add(auto);
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder().getPath(), "dssat");
+        File meta = writer.write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+        assertTrue(AcmoTestUtil.readLines(meta).get(6).contains(",auto,auto,"));
+        AcmoValidationReport report = validate(meta, 1, 10);
+        assertTrue(report.toString(), report.isValid());
+
+        // Only where the library writes it
+        ArrayList<String> rows = new ArrayList<String>();
+        rows.add(row(1, "1981-01-01", "auto"));
+        report = validate(writeFile(rows), 1, 10);
+        assertEquals(1, report.getErrors().size());
+        assertEquals("HWAH", report.getErrors().get(0).getColumnName());
+    }
+
+    @Test
+    public void errorsTest() throws IOException {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (int i = 1; i <= 300; i++) {
+            if (i == 17) {
+                rows.add(row(i, "1981-13-01", "1000"));
+            } else if (i == 150) {
+                rows.add(row(i, "1981-02-29", "12t"));
+            } else if (i == 151) {
+                rows.add(row(i, "1980-02-29", "1.5.2"));
+            } else if (i == 290) {
+                // A date mangled with dashes
+                rows.add(row(i, "abcd-ef-gh", ""));
+            } else {
+                rows.add(row(i, "1981-01-01", "-99"));
+            }
+        }
+        StringBuilder wide = new StringBuilder("*");
+        for (int i = 0; i < 80; i++) {
+            wide.append(',');
+        }
+        rows.add(wide.toString());
+        File file = writeFile(rows);
+
+        AcmoValidationReport report = null;
+        for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+            report = validate(file, parallelism, 100);
+            List<AcmoValidationError> errors = report.getErrors();
+            assertEquals(report.toString(), 6, errors.size());
+            assertEquals(17, errors.get(0).getRowNumber());
+            assertEquals("PDATE", errors.get(0).getColumnName());
+            assertEquals("1981-13-01", errors.get(0).getValue());
+            assertEquals("not a valid date", errors.get(0).getReason());
+            assertEquals(150, errors.get(1).getRowNumber());
+            assertEquals("PDATE", errors.get(1).getColumnName());
+            assertEquals(150, errors.get(2).getRowNumber());
+            assertEquals("HWAH", errors.get(2).getColumnName());
+            assertEquals("not a number", errors.get(2).getReason());
+            // 1980 is a leap year
+            assertEquals(151, errors.get(3).getRowNumber());
+            assertEquals("HWAH", errors.get(3).getColumnName());
+            assertEquals("not a yyyy-mm-dd date", errors.get(4).getReason());
+            assertEquals(290, errors.get(4).getRowNumber());
+            assertEquals(301, errors.get(5).getRowNumber());
+            assertEquals(-1, errors.get(5).getColumn());
+            assertEquals(301, report.getRowCount());
+            assertFalse(report.isLimitReached());
+        }
+        assertTrue(report.toString().startsWith(file.getName() + ": 6 errors in 301 rows\nrow 17, PDATE: not a valid date \"1981-13-01\""));
+    }
+
+    @Test
+    public void errorLimitTest() throws IOException {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (int i = 1; i <= 400; i++) {
+            rows.add(row(i, "1981-01-01", i % 10 == 0 ? "bad" : "1"));
+        }
+        File file = writeFile(rows);
+        for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+            AcmoValidationReport report = validate(file, parallelism, 5);
+            assertEquals(5, report.getErrors().size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals((i + 1) * 10, report.getErrors().get(i).getRowNumber());
+            }
+            assertTrue(report.isLimitReached());
+            assertEquals(50, report.getRowCount());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void missingHeaderTest() throws IOException {
+        File file = tmp.newFile();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("*,,\"EXP\"\n");
+        } finally {
+            out.close();
+        }
+        new AcmoValidator().validate(file);
+    }
+}
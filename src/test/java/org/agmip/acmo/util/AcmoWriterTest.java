@@ -0,0 +1,387 @@
+package org.agmip.acmo.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class AcmoWriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File write(AcmoWriter writer, ArrayList<HashMap<String, Object>> experiments) throws IOException {
+        return writer.write(experiments.iterator(), AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+    }
+
+    @Test
+    public void parallelOutputMatchesSequentialTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(500);
+        File seq = write(new AcmoWriter(tmp.newFolder("seq").getPath(), "dssat"), experiments);
+        AcmoWriter parallel = new AcmoWriter(tmp.newFolder("par").getPath(), "dssat");
+        parallel.setParallelism(4);
+        File par = write(parallel, experiments);
+
+        assertEquals("Incorrect number of lines", 503, AcmoTestUtil.readLines(par).size());
+        assertArrayEquals("Parallel output differs", AcmoTestUtil.readBytes(seq), AcmoTestUtil.readBytes(par));
+    }
+
+    @Test
+    public void compressedOutputTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(100);
+        File plain = write(new AcmoWriter(tmp.newFolder("plain").getPath(), "dssat"), experiments);
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("gz").getPath(), "dssat");
+        writer.setCompressed(true);
+        writer.setBufferSize(1024);
+        File gz = write(writer, experiments);
+
+        assertEquals("ACMO_meta.dat.gz", gz.getName());
+        assertTrue("Output not compressed", gz.length() < plain.length());
+        Reader reader = AcmoUtil.openMetaReader(gz.getPath());
+        StringBuilder sb = new StringBuilder();
+        try {
+            char[] buf = new char[4096];
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals("Compressed output differs", new String(AcmoTestUtil.readBytes(plain), "UTF-8"), sb.toString());
+        assertEquals("Incorrect file name from compressed meta",
+                AcmoUtil.createCsvFile(tmp.newFolder("csv1").getPath(), "DSSAT", plain.getPath()).getName(),
+                AcmoUtil.createCsvFile(tmp.newFolder("csv2").getPath(), "DSSAT", gz.getPath()).getName());
+    }
+
+    @Test
+    public void incrementalTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(100);
+        for (int i = 0; i < 10; i++) {
+            experiments.get(i).put("field_overlay", "KEN-1-RAP1-MAN2-0-FIELD");
+            experiments.get(i).put("field_dome_applied", "Y");
+        }
+        HashMap<String, String> domeHashes = new HashMap<String, String>();
+        domeHashes.put("KEN-1-RAP1-MAN2-0-FIELD", "h1");
+        File dir = tmp.newFolder("inc");
+        File manifest = new File(dir, "ACMO_meta.dat.manifest");
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setIncremental(true);
+        writer.setDomeIdHashMap(domeHashes);
+        write(writer, experiments);
+        assertEquals(0, writer.getReusedRowCount());
+        assertTrue("Missing manifest", manifest.exists());
+
+        // Change one experiment, add one and change one DOME
+        experiments.get(50).put("trt_name", "changed");
+        experiments.add(AcmoTestUtil.createExperiment("EXP_NEW__1", "UFGA", "IBSB910015"));
+        domeHashes.put("KEN-1-RAP1-MAN2-0-FIELD", "h2");
+        File inc = write(writer, experiments);
+        assertEquals(89, writer.getReusedRowCount());
+        assertFalse("Temporary file left", new File(dir, "ACMO_meta.dat.tmp").exists());
+
+        AcmoWriter full = new AcmoWriter(tmp.newFolder("full").getPath(), "dssat");
+        full.setDomeIdHashMap(domeHashes);
+        byte[] expected = AcmoTestUtil.readBytes(write(full, experiments));
+        assertArrayEquals("Incremental output differs", expected, AcmoTestUtil.readBytes(inc));
+
+        // Nothing changed, in parallel
+        writer.setParallelism(3);
+        inc = write(writer, experiments);
+        assertEquals(101, writer.getReusedRowCount());
+        assertArrayEquals("Incremental output differs", expected, AcmoTestUtil.readBytes(inc));
+
+        // Another model does not reuse the rows
+        AcmoWriter other = new AcmoWriter(dir.getPath(), "apsim");
+        other.setIncremental(true);
+        write(other, experiments);
+        assertEquals(0, other.getReusedRowCount());
+
+        // A full write removes the manifest
+        write(new AcmoWriter(dir.getPath(), "dssat"), experiments);
+        assertFalse("Outdated manifest left", manifest.exists());
+    }
+
+    @Test
+    public void shardedTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(100);
+        ArrayList<String> all = AcmoTestUtil.readLines(write(new AcmoWriter(tmp.newFolder("all").getPath(), "dssat"), experiments));
+        File seqDir = tmp.newFolder("seq");
+        AcmoWriter writer = new AcmoWriter(seqDir.getPath(), "dssat");
+        writer.setShardKeys(AcmoShardKey.CLIM_ID);
+        File manifest = write(writer, experiments);
+
+        assertEquals(new File(seqDir, "ACMO_meta.shards"), manifest);
+        assertFalse("Unsharded file written", new File(seqDir, "ACMO_meta.dat").exists());
+        ArrayList<String> entries = AcmoTestUtil.readLines(manifest);
+        assertEquals(3, entries.size());
+        assertEquals("#,FILE,ROWS,CLIM_ID", entries.get(0));
+        assertEquals("*,\"ACMO_meta-0XFX.dat\",50,\"0XFX\"", entries.get(1));
+        assertEquals("*,\"ACMO_meta-0XAX.dat\",50,\"0XAX\"", entries.get(2));
+
+        // Each shard has the header and its rows in the input order
+        ArrayList<String> fx = AcmoTestUtil.readLines(new File(seqDir, "ACMO_meta-0XFX.dat"));
+        ArrayList<String> ax = AcmoTestUtil.readLines(new File(seqDir, "ACMO_meta-0XAX.dat"));
+        assertEquals(53, fx.size());
+        assertEquals(53, ax.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(all.get(i), fx.get(i));
+            assertEquals(all.get(i), ax.get(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(all.get(i + 3), (i % 2 == 0 ? fx : ax).get(i / 2 + 3));
+        }
+
+        File parDir = tmp.newFolder("par");
+        AcmoWriter parallel = new AcmoWriter(parDir.getPath(), "dssat");
+        parallel.setShardKeys(AcmoShardKey.CLIM_ID);
+        parallel.setParallelism(3);
+        write(parallel, experiments);
+        for (String name : new String[]{"ACMO_meta.shards", "ACMO_meta-0XFX.dat", "ACMO_meta-0XAX.dat"}) {
+            assertArrayEquals("Parallel shard differs", AcmoTestUtil.readBytes(new File(seqDir, name)), AcmoTestUtil.readBytes(new File(parDir, name)));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shardedIncrementalTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        writer.setShardKeys(AcmoShardKey.REG_ID, AcmoShardKey.CRID);
+        writer.setIncremental(true);
+        write(writer, AcmoTestUtil.createExperiments(2));
+    }
+
+    @Test
+    public void multiModelTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(60);
+        for (int i = 0; i < experiments.size(); i++) {
+            AcePathfinderUtil.insertValue(experiments.get(i), "cul_id", "IB0001");
+            if (i % 3 == 0) {
+                AcePathfinderUtil.insertValue(experiments.get(i), "dssat_cul_id", "GH" + i);
+            }
+        }
+        List<String> models = Arrays.asList("apsim", "DSSAT", "stics");
+        for (int parallelism = 1; parallelism <= 3; parallelism += 2) {
+            File dir = tmp.newFolder("all" + parallelism);
+            AcmoWriter writer = new AcmoWriter(dir.getPath(), models);
+            writer.setParallelism(parallelism);
+            assertEquals(dir, write(writer, experiments));
+            for (String model : models) {
+                File single = write(new AcmoWriter(tmp.newFolder(model + parallelism).getPath(), model), experiments);
+                File multi = new File(new File(dir, model.toLowerCase()), "ACMO_meta.dat");
+                assertArrayEquals("Different " + model + " file", AcmoTestUtil.readBytes(single), AcmoTestUtil.readBytes(multi));
+            }
+        }
+        ArrayList<String> dssat = AcmoTestUtil.readLines(new File(new File(tmp.getRoot(), "all1"), "dssat/ACMO_meta.dat"));
+        assertTrue(dssat.get(3).contains(",GH0,"));
+        assertTrue(dssat.get(3).endsWith(",DSSAT"));
+        assertTrue(dssat.get(4).contains(",IB0001,"));
+    }
+
+    @Test
+    public void multiModelAggregatorsTest() throws IOException {
+        // A planting aggregator giving a CUL_ID of its own for each model
+        EventAggregatorRegistry registry = EventAggregatorRegistry.createDefault();
+        registry.remove("planting");
+        registry.register("planting", new EventAggregatorFactory() {
+            public EventAggregator newAggregator(final EventContext context) {
+                return new EventAggregator() {
+                    public void add(HashMap<String, String> event) {
+                    }
+
+                    public void complete(HashMap<String, String> results) {
+                        results.put("cul_id", "C-" + context.getDestModel());
+                    }
+                };
+            }
+        });
+        File dir = tmp.newFolder("out");
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), Arrays.asList("apsim", "dssat", "stics"));
+        writer.setEventAggregators(registry);
+        write(writer, AcmoTestUtil.createExperiments(2));
+        for (String model : new String[]{"apsim", "dssat", "stics"}) {
+            ArrayList<String> lines = AcmoTestUtil.readLines(new File(new File(dir, model), "ACMO_meta.dat"));
+            assertTrue(lines.get(3), lines.get(3).contains(",C-" + model + ","));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void multiModelIncrementalTest() throws IOException {
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), Arrays.asList("dssat", "apsim"));
+        writer.setIncremental(true);
+        write(writer, AcmoTestUtil.createExperiments(2));
+    }
+
+    @Test
+    public void pipelinedTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(500);
+        File seq = write(new AcmoWriter(tmp.newFolder("seq").getPath(), "dssat"), experiments);
+        for (int parallelism = 1; parallelism <= 4; parallelism += 3) {
+            AcmoWriter writer = new AcmoWriter(tmp.newFolder("pipe" + parallelism).getPath(), "dssat");
+            writer.setPipelined(true);
+            writer.setParallelism(parallelism);
+            assertArrayEquals("Pipelined output differs", AcmoTestUtil.readBytes(seq), AcmoTestUtil.readBytes(write(writer, experiments)));
+        }
+
+        // The incremental mode records the rows from the I/O thread
+        File dir = tmp.newFolder("inc");
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setPipelined(true);
+        writer.setIncremental(true);
+        write(writer, experiments);
+        File meta = write(writer, experiments);
+        assertEquals(500, writer.getReusedRowCount());
+        assertArrayEquals(AcmoTestUtil.readBytes(seq), AcmoTestUtil.readBytes(meta));
+    }
+
+    @Test
+    public void pipelinedFailureTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(300);
+        experiments.add(200, null);
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        writer.setPipelined(true);
+        try {
+            write(writer, experiments);
+            fail("A null experiment is not valid");
+        } catch (NullPointerException ex) {
+        }
+        // The I/O thread is stopped
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("acmo-io-")) {
+                try {
+                    t.join(5000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                assertFalse("I/O thread left running", t.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void reentrantWriteTest() throws IOException {
+        final ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(20);
+        final AcmoWriter writer = new AcmoWriter(tmp.newFolder("out").getPath(), "dssat");
+        final Iterator<HashMap<String, Object>> it = experiments.iterator();
+        Iterator<HashMap<String, Object>> reentrant = new Iterator<HashMap<String, Object>>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public HashMap<String, Object> next() {
+                try {
+                    write(writer, experiments);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            writer.write(reentrant, AcmoTestUtil.createWeathers().iterator(), AcmoTestUtil.createSoils().iterator());
+            fail("A write started during another one is not rejected");
+        } catch (IllegalStateException ex) {
+        }
+        // The writer can be used again once the write is over
+        assertEquals("Incorrect number of lines", 23, AcmoTestUtil.readLines(write(writer, experiments)).size());
+    }
+
+    private static String sortKey(String line, List<String> names) {
+        ArrayList<String> cells = new ArrayList<String>();
+        AcmoCsv.split(line, cells);
+        StringBuilder key = new StringBuilder();
+        for (String name : AcmoRowSorter.SORT_COLUMNS) {
+            key.append(AcmoCsv.unquote(cells.get(names.indexOf(name)))).append('\u0000');
+        }
+        return key.toString();
+    }
+
+    @Test
+    public void sortedTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(300);
+        // Same keys as other experiments, kept in input order
+        for (int i = 0; i < 20; i++) {
+            HashMap<String, Object> dup = AcmoTestUtil.createExperiment("EXP_" + (i * 7) + "__1", i % 2 == 0 ? "UFGA" : "KSAS", "IBSB910015");
+            AcePathfinderUtil.insertValue(dup, "idate", "19810102");
+            AcePathfinderUtil.insertValue(dup, "irval", Integer.toString(1000 + i));
+            experiments.add(dup);
+        }
+        Collections.shuffle(experiments, new Random(42));
+        ArrayList<String> unsorted = AcmoTestUtil.readLines(write(new AcmoWriter(tmp.newFolder("unsorted").getPath(), "dssat"), experiments));
+        final ArrayList<String> names = new ArrayList<String>();
+        AcmoColumnarFormat.parseSchema(AcmoUtil.generateAcmoHeader(), names, new ArrayList<AcmoColumnType>());
+        ArrayList<String> expected = new ArrayList<String>(unsorted.subList(3, unsorted.size()));
+        Collections.sort(expected, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return sortKey(a, names).compareTo(sortKey(b, names));
+            }
+        });
+        expected.addAll(0, unsorted.subList(0, 3));
+
+        // Within the budget, then spilled to many runs merged in two passes
+        long[] budgets = {AcmoWriter.DEFAULT_SORT_MEMORY_BUDGET, 2048};
+        File first = null;
+        for (int i = 0; i < budgets.length; i++) {
+            File dir = tmp.newFolder("sorted" + i);
+            AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+            writer.setSortedOutput(true);
+            writer.setSortMemoryBudget(budgets[i]);
+            File meta = write(writer, experiments);
+            assertEquals(expected, AcmoTestUtil.readLines(meta));
+            assertEquals("Sort runs left behind", 1, dir.list().length);
+            first = meta;
+        }
+
+        // The parallel and pipelined writes sort the same way
+        AcmoWriter writer = new AcmoWriter(tmp.newFolder("sortedPar").getPath(), "dssat");
+        writer.setSortedOutput(true);
+        writer.setSortMemoryBudget(4096);
+        writer.setParallelism(3);
+        writer.setPipelined(true);
+        assertArrayEquals(AcmoTestUtil.readBytes(first), AcmoTestUtil.readBytes(write(writer, experiments)));
+    }
+
+    @Test
+    public void sortedFailureTest() throws IOException {
+        ArrayList<HashMap<String, Object>> experiments = AcmoTestUtil.createExperiments(100);
+        experiments.add(80, null);
+        File dir = tmp.newFolder("out");
+        AcmoWriter writer = new AcmoWriter(dir.getPath(), "dssat");
+        writer.setSortedOutput(true);
+        writer.setSortMemoryBudget(2048);
+        try {
+            write(writer, experiments);
+            fail("A null experiment is not valid");
+        } catch (NullPointerException ex) {
+        }
+        for (String name : dir.list()) {
+            assertFalse("Sort run left behind", name.endsWith(".run"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSortMemoryBudgetTest() {
+        new AcmoWriter("", "dssat").setSortMemoryBudget(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidParallelismTest() {
+        new AcmoWriter("", "dssat").setParallelism(0);
+    }
+}
@@ -0,0 +1,39 @@
+package org.agmip.acmo.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BoundedMemoTest {
+
+    @Test
+    public void keyTest() {
+        BoundedMemo.Key key = new BoundedMemo.Key("crid", "MAZ", "cn");
+        assertEquals(key, new BoundedMemo.Key("crid", "MAZ", "cn"));
+        assertEquals(key.hashCode(), new BoundedMemo.Key("crid", "MAZ", "cn").hashCode());
+        assertFalse(key.equals(new BoundedMemo.Key("crid", "MA", "Zcn")));
+        assertFalse(key.equals(new BoundedMemo.Key("crid", "MAZ")));
+    }
+
+    @Test
+    public void boundedTest() {
+        BoundedMemo<String> memo = new BoundedMemo<String>(2);
+        BoundedMemo.Key a = new BoundedMemo.Key("a");
+        assertNull(memo.get(a));
+        memo.put(a, "A");
+        memo.put(new BoundedMemo.Key("b"), null);
+        memo.put(new BoundedMemo.Key("c"), "C");
+        // Full, the first values stay
+        memo.put(new BoundedMemo.Key("d"), "D");
+        assertEquals("A", memo.get(a));
+        assertNull(memo.get(new BoundedMemo.Key("d")));
+
+        assertEquals(2, memo.size());
+        assertEquals(1, memo.getHitCount());
+        assertEquals(2, memo.getMissCount());
+        assertEquals(1.0 / 3, memo.getHitRate(), 1e-9);
+
+        memo.clear();
+        assertEquals(0, memo.size());
+        assertEquals(0, memo.getHitRate(), 0);
+    }
+}
@@ -0,0 +1,38 @@
+package org.agmip.acmo.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DomeMetaCacheTest {
+
+    @Test
+    public void resolveTest() {
+        DomeMetaCache cache = new DomeMetaCache(10);
+        DomeMetaInfo info = cache.resolve("KEN-2-RAP3--0-SEASONAL", "KEN-1-RAP1-MAN2-0-FIELD");
+
+        assertEquals("Incorrect region", "KEN", info.getRegId());
+        assertEquals("Seasonal strategy should come first", "2", info.getStratum());
+        assertEquals("Incorrect RAP ID", "RAP3", info.getRapId());
+        assertEquals("MAN ID should fall back to the field overlay", "MAN2", info.getManId());
+    }
+
+    @Test
+    public void cachedTest() {
+        DomeMetaCache cache = new DomeMetaCache(10);
+        DomeMetaInfo first = cache.resolve("", "KEN-1-RAP1-MAN2-0-FIELD");
+        DomeMetaInfo second = cache.resolve("", "KEN-1-RAP1-MAN2-0-FIELD");
+        cache.resolve("KEN-1-RAP1-MAN2-0-FIELD", "");
+
+        assertSame("Not cached", first, second);
+        assertEquals("Incorrect hit count", 1, cache.getHitCount());
+        assertEquals("Incorrect miss count", 2, cache.getMissCount());
+        assertEquals("Incorrect size", 2, cache.size());
+    }
+
+    @Test
+    public void emptyTest() {
+        DomeMetaInfo info = new DomeMetaCache(10).resolve("", "");
+        assertEquals("", info.getRegId());
+        assertEquals("", info.getRapId());
+    }
+}
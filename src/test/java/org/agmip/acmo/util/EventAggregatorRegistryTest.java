@@ -0,0 +1,90 @@
+package org.agmip.acmo.util;
+
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.agmip.ace.util.AcePathfinderUtil;
+
+public class EventAggregatorRegistryTest {
+
+    private HashMap<String, Object> coreMap = new HashMap<String, Object>();
+
+    /**
+     * Counts the events of all the types it is registered for
+     */
+    private static class CountAggregator implements EventAggregator {
+
+        private final String key;
+        private int count = 0;
+
+        private CountAggregator(String key) {
+            this.key = key;
+        }
+
+        public void add(HashMap<String, String> event) {
+            count++;
+        }
+
+        public void complete(HashMap<String, String> results) {
+            results.put(key, Integer.toString(count));
+        }
+    }
+
+    @Before
+    public void populateCoreMap() {
+        AcePathfinderUtil.insertValue(coreMap, "pdate", "19810101");
+        AcePathfinderUtil.insertValue(coreMap, "crid", "MAZ");
+        AcePathfinderUtil.insertValue(coreMap, "dssat_cul_id", "GH0010");
+        AcePathfinderUtil.insertValue(coreMap, "fedate", "19810110");
+        AcePathfinderUtil.insertValue(coreMap, "feamn", "10");
+        AcePathfinderUtil.insertValue(coreMap, "hadat", "19810601");
+        AcePathfinderUtil.insertValue(coreMap, "omdat", "19810102");
+        AcePathfinderUtil.insertValue(coreMap, "omamt", "5");
+    }
+
+    @Test
+    public void extraAggregatorTest() {
+        EventAggregatorRegistry registry = EventAggregatorRegistry.createDefault();
+        EventAggregatorFactory harvests = new EventAggregatorFactory() {
+            public EventAggregator newAggregator(EventContext context) {
+                return new CountAggregator("ha_count");
+            }
+        };
+        registry.register("harvest", harvests);
+        HashMap<String, String> results = AcmoUtil.extractEventData(coreMap, "dssat", registry);
+
+        assertEquals("Incorrect harvest count", "1", results.get("ha_count"));
+        assertEquals("Incorrect fen_tot", "10", results.get("fen_tot"));
+        assertEquals("Incorrect cul_id", "GH0010", results.get("cul_id"));
+        assertEquals("Incorrect crid", "Maize", results.get("crid"));
+    }
+
+    @Test
+    public void sharedFactoryTest() {
+        EventAggregatorRegistry registry = new EventAggregatorRegistry();
+        EventAggregatorFactory inputs = new EventAggregatorFactory() {
+            public EventAggregator newAggregator(EventContext context) {
+                return new CountAggregator("input_count");
+            }
+        };
+        registry.register("fertilizer", inputs);
+        registry.register("organic_matter", inputs);
+        HashMap<String, String> results = AcmoUtil.extractEventData(coreMap, "dssat", registry);
+
+        assertEquals("Incorrect results", 1, results.size());
+        assertEquals("Incorrect input count", "2", results.get("input_count"));
+    }
+
+    @Test
+    public void removeTest() {
+        EventAggregatorRegistry registry = EventAggregatorRegistry.createDefault();
+        registry.remove("fertilizer");
+        HashMap<String, String> results = AcmoUtil.extractEventData(coreMap, "dssat", registry);
+
+        assertNull("Fertilizer not removed", results.get("fe_count"));
+        assertEquals("Incorrect omamt", "5", results.get("omamt"));
+    }
+}
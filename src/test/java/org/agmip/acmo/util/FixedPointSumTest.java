@@ -0,0 +1,61 @@
+package org.agmip.acmo.util;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FixedPointSumTest {
+
+    private static void assertSameAsBigDecimal(String... values) {
+        FixedPointSum sum = new FixedPointSum();
+        BigDecimal expected = new BigDecimal(0.0);
+        for (String value : values) {
+            sum.add(value);
+            expected = expected.add(new BigDecimal(value));
+        }
+        assertEquals("Incorrect sum", expected.toString(), sum.toString());
+        assertEquals("Incorrect BigDecimal", 0, expected.compareTo(sum.toBigDecimal()));
+    }
+
+    @Test
+    public void sumTest() {
+        assertSameAsBigDecimal();
+        assertSameAsBigDecimal("100.0", "15.5");
+        assertSameAsBigDecimal(".65");
+        assertSameAsBigDecimal("25", ".25");
+        assertSameAsBigDecimal("25", "15.2", "50");
+        assertSameAsBigDecimal("-3.5", "+1", "2.");
+        assertSameAsBigDecimal("0.0000001", "0");
+        assertSameAsBigDecimal("0.00", "0");
+        assertSameAsBigDecimal("-.001", "0.001");
+        assertSameAsBigDecimal("1E3", "2.5");
+    }
+
+    @Test
+    public void overflowTest() {
+        assertSameAsBigDecimal("999999999999999999", "999999999999999999");
+        assertSameAsBigDecimal("12345678901234567890.5", "1");
+        assertSameAsBigDecimal("999999999999999999", "0.5");
+        assertSameAsBigDecimal("1.000000000000000001", "100000000");
+    }
+
+    @Test
+    public void randomTest() {
+        Random random = new Random(20140429);
+        for (int i = 0; i < 1000; i++) {
+            String[] values = new String[random.nextInt(20)];
+            for (int j = 0; j < values.length; j++) {
+                BigDecimal value = BigDecimal.valueOf(random.nextInt(2000000) - 1000000, random.nextInt(5));
+                values[j] = value.toPlainString();
+            }
+            assertSameAsBigDecimal(values);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void invalidValueTest() {
+        new FixedPointSum().add("12a");
+    }
+}
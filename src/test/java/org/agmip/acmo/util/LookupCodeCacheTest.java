@@ -0,0 +1,63 @@
+package org.agmip.acmo.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LookupCodeCacheTest {
+
+    @Test
+    public void hitAndMissTest() {
+        LookupCodeCache cache = new LookupCodeCache(10);
+        assertEquals("Incorrect crop", "Maize", cache.lookupCode("crid", "MAZ", "cn"));
+        assertEquals("Incorrect crop", "Maize", cache.lookupCode("crid", "MAZ", "cn"));
+        assertEquals("Incorrect irrigation", "Sprinkler, mm", cache.lookupCode("irop", "IR004", "cn"));
+
+        assertEquals("Incorrect hit count", 1, cache.getHitCount());
+        assertEquals("Incorrect miss count", 2, cache.getMissCount());
+        assertEquals("Incorrect size", 2, cache.size());
+        assertEquals("Incorrect hit rate", 1.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void boundedTest() {
+        LookupCodeCache cache = new LookupCodeCache(1);
+        cache.lookupCode("crid", "MAZ", "cn");
+        cache.lookupCode("crid", "WHT", "cn");
+        cache.lookupCode("crid", "WHT", "cn");
+
+        assertEquals("Incorrect size", 1, cache.size());
+        assertEquals("Incorrect miss count", 3, cache.getMissCount());
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        final LookupCodeCache cache = new LookupCodeCache(100);
+        final AtomicInteger errors = new AtomicInteger();
+        final String[] codes = {"MAZ", "WHT", "SOY", "RIC"};
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (cache.lookupCode("crid", codes[i % codes.length], "cn") == null) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Lookup failed", 0, errors.get());
+        assertEquals("Incorrect lookup count", 8000, cache.getHitCount() + cache.getMissCount());
+        assertEquals("Incorrect size", codes.length, cache.size());
+    }
+}